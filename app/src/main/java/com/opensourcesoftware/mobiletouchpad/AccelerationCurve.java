@@ -0,0 +1,184 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+/**
+ * Pointer acceleration, maps the finger speed to a gain applied to the motion.
+ *
+ * The curve is sampled once into a lookup table when it is created, evaluating it is
+ * a table lookup with linear interpolation, no allocation and no exp/pow per event.
+ * Speeds are in motion units (see MotionIntegrator) per millisecond, anything above
+ * KMAX_SPEED gets the gain of KMAX_SPEED.
+ *
+ * Curves are stored as text, the type followed by its parameters:
+ * <pre>
+ * linear
+ * sigmoid gainMin gainMax midSpeed steepness
+ * power exponent scale                 gain = 1 + scale * speed^exponent
+ * table speed:gain speed:gain ...      piecewise linear, speeds ascending
+ * </pre>
+ */
+public class AccelerationCurve {
+
+    private final static String TAG = "AccelerationCurve";
+
+    public enum Type {
+        linear,
+        sigmoid,
+        power,
+        table
+    }
+
+    public static final float KMAX_SPEED = 8.f;
+    private static final int KLUT_SIZE = 256;
+    private static final float KLUT_SCALE = KLUT_SIZE / KMAX_SPEED;
+    private static final float KMAX_GAIN = 20.f;
+
+    private final Type mType;
+    private final float[] mParams;
+    // gain at speed x / KLUT_SCALE, one extra entry for the interpolation at the end
+    private final float[] mLut = new float[KLUT_SIZE + 1];
+
+    private AccelerationCurve(Type type, float[] params) {
+        mType = type;
+        mParams = params;
+        for (int x = 0; x <= KLUT_SIZE; x++) {
+            float gain = evaluate(x / KLUT_SCALE);
+            mLut[x] = Math.max(0.f, Math.min(gain, KMAX_GAIN));
+        }
+    }
+
+    public static AccelerationCurve linear() {
+        return new AccelerationCurve(Type.linear, new float[0]);
+    }
+
+    public static AccelerationCurve sigmoid(float gainMin, float gainMax, float midSpeed, float steepness) {
+        return new AccelerationCurve(Type.sigmoid, new float[]{gainMin, gainMax, midSpeed, steepness});
+    }
+
+    public static AccelerationCurve power(float exponent, float scale) {
+        return new AccelerationCurve(Type.power, new float[]{exponent, scale});
+    }
+
+    /**
+     * @param points speed, gain pairs with ascending speeds
+     */
+    public static AccelerationCurve table(float[] points) {
+        if ((points.length < 2) || (points.length % 2 != 0)) {
+            throw new IllegalArgumentException("table needs speed:gain pairs");
+        }
+        for (int x = 2; x < points.length; x += 2) {
+            if (points[x] <= points[x - 2]) throw new IllegalArgumentException("table speeds must ascend");
+        }
+        return new AccelerationCurve(Type.table, points.clone());
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    private float evaluate(float speed) {
+        switch (mType) {
+            case sigmoid:
+                return mParams[0] + (mParams[1] - mParams[0]) /
+                        (1.f + (float) Math.exp(-mParams[3] * (speed - mParams[2])));
+            case power:
+                return 1.f + mParams[1] * (float) Math.pow(speed, mParams[0]);
+            case table:
+                return evaluateTable(speed);
+            default:
+                return 1.f;
+        }
+    }
+
+    private float evaluateTable(float speed) {
+        if (speed <= mParams[0]) return mParams[1];
+        for (int x = 2; x < mParams.length; x += 2) {
+            if (speed <= mParams[x]) {
+                float t = (speed - mParams[x - 2]) / (mParams[x] - mParams[x - 2]);
+                return mParams[x - 1] + t * (mParams[x + 1] - mParams[x - 1]);
+            }
+        }
+        return mParams[mParams.length - 1];
+    }
+
+    /**
+     * @param speed finger speed in motion units per millisecond
+     */
+    public float getGain(float speed) {
+        float pos = speed * KLUT_SCALE;
+        if (pos >= KLUT_SIZE) return mLut[KLUT_SIZE];
+        if (pos <= 0.f) return mLut[0];
+        int index = (int) pos;
+        float fraction = pos - index;
+        return mLut[index] + (mLut[index + 1] - mLut[index]) * fraction;
+    }
+
+    /**
+     * @return the curve described by text, null if it isn't a valid curve
+     */
+    public static AccelerationCurve parse(String text) {
+        String[] parts = text.trim().split("\\s+");
+        try {
+            switch (Type.valueOf(parts[0])) {
+                case linear:
+                    return linear();
+                case sigmoid:
+                    if (parts.length != 5) return null;
+                    return sigmoid(Float.parseFloat(parts[1]), Float.parseFloat(parts[2]),
+                            Float.parseFloat(parts[3]), Float.parseFloat(parts[4]));
+                case power:
+                    if (parts.length != 3) return null;
+                    return power(Float.parseFloat(parts[1]), Float.parseFloat(parts[2]));
+                case table:
+                    float[] points = new float[(parts.length - 1) * 2];
+                    for (int x = 1; x < parts.length; x++) {
+                        String[] point = parts[x].split(":");
+                        if (point.length != 2) return null;
+                        points[(x - 1) * 2] = Float.parseFloat(point[0]);
+                        points[(x - 1) * 2 + 1] = Float.parseFloat(point[1]);
+                    }
+                    return table(points);
+            }
+        } catch (IllegalArgumentException e) {
+            Logging.e(TAG, "parse: " + text, e);
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(mType.name());
+        for (int x = 0; x < mParams.length; x++) {
+            if (mType == Type.table) {
+                sb.append((x % 2 == 0) ? " " : ":");
+            } else {
+                sb.append(' ');
+            }
+            sb.append(mParams[x]);
+        }
+        return sb.toString();
+    }
+}
@@ -33,7 +33,7 @@ public final class AppPrefs {
 
     public static final Integer KPORT_MIN = 1024;
     public static final Integer KPORT_MAX = 65535;
-    public static final Integer KPORT_DEFAULT = 19999;
+    public static final Integer KPORT_DEFAULT = WireProtocol.KPORT_DEFAULT;
 
     // bounce values are in milliseconds
     public static final Integer KBOUNCE_MIN = 5;
@@ -43,31 +43,91 @@ public final class AppPrefs {
     public static final Integer KVIBRATE_SHORT = 100;
     public static final Integer KVIBRATE_LONG = 150;
 
-    public static final long KPING_INTERVAL = 1000;
+    // batch sizes are datagram payload bytes, 0 sends one command per datagram
+    public static final int[] KBATCH_SIZES = {0, 512, 1200};
+    public static final Integer KBATCH_SIZE_DEFAULT = 0;
+    // flush deadline values are in microseconds
+    public static final Integer KBATCH_DEADLINE_MIN = 0;
+    public static final Integer KBATCH_DEADLINE_MAX = 20000;
+    public static final Integer KBATCH_DEADLINE_DEFAULT = 1000;
+
+    // moves and scrolls waiting longer than this in milliseconds are dropped by the sender
+    public static final Integer KMOVE_DEADLINE_MIN = 20;
+    public static final Integer KMOVE_DEADLINE_MAX = 2000;
+    public static final Integer KMOVE_DEADLINE_DEFAULT = 150;
+
+    // pointer prediction horizon in milliseconds, 0 turns prediction off
+    public static final Integer KPREDICT_HORIZON_MIN = MotionPredictor.KHORIZON_MIN_MS;
+    public static final Integer KPREDICT_HORIZON_MAX = MotionPredictor.KHORIZON_MAX_MS;
+    public static final Integer KPREDICT_HORIZON_DEFAULT = 0;
+
+    // pointer acceleration presets, see AccelerationCurve for the format
+    public static final String KACCEL_CURVE_OFF = "linear";
+    public static final String KACCEL_CURVE_SIGMOID = "sigmoid 0.6 2.5 1.0 4.0";
+    public static final String KACCEL_CURVE_POWER = "power 1.5 0.6";
+    public static final String KACCEL_CURVE_TABLE_DEFAULT = "table 0:0.5 1:1 4:3";
+    public static final String KACCEL_CURVE_DEFAULT = KACCEL_CURVE_OFF;
 
     private static final String KAPP_PREFS_NAME = "app_prefs";
     private static final String KKEY_SCROLL_MULTIPLIER = "SCROLL.MULTIPLIER";
     private static final String KKEY_SCROLL_NATURAL = "SCROLL.NATURAL";
     private static final String KKEY_HOST_SYSTEM = "HOST_SYSTEM";
+    private static final String KKEY_KNOWN_HOSTS = "HOST.KNOWN";
     private static final String KKEY_HOST_PORT = "HOST_PORT";
     private static final String KKEY_BOUNCE = "BOUNCE";
+    private static final String KKEY_BATCH_SIZE = "BATCH.SIZE";
+    private static final String KKEY_BATCH_DEADLINE = "BATCH.DEADLINE";
+    private static final String KKEY_ACCEL_CURVE = "ACCEL.CURVE";
+    private static final String KKEY_MOTION_HIRES = "MOTION.HIRES";
+    private static final String KKEY_PREDICT_HORIZON = "PREDICT.HORIZON";
+    private static final String KKEY_MOVE_DEADLINE = "MOVE.DEADLINE";
+    private static final String KKEY_TRACE_RECORD = "TRACE.RECORD";
+    private static final String KKEY_STATS_OVERLAY = "STATS.OVERLAY";
     private static float mScrollMultiplier = 2.f;
     private static boolean mScrollNatural = false;
     private static String mHostSystem = ""; // stored HOST_NAME{SPACE}IP
+    private static String mKnownHosts = ""; // discovered hosts, see HostRegistry.save()
     private static Integer mHostPort = KPORT_DEFAULT;
     private static Integer mBounce = KBOUNCE_DEFAULT;
+    private static Integer mBatchSize = KBATCH_SIZE_DEFAULT;
+    private static Integer mBatchDeadline = KBATCH_DEADLINE_DEFAULT;
+    private static String mAccelCurve = KACCEL_CURVE_DEFAULT;
+    private static boolean mMotionHighResolution = false;
+    private static Integer mPredictHorizon = KPREDICT_HORIZON_DEFAULT;
+    private static Integer mMoveDeadline = KMOVE_DEADLINE_DEFAULT;
+    private static boolean mTraceRecord = false;
+    private static boolean mStatsOverlay = false;
 
     public static void loadPreferences(Context context) {
         SharedPreferences prefs = context.getSharedPreferences(KAPP_PREFS_NAME, Context.MODE_PRIVATE);
         mScrollMultiplier = prefs.getFloat(KKEY_SCROLL_MULTIPLIER, 2.f);
         mScrollNatural = prefs.getBoolean(KKEY_SCROLL_NATURAL, false);
+        mMotionHighResolution = prefs.getBoolean(KKEY_MOTION_HIRES, false);
+        mTraceRecord = prefs.getBoolean(KKEY_TRACE_RECORD, false);
+        mStatsOverlay = prefs.getBoolean(KKEY_STATS_OVERLAY, false);
         mHostSystem = prefs.getString(KKEY_HOST_SYSTEM, "");
+        mKnownHosts = prefs.getString(KKEY_KNOWN_HOSTS, "");
 
         mHostPort = prefs.getInt(KKEY_HOST_PORT, KPORT_DEFAULT);
         if (!isPortValid(mHostPort)) mHostPort = KPORT_DEFAULT;
 
         mBounce = prefs.getInt(KKEY_BOUNCE, KBOUNCE_DEFAULT);
         if (!isBounceValid(mBounce)) mBounce = KBOUNCE_DEFAULT;
+
+        mBatchSize = prefs.getInt(KKEY_BATCH_SIZE, KBATCH_SIZE_DEFAULT);
+        if (!isBatchSizeValid(mBatchSize)) mBatchSize = KBATCH_SIZE_DEFAULT;
+
+        mBatchDeadline = prefs.getInt(KKEY_BATCH_DEADLINE, KBATCH_DEADLINE_DEFAULT);
+        if (!isBatchDeadlineValid(mBatchDeadline)) mBatchDeadline = KBATCH_DEADLINE_DEFAULT;
+
+        mPredictHorizon = prefs.getInt(KKEY_PREDICT_HORIZON, KPREDICT_HORIZON_DEFAULT);
+        if (!isPredictHorizonValid(mPredictHorizon)) mPredictHorizon = KPREDICT_HORIZON_DEFAULT;
+
+        mMoveDeadline = prefs.getInt(KKEY_MOVE_DEADLINE, KMOVE_DEADLINE_DEFAULT);
+        if (!isMoveDeadlineValid(mMoveDeadline)) mMoveDeadline = KMOVE_DEADLINE_DEFAULT;
+
+        mAccelCurve = prefs.getString(KKEY_ACCEL_CURVE, KACCEL_CURVE_DEFAULT);
+        if (!isAccelCurveValid(mAccelCurve)) mAccelCurve = KACCEL_CURVE_DEFAULT;
     }
 
     public static void savePreferences(Context context) {
@@ -75,9 +135,18 @@ public final class AppPrefs {
         SharedPreferences.Editor editor = prefs.edit();
         editor.putFloat(KKEY_SCROLL_MULTIPLIER, mScrollMultiplier);
         editor.putBoolean(KKEY_SCROLL_NATURAL, mScrollNatural);
+        editor.putBoolean(KKEY_MOTION_HIRES, mMotionHighResolution);
+        editor.putBoolean(KKEY_TRACE_RECORD, mTraceRecord);
+        editor.putBoolean(KKEY_STATS_OVERLAY, mStatsOverlay);
         editor.putString(KKEY_HOST_SYSTEM, mHostSystem);
+        editor.putString(KKEY_KNOWN_HOSTS, mKnownHosts);
         editor.putInt(KKEY_HOST_PORT, mHostPort);
         editor.putInt(KKEY_BOUNCE, mBounce);
+        editor.putInt(KKEY_BATCH_SIZE, mBatchSize);
+        editor.putInt(KKEY_BATCH_DEADLINE, mBatchDeadline);
+        editor.putInt(KKEY_PREDICT_HORIZON, mPredictHorizon);
+        editor.putInt(KKEY_MOVE_DEADLINE, mMoveDeadline);
+        editor.putString(KKEY_ACCEL_CURVE, mAccelCurve);
         editor.apply();
     }
 
@@ -95,6 +164,27 @@ public final class AppPrefs {
                 KBOUNCE_MAX);
     }
 
+    public static String getMsgErrInvalidBatchDeadlineRange(Context context) {
+        return String.format(Locale.ENGLISH,
+                context.getString(R.string.msg_settings_invalid_batch_deadline_range),
+                KBATCH_DEADLINE_MIN,
+                KBATCH_DEADLINE_MAX);
+    }
+
+    public static String getMsgErrInvalidPredictHorizonRange(Context context) {
+        return String.format(Locale.ENGLISH,
+                context.getString(R.string.msg_settings_invalid_predict_horizon_range),
+                KPREDICT_HORIZON_MIN,
+                KPREDICT_HORIZON_MAX);
+    }
+
+    public static String getMsgErrInvalidMoveDeadlineRange(Context context) {
+        return String.format(Locale.ENGLISH,
+                context.getString(R.string.msg_settings_invalid_move_deadline_range),
+                KMOVE_DEADLINE_MIN,
+                KMOVE_DEADLINE_MAX);
+    }
+
     private static boolean isIntInRange(Integer value, Integer start, Integer end) {
         return ((value >= start) && (value <= end));
     }
@@ -107,6 +197,29 @@ public final class AppPrefs {
         return isIntInRange(bounce, KBOUNCE_MIN, KBOUNCE_MAX);
     }
 
+    public static boolean isBatchSizeValid(Integer batchSize) {
+        for (int size : KBATCH_SIZES) {
+            if (size == batchSize) return true;
+        }
+        return false;
+    }
+
+    public static boolean isBatchDeadlineValid(Integer deadline) {
+        return isIntInRange(deadline, KBATCH_DEADLINE_MIN, KBATCH_DEADLINE_MAX);
+    }
+
+    public static boolean isPredictHorizonValid(Integer horizon) {
+        return isIntInRange(horizon, KPREDICT_HORIZON_MIN, KPREDICT_HORIZON_MAX);
+    }
+
+    public static boolean isMoveDeadlineValid(Integer deadline) {
+        return isIntInRange(deadline, KMOVE_DEADLINE_MIN, KMOVE_DEADLINE_MAX);
+    }
+
+    public static boolean isAccelCurveValid(String curve) {
+        return AccelerationCurve.parse(curve) != null;
+    }
+
     public static String formatMultiplier(float multiplier) {
         return String.format(Locale.ENGLISH, "x%.1f", multiplier);
     }
@@ -131,10 +244,42 @@ public final class AppPrefs {
         mScrollNatural = scrollNatural;
     }
 
+    public static boolean getMotionHighResolution() {
+        return mMotionHighResolution;
+    }
+
+    public static void setMotionHighResolution(boolean highResolution) {
+        mMotionHighResolution = highResolution;
+    }
+
+    public static boolean getTraceRecord() {
+        return mTraceRecord;
+    }
+
+    public static void setTraceRecord(boolean record) {
+        mTraceRecord = record;
+    }
+
+    public static boolean getStatsOverlay() {
+        return mStatsOverlay;
+    }
+
+    public static void setStatsOverlay(boolean overlay) {
+        mStatsOverlay = overlay;
+    }
+
     public static void setHostSystem(String name, String hostIP) {
         mHostSystem = name + " " + hostIP;
     }
 
+    public static void setKnownHosts(String hosts) {
+        mKnownHosts = hosts;
+    }
+
+    public static String getKnownHosts() {
+        return mKnownHosts;
+    }
+
     public static void setHostPort(Integer port) {
         if (isPortValid(port)) mHostPort = port;
     }
@@ -167,6 +312,51 @@ public final class AppPrefs {
     public static Integer getBounce() {
         return mBounce;
     }
+
+    public static void setBatchSize(Integer batchSize) {
+        if (isBatchSizeValid(batchSize)) mBatchSize = batchSize;
+    }
+
+    public static Integer getBatchSize() {
+        return mBatchSize;
+    }
+
+    public static void setBatchDeadline(Integer deadline) {
+        if (isBatchDeadlineValid(deadline)) mBatchDeadline = deadline;
+    }
+
+    public static Integer getBatchDeadline() {
+        return mBatchDeadline;
+    }
+
+    public static void setPredictHorizon(Integer horizon) {
+        if (isPredictHorizonValid(horizon)) mPredictHorizon = horizon;
+    }
+
+    public static Integer getPredictHorizon() {
+        return mPredictHorizon;
+    }
+
+    public static void setMoveDeadline(Integer deadline) {
+        if (isMoveDeadlineValid(deadline)) mMoveDeadline = deadline;
+    }
+
+    public static Integer getMoveDeadline() {
+        return mMoveDeadline;
+    }
+
+    public static void setAccelCurve(String curve) {
+        if (isAccelCurveValid(curve)) mAccelCurve = curve;
+    }
+
+    public static String getAccelCurve() {
+        return mAccelCurve;
+    }
+
+    public static AccelerationCurve getAccelerationCurve() {
+        AccelerationCurve curve = AccelerationCurve.parse(mAccelCurve);
+        return (curve != null) ? curve : AccelerationCurve.linear();
+    }
 }
 
 
@@ -0,0 +1,152 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Output stream into a file that is opened, written and closed on its own lowest
+ * priority thread, so a caller on a latency critical thread never waits on the disk.
+ * Written bytes are copied into one of KCHUNKS preallocated chunks and handed over, if
+ * the file thread falls that far behind write() fails instead of blocking or growing.
+ * Every chunk goes to the file unbuffered, once handed over it survives the app being
+ * killed, flush() has nothing left to do.
+ */
+public class BackgroundFileOutputStream extends OutputStream {
+
+    private final static String TAG = "BackgroundFileOutputStream";
+
+    public static final int KCHUNK_SIZE = 8192;
+    public static final int KCHUNKS = 8;
+
+    private static final class Chunk {
+        final byte[] mData = new byte[KCHUNK_SIZE];
+        int mLength;
+        boolean mClose;
+    }
+
+    private final File mFile;
+    // one chunk more than writes may use, close() always finds one
+    private final ArrayBlockingQueue<Chunk> mFree = new ArrayBlockingQueue<>(KCHUNKS + 1);
+    private final ArrayBlockingQueue<Chunk> mPending = new ArrayBlockingQueue<>(KCHUNKS + 1);
+    private final Thread mThread;
+    private volatile boolean mFailed = false;
+    private boolean mClosed = false;
+
+    /**
+     * Starts the file thread, which creates the parent directories and the file.
+     */
+    public BackgroundFileOutputStream(File file) {
+        Logging.d(TAG, "BackgroundFileOutputStream()", file);
+        mFile = file;
+        for (int x = 0; x < KCHUNKS + 1; x++) {
+            mFree.add(new Chunk());
+        }
+        mThread = new Thread(this::runFile, TAG);
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mClosed) throw new IOException("closed: " + mFile);
+        if (mFailed) throw new IOException("write failed: " + mFile);
+        while (len > 0) {
+            if (mFree.size() <= 1) {
+                mFailed = true;
+                throw new IOException("file thread fell behind: " + mFile);
+            }
+            Chunk chunk = mFree.poll();
+            int count = Math.min(len, KCHUNK_SIZE);
+            System.arraycopy(b, off, chunk.mData, 0, count);
+            chunk.mLength = count;
+            chunk.mClose = false;
+            mPending.add(chunk);
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Hands the file thread the close, doesn't wait for it.
+     */
+    @Override
+    public void close() {
+        if (mClosed) return;
+        mClosed = true;
+        Chunk chunk = mFree.poll();
+        if (chunk == null) {
+            mThread.interrupt();
+            return;
+        }
+        chunk.mClose = true;
+        mPending.add(chunk);
+    }
+
+    private void runFile() {
+        OutputStream out = null;
+        try {
+            File dir = mFile.getParentFile();
+            if (dir != null) dir.mkdirs();
+            out = new FileOutputStream(mFile);
+        } catch (IOException e) {
+            Logging.e(TAG, "runFile: open", mFile, e);
+            mFailed = true;
+        }
+        try {
+            while (true) {
+                Chunk chunk = mPending.take();
+                if (chunk.mClose) break;
+                if ((out != null) && !mFailed) {
+                    try {
+                        out.write(chunk.mData, 0, chunk.mLength);
+                    } catch (IOException e) {
+                        Logging.e(TAG, "runFile: write", mFile, e);
+                        mFailed = true;
+                    }
+                }
+                mFree.add(chunk);
+            }
+        } catch (InterruptedException e) {
+            Logging.d(TAG, "runFile: interrupted");
+        }
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Logging.e(TAG, "runFile: close", mFile, e);
+            }
+        }
+    }
+}
@@ -39,7 +39,12 @@ public class CmdConsts {
     public static final String KACTION_CLICK_DOUBLE = "ACTION:CLICK_DOUBLE";
     public static final String KACTION_TAP = "ACTION:TAP";
 
+    public static final String[] KSCROLL_SPEEDS = {"SLOW", "NORMAL", "FAST"};
+
     public static final String KCOMM_PING = "PING";
+    public static final String KCOMM_PONG = "PONG";
+    public static final String KCOMM_ACK = "ACK";
+    public static final String KCOMM_HELLO = "HELLO";
 }
 
 
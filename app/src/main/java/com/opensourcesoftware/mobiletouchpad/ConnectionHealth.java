@@ -0,0 +1,180 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Ping/pong bookkeeping for the connection to the host: round trip times, loss rate
+ * over the last pings and when the host was last heard from. Written by the sender
+ * and the receiver, read by the UI.
+ */
+public class ConnectionHealth {
+
+    public enum State {
+        unknown,    // host never answered, likely a host without ping/pong support
+        good,
+        degraded,   // host answers but the link is slow or lossy
+        lost        // host answered before and went silent
+    }
+
+    // window of pings used for the statistics
+    private static final int KWINDOW = 64;
+    // a ping without a pong after this long counts as lost
+    private static final long KPONG_TIMEOUT_NS = 2 * WireProtocol.KPING_INTERVAL * 1000000L;
+    // silence after which a host that answered before is considered gone
+    private static final long KLOST_TIMEOUT_NS = 3 * WireProtocol.KPING_INTERVAL * 1000000L;
+    private static final float KDEGRADED_LOSS = 0.1f;
+    private static final long KDEGRADED_RTT_NS = 100 * 1000000L;
+
+    private final int[] mPingSeqs = new int[KWINDOW];
+    private final long[] mPingSentNS = new long[KWINDOW];
+    private final long[] mPingRttNS = new long[KWINDOW];
+    private final long[] mSortScratch = new long[KWINDOW];
+    private int mNextSeq = 1;
+    private long mLastSeenNS = 0;
+    private boolean mHostAnswered = false;
+
+    public synchronized void reset() {
+        Arrays.fill(mPingSeqs, 0);
+        Arrays.fill(mPingRttNS, 0);
+        mLastSeenNS = 0;
+        mHostAnswered = false;
+    }
+
+    /**
+     * Registers an outgoing ping.
+     *
+     * @return the sequence number to put on the wire
+     */
+    public synchronized int onPingSent(long nowNS) {
+        int seq = mNextSeq++;
+        if (mNextSeq <= 0) mNextSeq = 1;
+        int slot = seq & (KWINDOW - 1);
+        mPingSeqs[slot] = seq;
+        mPingSentNS[slot] = nowNS;
+        mPingRttNS[slot] = -1;
+        return seq;
+    }
+
+    public synchronized void onPongReceived(int seq, long nowNS) {
+        onHostSeen(nowNS);
+        int slot = seq & (KWINDOW - 1);
+        if ((mPingSeqs[slot] == seq) && (mPingRttNS[slot] < 0)) {
+            mPingRttNS[slot] = nowNS - mPingSentNS[slot];
+        }
+    }
+
+    /**
+     * Anything received from the host counts as a sign of life.
+     */
+    public synchronized void onHostSeen(long nowNS) {
+        mLastSeenNS = nowNS;
+        mHostAnswered = true;
+    }
+
+    public synchronized Stats getStats(long nowNS, Stats stats) {
+        int samples = 0;
+        int resolved = 0;
+        int lost = 0;
+        long sum = 0;
+        for (int x = 0; x < KWINDOW; x++) {
+            if (mPingSeqs[x] == 0) continue;
+            long rtt = mPingRttNS[x];
+            if (rtt >= 0) {
+                mSortScratch[samples++] = rtt;
+                sum += rtt;
+                resolved++;
+            } else if (nowNS - mPingSentNS[x] >= KPONG_TIMEOUT_NS) {
+                lost++;
+                resolved++;
+            }
+        }
+        Arrays.sort(mSortScratch, 0, samples);
+        stats.mSamples = samples;
+        stats.mRttMinNS = (samples > 0) ? mSortScratch[0] : 0;
+        stats.mRttAvgNS = (samples > 0) ? sum / samples : 0;
+        stats.mRttP99NS = (samples > 0) ? mSortScratch[Math.min(samples - 1, (samples * 99) / 100)] : 0;
+        stats.mLossRate = (resolved > 0) ? (float) lost / resolved : 0.f;
+        stats.mSinceLastSeenNS = mHostAnswered ? nowNS - mLastSeenNS : -1;
+        if (!mHostAnswered) {
+            stats.mState = State.unknown;
+        } else if (stats.mSinceLastSeenNS >= KLOST_TIMEOUT_NS) {
+            stats.mState = State.lost;
+        } else if ((stats.mLossRate >= KDEGRADED_LOSS) || (stats.mRttP99NS >= KDEGRADED_RTT_NS)) {
+            stats.mState = State.degraded;
+        } else {
+            stats.mState = State.good;
+        }
+        return stats;
+    }
+
+    public static class Stats {
+        private State mState = State.unknown;
+        private int mSamples = 0;
+        private long mRttMinNS = 0;
+        private long mRttAvgNS = 0;
+        private long mRttP99NS = 0;
+        private float mLossRate = 0.f;
+        private long mSinceLastSeenNS = -1;
+
+        public State getState() {
+            return mState;
+        }
+
+        public int getSamples() {
+            return mSamples;
+        }
+
+        public float getRttMinMS() {
+            return mRttMinNS / 1000000.f;
+        }
+
+        public float getRttAvgMS() {
+            return mRttAvgNS / 1000000.f;
+        }
+
+        public float getRttP99MS() {
+            return mRttP99NS / 1000000.f;
+        }
+
+        public float getLossRate() {
+            return mLossRate;
+        }
+
+        public long getSinceLastSeenMS() {
+            return (mSinceLastSeenNS < 0) ? -1 : mSinceLastSeenNS / 1000000L;
+        }
+
+        public String format() {
+            return String.format(Locale.ENGLISH, "rtt %.1f/%.1f/%.1f ms  loss %.0f%%",
+                    getRttMinMS(),
+                    getRttAvgMS(),
+                    getRttP99MS(),
+                    mLossRate * 100.f);
+        }
+    }
+}
@@ -15,6 +15,7 @@ import java.util.List;
 public class DeviceShakeDetector implements SensorEventListener {
 
     private static final String TAG = "DeviceShakeDetector";
+    private static final Logging.RateLimit KLOG_SENSOR = new Logging.RateLimit(1000);
 
     public interface DeviceShakeDetectorListener {
         void onDeviceShakeDetected();
@@ -40,10 +41,10 @@ public class DeviceShakeDetector implements SensorEventListener {
         mSensorManager = (SensorManager)ctx.getSystemService(Context.SENSOR_SERVICE);
         List<Sensor> list = mSensorManager.getSensorList(Sensor.TYPE_ALL);
         if (list.size() > 0) {
-            Logging.d(TAG, "initAccelerometer: found " + list.size() + " sensors!");
+            Logging.d(TAG, "initAccelerometer: sensors", list.size());
             for (int i = 0; i < list.size(); i++) {
                 Sensor s = list.get(i);
-                Logging.d(TAG, "initAccelerometer/Sensor: "  + s.getStringType() + " / " + s.getType() + " / " + s.getName() + " / " + s.getPower());
+                Logging.d(TAG, () -> "initAccelerometer/Sensor: " + s.getStringType() + " / " + s.getType() + " / " + s.getName() + " / " + s.getPower());
                 if (s.getType() == Sensor.TYPE_ACCELEROMETER) {
                     init = false;
 
@@ -67,7 +68,7 @@ public class DeviceShakeDetector implements SensorEventListener {
 
     @Override
     public void onSensorChanged(SensorEvent e) {
-        Logging.d(TAG, "onSensorChanged: " + e.timestamp + " / " + e.accuracy);
+        Logging.v(TAG, KLOG_SENSOR, "onSensorChanged:", e.timestamp, e.accuracy);
 
         //Get x,y and z values
         float x,y,z;
@@ -108,6 +109,6 @@ public class DeviceShakeDetector implements SensorEventListener {
     }
 
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        Logging.d(TAG, "onAccuracyChanged: " + sensor.toString() + " accuracy: " + accuracy);
+        Logging.d(TAG, "onAccuracyChanged:", sensor, accuracy);
     }
 }
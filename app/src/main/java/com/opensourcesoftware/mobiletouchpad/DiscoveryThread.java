@@ -26,6 +26,7 @@ package com.opensourcesoftware.mobiletouchpad;
 
 import android.content.Context;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
@@ -33,14 +34,33 @@ import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
-
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks for hosts on the network. Hosts multicast an announcement every second, on top
+ * of that a probing thread multicasts a query when it starts and hosts that understand
+ * it answer right away by unicast, so the first host shows up after a round trip
+ * instead of after up to an announce interval. Queries are repeated KPROBE_COUNT times
+ * with a doubling interval in case one gets lost, the rest of the window only
+ * announcements are listened to and then the thread finishes. A listen only thread
+ * sends no queries and runs until interrupted, it keeps known hosts fresh without
+ * making every host answer again.
+ */
 public class DiscoveryThread extends Thread {
 
     private static final String TAG = "DiscoveryThread";
-    private static final String ANNOUNCE_PREFIX = "@*TOUCHPAD-MEV";
-    private static final String KMULTICAST_ADDR = "239.255.255.250";
-
-    public class MEVSystemItem {
+    static final String ANNOUNCE_PREFIX = "@*TOUCHPAD-MEV";
+    static final String QUERY_PREFIX = ANNOUNCE_PREFIX + "-QUERY";
+    static final String KMULTICAST_ADDR = "239.255.255.250";
+    // how often an interrupt is noticed while nothing arrives
+    private static final int KRECEIVE_TIMEOUT_MS = 100;
+    private static final int KPROBE_COUNT = 5;
+    private static final long KPROBE_INTERVAL_MS = 100;
+    // the last query goes out 1.5s in, the rest catches late answers and at least one
+    // announcement from hosts that don't answer queries
+    public static final long KWINDOW_MS_DEFAULT = 3000;
+
+    public static class MEVSystemItem {
         private String mHostIP = "";
         private String mName = "";
 
@@ -60,6 +80,8 @@ public class DiscoveryThread extends Thread {
 
     private List<MEVSystemItem> mList = new ArrayList<>();
     private int mPort = 0;
+    private long mWindowMS = KWINDOW_MS_DEFAULT;
+    private boolean mProbe = true;
     private DiscoveryThreadListener mListener = null;
     private Context mContext = null;
 
@@ -68,21 +90,57 @@ public class DiscoveryThread extends Thread {
     }
 
     public DiscoveryThread(int port, Context context, DiscoveryThreadListener listener) {
-        Logging.d(TAG, "DiscoveryThread");
+        this(port, KWINDOW_MS_DEFAULT, true, context, listener);
+    }
+
+    /**
+     * @param windowMS how long to look for hosts before the thread finishes, 0 runs
+     *                 until interrupted
+     * @param probe    false only listens to announcements, no queries are sent
+     */
+    public DiscoveryThread(int port, long windowMS, boolean probe, Context context, DiscoveryThreadListener listener) {
+        Logging.d(TAG, "DiscoveryThread", port, windowMS, probe);
         this.mPort = port;
+        this.mWindowMS = windowMS;
+        this.mProbe = probe;
         this.mListener = listener;
         this.mContext = context;
     }
 
     private void checkServer(MEVSystemItem item) {
-        Logging.d(TAG, "checkServer: " + item.toString());
+        Logging.d(TAG, "checkServer:", item.getName(), item.getHostIP());
         mListener.onSystemFound(item);
     }
 
+    private void sendQuery(MulticastSocket ds, DatagramPacket query) {
+        try {
+            ds.send(query);
+        } catch (IOException e) {
+            // no multicast route, announcements may still get through
+            Logging.d(TAG, "sendQuery:", e.getMessage());
+        }
+    }
+
+    /**
+     * Handles an announcement or an answer to a query, both are ANNOUNCE_PREFIX NAME,
+     * optionally null or newline terminated. Our own queries come back too and are
+     * skipped.
+     */
+    private void onPacket(DatagramPacket packet) {
+        String data = new String(packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8);
+        int end = data.indexOf('\0');
+        if (end >= 0) data = data.substring(0, end);
+        end = data.indexOf('\n');
+        if (end >= 0) data = data.substring(0, end);
+        String[] parts = data.trim().split("\\s+");
+        if ((parts.length >= 2) && parts[0].equals(ANNOUNCE_PREFIX)) {
+            checkServer(new MEVSystemItem(parts[1], packet.getAddress().getHostAddress()));
+        }
+    }
+
     @Override
     public void run() {
         Logging.d(TAG, "run: START");
-        String data = "";
         byte[] rawMsg = new byte[1000];
         MulticastSocket ds = null;
 
@@ -90,23 +148,29 @@ public class DiscoveryThread extends Thread {
         try {
             ds = new MulticastSocket(mPort);
             ds.setReuseAddress(true);
+            ds.setSoTimeout(KRECEIVE_TIMEOUT_MS);
             InetAddress group = InetAddress.getByName(KMULTICAST_ADDR);
             ds.joinGroup(group);
+            byte[] rawQuery = (QUERY_PREFIX + "\n").getBytes(StandardCharsets.UTF_8);
+            DatagramPacket query = new DatagramPacket(rawQuery, rawQuery.length, group, mPort);
+            int probes = mProbe ? 0 : KPROBE_COUNT;
+            long nextProbeMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+            long endMS = (mWindowMS > 0) ? nextProbeMS + mWindowMS : Long.MAX_VALUE;
             while (!this.isInterrupted()) {
+                long nowMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+                if (nowMS >= endMS) break;
+                if ((probes < KPROBE_COUNT) && (nowMS >= nextProbeMS)) {
+                    sendQuery(ds, query);
+                    nextProbeMS = nowMS + (KPROBE_INTERVAL_MS << probes);
+                    probes++;
+                }
                 try {
+                    packet.setLength(rawMsg.length);
                     ds.receive(packet);
                 } catch (SocketTimeoutException x) {
                     continue;
                 }
-                data = new String(rawMsg, StandardCharsets.UTF_8);
-                data = data.substring(0, data.indexOf("\0"));
-                data = data.substring(0, data.indexOf("\n"));
-                if (data.startsWith(ANNOUNCE_PREFIX)) {
-                    String[] parts = data.split("\\s+");
-                    if (parts.length >= 2) {
-                        checkServer(new MEVSystemItem(parts[1], packet.getAddress().getHostAddress()));
-                    }
-                }
+                onPacket(packet);
             }
         } catch (Exception e) {
             Logging.e(TAG, "run: ", e);
@@ -115,6 +179,7 @@ public class DiscoveryThread extends Thread {
                 ds.close();
             }
         }
+        Logging.d(TAG, "run: END");
     }
 }
 
@@ -0,0 +1,230 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single producer / single consumer ring of gesture events, stored as
+ * fixed size primitive records (opcode, two int arguments, timestamps) so nothing is
+ * allocated per event and memory stays flat however long the host is away.
+ *
+ * The producer is the thread generating gestures, the consumer is the sender, which
+ * parks in {@link #await(long)} while the ring is empty.
+ *
+ * Overflow policy: moves and scrolls may only fill the ring up to capacity -
+ * discreteReserve, the reserved slots are kept for discrete events (clicks, taps,
+ * drag begin/end...) so a flood of deltas can never push those out. Whatever doesn't fit is dropped on
+ * the producer side and counted.
+ */
+public class GestureEventRing {
+
+    public static final int KCAPACITY_DEFAULT = 1024;
+    public static final int KDISCRETE_RESERVE_DEFAULT = 64;
+
+    private final int mMask;
+    private final int mMoveLimit;
+    private final int[] mOpcodes;
+    private final int[] mArgs0;
+    private final int[] mArgs1;
+    private final long[] mTimestamps;
+    private final long[] mEventTimes;
+    // discrete events offered up to and including the record, see discreteSize()
+    private final long[] mDiscreteCounts;
+
+    // next slot to write, only advanced by the producer
+    private final AtomicLong mTail = new AtomicLong();
+    // next slot to read, only advanced by the consumer
+    private final AtomicLong mHead = new AtomicLong();
+    // everything before this index was cleared, applied by the consumer
+    private volatile long mClearedTo = 0;
+    private long mCachedHead = 0;
+    private long mDiscreteOffered = 0;
+
+    private volatile Thread mWaiter = null;
+    private volatile long mDroppedMoves = 0;
+    private volatile long mDroppedDiscrete = 0;
+
+    public GestureEventRing() {
+        this(KCAPACITY_DEFAULT, KDISCRETE_RESERVE_DEFAULT);
+    }
+
+    public GestureEventRing(int capacity, int discreteReserve) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mMask = capacity - 1;
+        mMoveLimit = capacity - discreteReserve;
+        mOpcodes = new int[capacity];
+        mArgs0 = new int[capacity];
+        mArgs1 = new int[capacity];
+        mTimestamps = new long[capacity];
+        mEventTimes = new long[capacity];
+        mDiscreteCounts = new long[capacity];
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    // producer
+
+    public boolean offer(int opcode, int arg0, int arg1, long timestamp) {
+        return offer(opcode, arg0, arg1, timestamp, timestamp);
+    }
+
+    /**
+     * Adds an event, never blocks.
+     *
+     * @param eventTime System.nanoTime() of the input that caused the event
+     * @param timestamp System.nanoTime() when offered
+     * @return false if the event was dropped by the overflow policy
+     */
+    public boolean offer(int opcode, int arg0, int arg1, long eventTime, long timestamp) {
+        long tail = mTail.get();
+        boolean isContinuous = WireProtocol.isContinuous(opcode);
+        int limit = isContinuous ? mMoveLimit : getCapacity();
+        if (tail - mCachedHead >= limit) {
+            mCachedHead = mHead.get();
+            if (tail - mCachedHead >= limit) {
+                if (isContinuous) {
+                    mDroppedMoves++;
+                } else {
+                    mDroppedDiscrete++;
+                }
+                return false;
+            }
+        }
+        int index = (int) tail & mMask;
+        mOpcodes[index] = opcode;
+        mArgs0[index] = arg0;
+        mArgs1[index] = arg1;
+        mTimestamps[index] = timestamp;
+        mEventTimes[index] = eventTime;
+        if (!isContinuous) mDiscreteOffered++;
+        mDiscreteCounts[index] = mDiscreteOffered;
+        // publishes the record, a full volatile store so the mWaiter read below can't
+        // be reordered before it and miss a consumer that is about to park
+        mTail.set(tail + 1);
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return true;
+    }
+
+    /**
+     * Drops everything offered so far, the consumer discards it on its next read.
+     * Safe to call from any thread.
+     */
+    public void clear() {
+        mClearedTo = mTail.get();
+    }
+
+    public long getDroppedMoves() {
+        return mDroppedMoves;
+    }
+
+    public long getDroppedDiscrete() {
+        return mDroppedDiscrete;
+    }
+
+    // consumer
+
+    private long head() {
+        long head = mHead.get();
+        long clearedTo = mClearedTo;
+        if (clearedTo > head) {
+            head = clearedTo;
+            mHead.lazySet(head);
+        }
+        return head;
+    }
+
+    public boolean isEmpty() {
+        // the volatile tail read also makes the record fields written before it visible
+        return head() >= mTail.get();
+    }
+
+    public int size() {
+        long head = Math.max(mHead.get(), mClearedTo);
+        return (int) Math.max(0, mTail.get() - head);
+    }
+
+    /**
+     * @return queued discrete events, moves and scrolls not counted
+     */
+    public int discreteSize() {
+        long head = head();
+        long tail = mTail.get();
+        if (head >= tail) return 0;
+        int first = (int) head & mMask;
+        long count = mDiscreteCounts[(int) (tail - 1) & mMask] - mDiscreteCounts[first];
+        if (!WireProtocol.isContinuous(mOpcodes[first])) count++;
+        return (int) count;
+    }
+
+    public int peekOpcode() {
+        return mOpcodes[(int) mHead.get() & mMask];
+    }
+
+    public int peekArg0() {
+        return mArgs0[(int) mHead.get() & mMask];
+    }
+
+    public int peekArg1() {
+        return mArgs1[(int) mHead.get() & mMask];
+    }
+
+    public long peekTimestamp() {
+        return mTimestamps[(int) mHead.get() & mMask];
+    }
+
+    public long peekEventTime() {
+        return mEventTimes[(int) mHead.get() & mMask];
+    }
+
+    /**
+     * Releases the slot returned by the peek methods back to the producer, only valid
+     * after {@link #isEmpty()} returned false.
+     */
+    public void remove() {
+        mHead.lazySet(mHead.get() + 1);
+    }
+
+    /**
+     * Parks the calling consumer until an event is offered, the timeout elapses or the
+     * thread is interrupted. Spurious returns are possible, callers re-check the ring.
+     */
+    public void await(long timeoutNanos) {
+        mWaiter = Thread.currentThread();
+        // an offer() racing with us either sees mWaiter or its event is visible here
+        if (isEmpty()) {
+            LockSupport.parkNanos(this, timeoutNanos);
+        }
+        mWaiter = null;
+    }
+}
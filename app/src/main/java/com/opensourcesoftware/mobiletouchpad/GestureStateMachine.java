@@ -0,0 +1,544 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+/**
+ * Gesture recognition over the raw pointer stream as a table driven state machine.
+ * Every touch event is classified into an {@link Event} for the current {@link State},
+ * then one lookup in the transition table gives the next state and the {@link Action}
+ * to run, {@link #describeTransitions()} lists the table.
+ *
+ * Nothing here depends on Android, events come in as MotionEvent action codes with
+ * the pointer positions copied into plain arrays and time is the event time, so the
+ * same input always gives the same gestures. Timers (long press, hold, single tap
+ * confirmation) are a single deadline the caller polls through {@link #getDeadline()}
+ * and {@link #onTimeout(long)}.
+ *
+ * Distances are in pixels, directions use the WireProtocol KSWIPE_ and KPINCH_ values.
+ */
+public class GestureStateMachine {
+
+    public interface GestureStateMachineListener {
+        void onCursorMove();
+        void onDragBegin();
+        void onDragEnd();
+        void onClick();
+        void onDoubleClick();
+        void onOptionsClick();
+        void onTap(int fingers);
+        void onScrollBegin();
+        // finger motion of the two finger focus since the previous call
+        void onScrollDelta(float dx, float dy, long timeMS);
+        void onScrollEnd(long timeMS);
+        void onSwipe(int direction, int fingers);
+        void onPinch(int direction, int fingers);
+    }
+
+    private final static String TAG = "GestureStateMachine";
+
+    // same values as MotionEvent.ACTION_*
+    public static final int KTOUCH_DOWN = 0;
+    public static final int KTOUCH_UP = 1;
+    public static final int KTOUCH_MOVE = 2;
+    public static final int KTOUCH_CANCEL = 3;
+    public static final int KTOUCH_POINTER_DOWN = 5;
+    public static final int KTOUCH_POINTER_UP = 6;
+
+    public static final int KMAX_POINTERS = 10;
+    public static final long KLONG_PRESS_TIMEOUT_MAX = 500;
+    public static final long KDOUBLE_TAP_TIMEOUT_DEFAULT = 300;
+    public static final float KTOUCH_SLOP_DEFAULT = 8.f;
+    public static final float KDOUBLE_TAP_SLOP_DEFAULT = 100.f;
+    // a second tap sooner than this after the first one lifted is a bounce, as in GestureDetector
+    public static final long KDOUBLE_TAP_MIN_TIME = 40;
+    // span change over the span at the start of a pinch that gives it a direction
+    private static final float KPINCH_RATIO = 0.3f;
+
+    public enum State {
+        stateIdle,
+        // one finger down, not moved yet
+        stateDown,
+        stateMove,
+        stateDrag,
+        // one finger tapped, waiting for a second tap or the confirmation timeout
+        stateTapped,
+        stateDoubleTap,
+        // two or more fingers down, not moved yet
+        stateMultiDown,
+        stateScroll,
+        stateSwipe,
+        statePinch,
+        stateHold,
+        // the gesture was decided, the rest of the touch is ignored
+        stateDone
+    };
+
+    public enum Event {
+        eventDown,
+        // a finger went down near a tap and within the double tap timeout
+        eventDoubleTapDown,
+        eventPointerDown,
+        // a finger was raised and at least two are still down
+        eventPointerUp,
+        // a finger was raised and one is still down
+        eventRelease,
+        eventUp,
+        eventCancel,
+        eventMove,
+        // one finger moved past the touch slop
+        eventSlop,
+        // two fingers moved together past the touch slop
+        eventPan,
+        // three or more fingers moved together past the touch slop
+        eventMultiPan,
+        // the fingers moved apart or together past the span slop
+        eventSpread,
+        // one finger held still for the long press timeout
+        eventLongPress,
+        // two fingers held still for the long press timeout
+        eventHold,
+        eventTimeout
+    };
+
+    public enum Action {
+        doNothing,
+        doTouchBegin,
+        doMultiBegin,
+        doReference,
+        doCursorMove,
+        doDragBegin,
+        doDragEnd,
+        doTapWait,
+        doClick,
+        // the tap wasn't the first of a double tap, click and start the new touch
+        doClickTouchBegin,
+        doDoubleClick,
+        doOptionsClick,
+        doTap,
+        doScrollBegin,
+        doScrollMove,
+        doScrollEnd,
+        doSwipeBegin,
+        doSwipe,
+        doPinchBegin,
+        doPinchMove,
+        doPinch
+    };
+
+    private static final int KSTATES = State.values().length;
+    private static final int KEVENTS = Event.values().length;
+    private static final State[] KNEXT = new State[KSTATES * KEVENTS];
+    private static final Action[] KACTION = new Action[KSTATES * KEVENTS];
+
+    static {
+        for (State s : State.values()) {
+            for (Event e : Event.values()) {
+                on(s, e, s, Action.doNothing);
+            }
+            on(s, Event.eventDown, State.stateDown, Action.doTouchBegin);
+            on(s, Event.eventUp, State.stateIdle, Action.doNothing);
+            on(s, Event.eventCancel, State.stateIdle, Action.doNothing);
+        }
+        on(State.stateDown, Event.eventSlop, State.stateMove, Action.doCursorMove);
+        on(State.stateDown, Event.eventLongPress, State.stateDrag, Action.doDragBegin);
+        on(State.stateDown, Event.eventPointerDown, State.stateMultiDown, Action.doMultiBegin);
+        on(State.stateDown, Event.eventUp, State.stateTapped, Action.doTapWait);
+
+        on(State.stateTapped, Event.eventDoubleTapDown, State.stateDoubleTap, Action.doDoubleClick);
+        on(State.stateTapped, Event.eventDown, State.stateDown, Action.doClickTouchBegin);
+        on(State.stateTapped, Event.eventTimeout, State.stateIdle, Action.doClick);
+
+        on(State.stateMove, Event.eventMove, State.stateMove, Action.doCursorMove);
+        on(State.stateMove, Event.eventPointerDown, State.stateMultiDown, Action.doMultiBegin);
+
+        on(State.stateDrag, Event.eventMove, State.stateDrag, Action.doCursorMove);
+        on(State.stateDrag, Event.eventUp, State.stateIdle, Action.doDragEnd);
+        on(State.stateDrag, Event.eventCancel, State.stateIdle, Action.doDragEnd);
+
+        on(State.stateMultiDown, Event.eventPointerDown, State.stateMultiDown, Action.doMultiBegin);
+        on(State.stateMultiDown, Event.eventPointerUp, State.stateMultiDown, Action.doMultiBegin);
+        on(State.stateMultiDown, Event.eventRelease, State.stateMultiDown, Action.doReference);
+        on(State.stateMultiDown, Event.eventSlop, State.stateMove, Action.doCursorMove);
+        on(State.stateMultiDown, Event.eventPan, State.stateScroll, Action.doScrollBegin);
+        on(State.stateMultiDown, Event.eventMultiPan, State.stateSwipe, Action.doSwipeBegin);
+        on(State.stateMultiDown, Event.eventSpread, State.statePinch, Action.doPinchBegin);
+        on(State.stateMultiDown, Event.eventHold, State.stateHold, Action.doOptionsClick);
+        on(State.stateMultiDown, Event.eventUp, State.stateIdle, Action.doTap);
+
+        on(State.stateScroll, Event.eventMove, State.stateScroll, Action.doScrollMove);
+        on(State.stateScroll, Event.eventPointerDown, State.stateScroll, Action.doReference);
+        on(State.stateScroll, Event.eventPointerUp, State.stateScroll, Action.doReference);
+        on(State.stateScroll, Event.eventRelease, State.stateScroll, Action.doReference);
+        on(State.stateScroll, Event.eventUp, State.stateIdle, Action.doScrollEnd);
+
+        on(State.stateSwipe, Event.eventUp, State.stateIdle, Action.doSwipe);
+
+        on(State.statePinch, Event.eventMove, State.statePinch, Action.doPinchMove);
+        on(State.statePinch, Event.eventRelease, State.stateDone, Action.doPinch);
+    }
+
+    private static void on(State from, Event event, State to, Action action) {
+        int index = from.ordinal() * KEVENTS + event.ordinal();
+        KNEXT[index] = to;
+        KACTION[index] = action;
+    }
+
+    /**
+     * @return every transition that changes the state or does something, one per line
+     */
+    public static String describeTransitions() {
+        StringBuilder sb = new StringBuilder();
+        for (State s : State.values()) {
+            for (Event e : Event.values()) {
+                int index = s.ordinal() * KEVENTS + e.ordinal();
+                if ((KNEXT[index] == s) && (KACTION[index] == Action.doNothing)) continue;
+                sb.append(s).append(" --").append(e).append("--> ").append(KNEXT[index])
+                        .append(" [").append(KACTION[index]).append("]\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    private final GestureStateMachineListener mListener;
+    private State mState = State.stateIdle;
+    private long mLongPressTimeoutMS = KLONG_PRESS_TIMEOUT_MAX;
+    private long mDoubleTapTimeoutMS = KDOUBLE_TAP_TIMEOUT_DEFAULT;
+    private long mBounceTimeOutMS = 55;
+    private float mTouchSlop = KTOUCH_SLOP_DEFAULT;
+    private float mDoubleTapSlop = KDOUBLE_TAP_SLOP_DEFAULT;
+    private long mDeadlineMS = Long.MAX_VALUE;
+
+    // the event being handled
+    private long mTimeMS = 0;
+    private int mPointerCount = 0;
+    private float mFocusX = 0.f;
+    private float mFocusY = 0.f;
+    private float mSpan = 0.f;
+
+    // where the current finger arrangement started
+    private float mRefX = 0.f;
+    private float mRefY = 0.f;
+    private float mRefSpan = 0.f;
+    private float mLastX = 0.f;
+    private float mLastY = 0.f;
+    // where the pending tap went down and when it lifted
+    private float mTapX = 0.f;
+    private float mTapY = 0.f;
+    private long mTapUpMS = 0;
+    private long mLastActionMS = Long.MIN_VALUE / 2;
+    private int mMaxFingers = 0;
+    private int mGestureFingers = 0;
+    private int mSwipeDirection = WireProtocol.KSWIPE_DOWN;
+    private float mPinchSpan = 0.f;
+
+    public GestureStateMachine(GestureStateMachineListener listener) {
+        mListener = listener;
+    }
+
+    public void setLongPressTimeout(long timeoutMS) {
+        Logging.d(TAG, "setLongPressTimeout", timeoutMS);
+        mLongPressTimeoutMS = Math.min(timeoutMS, KLONG_PRESS_TIMEOUT_MAX);
+    }
+
+    public long getLongPressTimeout() {
+        return mLongPressTimeoutMS;
+    }
+
+    public void setDoubleTapTimeout(long timeoutMS) {
+        Logging.d(TAG, "setDoubleTapTimeout", timeoutMS);
+        mDoubleTapTimeoutMS = timeoutMS;
+    }
+
+    /**
+     * @param bounceMS a gesture starting this soon after the previous one is ignored
+     */
+    public void setBounce(long bounceMS) {
+        Logging.d(TAG, "setBounce", bounceMS);
+        mBounceTimeOutMS = bounceMS;
+    }
+
+    /**
+     * @param slop movement in pixels below which the fingers count as still
+     */
+    public void setTouchSlop(float slop) {
+        Logging.d(TAG, "setTouchSlop", slop);
+        mTouchSlop = slop;
+    }
+
+    /**
+     * @param slop distance in pixels between the two taps of a double tap
+     */
+    public void setDoubleTapSlop(float slop) {
+        Logging.d(TAG, "setDoubleTapSlop", slop);
+        mDoubleTapSlop = slop;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * @return event time at which onTimeout has to be called, Long.MAX_VALUE if none
+     */
+    public long getDeadline() {
+        return mDeadlineMS;
+    }
+
+    /**
+     * Feeds one touch event.
+     *
+     * @param action      KTOUCH_ action code, MotionEvent.getActionMasked()
+     * @param actionIndex index of the pointer going down or up
+     * @param x           pointer positions, pointerCount of them
+     */
+    public void onTouchEvent(int action, int actionIndex, int pointerCount, float[] x, float[] y, long timeMS) {
+        mTimeMS = timeMS;
+        pointerCount = Math.min(pointerCount, KMAX_POINTERS);
+        // a pointer going up no longer counts for the focus and span
+        int skip = ((action == KTOUCH_POINTER_UP) || (action == KTOUCH_UP)) ? actionIndex : -1;
+        measure(pointerCount, skip, x, y);
+        fire(classify(action));
+    }
+
+    public void onTimeout(long nowMS) {
+        if (nowMS < mDeadlineMS) return;
+        mDeadlineMS = Long.MAX_VALUE;
+        mTimeMS = nowMS;
+        if (mState == State.stateDown) {
+            fire(Event.eventLongPress);
+        } else if ((mState == State.stateMultiDown) && (mPointerCount == 2)) {
+            fire(Event.eventHold);
+        } else {
+            fire(Event.eventTimeout);
+        }
+    }
+
+    private void measure(int pointerCount, int skip, float[] x, float[] y) {
+        int count = 0;
+        float sumX = 0.f;
+        float sumY = 0.f;
+        for (int p = 0; p < pointerCount; p++) {
+            if (p == skip) continue;
+            sumX += x[p];
+            sumY += y[p];
+            count++;
+        }
+        mPointerCount = count;
+        if (count == 0) return;
+        mFocusX = sumX / count;
+        mFocusY = sumY / count;
+        float sumDist = 0.f;
+        for (int p = 0; p < pointerCount; p++) {
+            if (p == skip) continue;
+            float dx = x[p] - mFocusX;
+            float dy = y[p] - mFocusY;
+            sumDist += (float) Math.sqrt(dx * dx + dy * dy);
+        }
+        // diameter, like ScaleGestureDetector
+        mSpan = 2.f * sumDist / count;
+    }
+
+    private Event classify(int action) {
+        switch (action) {
+            case KTOUCH_DOWN:
+                return isDoubleTap() ? Event.eventDoubleTapDown : Event.eventDown;
+            case KTOUCH_POINTER_DOWN:
+                return Event.eventPointerDown;
+            case KTOUCH_POINTER_UP:
+                return (mPointerCount >= 2) ? Event.eventPointerUp : Event.eventRelease;
+            case KTOUCH_UP:
+                return Event.eventUp;
+            case KTOUCH_CANCEL:
+                return Event.eventCancel;
+            case KTOUCH_MOVE:
+                return classifyMove();
+            default:
+                return Event.eventMove;
+        }
+    }
+
+    private Event classifyMove() {
+        if ((mState != State.stateDown) && (mState != State.stateMultiDown)) return Event.eventMove;
+        float dx = mFocusX - mRefX;
+        float dy = mFocusY - mRefY;
+        boolean moved = (dx * dx + dy * dy) > (mTouchSlop * mTouchSlop);
+        if (mPointerCount == 1) return moved ? Event.eventSlop : Event.eventMove;
+        if (isBounce()) return Event.eventMove;
+        if (Math.abs(mSpan - mRefSpan) > 2.f * mTouchSlop) return Event.eventSpread;
+        if (!moved) return Event.eventMove;
+        return (mPointerCount == 2) ? Event.eventPan : Event.eventMultiPan;
+    }
+
+    private boolean isDoubleTap() {
+        if (mState != State.stateTapped) return false;
+        long sinceUp = mTimeMS - mTapUpMS;
+        if ((sinceUp < KDOUBLE_TAP_MIN_TIME) || (sinceUp > mDoubleTapTimeoutMS)) return false;
+        float dx = mFocusX - mTapX;
+        float dy = mFocusY - mTapY;
+        return (dx * dx + dy * dy) < (mDoubleTapSlop * mDoubleTapSlop);
+    }
+
+    private boolean isBounce() {
+        return (mTimeMS - mLastActionMS) <= mBounceTimeOutMS;
+    }
+
+    private void fire(Event event) {
+        int index = mState.ordinal() * KEVENTS + event.ordinal();
+        State next = KNEXT[index];
+        if (next != mState) {
+            Logging.d(TAG, "fire", mState, event, next);
+            mState = next;
+            // timers belong to the state that armed them
+            mDeadlineMS = Long.MAX_VALUE;
+        }
+        run(KACTION[index]);
+    }
+
+    private void run(Action action) {
+        switch (action) {
+            case doNothing:
+                break;
+            case doClickTouchBegin:
+                mListener.onClick();
+                touchBegin();
+                break;
+            case doTouchBegin:
+                touchBegin();
+                break;
+            case doMultiBegin:
+                mMaxFingers = Math.max(mMaxFingers, mPointerCount);
+                reference();
+                mDeadlineMS = mTimeMS + mLongPressTimeoutMS;
+                break;
+            case doReference:
+                reference();
+                break;
+            case doCursorMove:
+                mListener.onCursorMove();
+                break;
+            case doDragBegin:
+                mLastActionMS = mTimeMS;
+                mListener.onDragBegin();
+                break;
+            case doDragEnd:
+                mListener.onDragEnd();
+                break;
+            case doTapWait:
+                mTapX = mRefX;
+                mTapY = mRefY;
+                mTapUpMS = mTimeMS;
+                // the second tap has the whole window from the first up, however slow the first was
+                mDeadlineMS = mTimeMS + mDoubleTapTimeoutMS;
+                break;
+            case doClick:
+                mListener.onClick();
+                break;
+            case doDoubleClick:
+                mListener.onDoubleClick();
+                break;
+            case doOptionsClick:
+                mLastActionMS = mTimeMS;
+                mListener.onOptionsClick();
+                break;
+            case doTap:
+                mListener.onTap(mMaxFingers);
+                break;
+            case doScrollBegin:
+                mListener.onScrollBegin();
+                // the travel that crossed the slop is part of the scroll
+                mLastX = mRefX;
+                mLastY = mRefY;
+                scrollMove();
+                break;
+            case doScrollMove:
+                if (mPointerCount == 2) scrollMove();
+                break;
+            case doScrollEnd:
+                mListener.onScrollEnd(mTimeMS);
+                break;
+            case doSwipeBegin:
+                mLastActionMS = mTimeMS;
+                mGestureFingers = mPointerCount;
+                mSwipeDirection = getSwipeDirection(mFocusX - mRefX, mFocusY - mRefY);
+                break;
+            case doSwipe:
+                mListener.onSwipe(mSwipeDirection, mGestureFingers);
+                break;
+            case doPinchBegin:
+                mLastActionMS = mTimeMS;
+                mGestureFingers = mPointerCount;
+                mPinchSpan = mSpan;
+                break;
+            case doPinchMove:
+                mPinchSpan = mSpan;
+                break;
+            case doPinch:
+                pinch();
+                break;
+        }
+    }
+
+    private void touchBegin() {
+        mMaxFingers = 1;
+        reference();
+        if (!isBounce()) mDeadlineMS = mTimeMS + mLongPressTimeoutMS;
+    }
+
+    private void reference() {
+        mRefX = mFocusX;
+        mRefY = mFocusY;
+        mRefSpan = mSpan;
+        mLastX = mFocusX;
+        mLastY = mFocusY;
+    }
+
+    private void scrollMove() {
+        mLastActionMS = mTimeMS;
+        float dx = mFocusX - mLastX;
+        float dy = mFocusY - mLastY;
+        mLastX = mFocusX;
+        mLastY = mFocusY;
+        if ((dx != 0.f) || (dy != 0.f)) mListener.onScrollDelta(dx, dy, mTimeMS);
+    }
+
+    private void pinch() {
+        if (mRefSpan <= 0.f) return;
+        float ratio = mPinchSpan / mRefSpan;
+        if (Math.abs(ratio - 1.f) < KPINCH_RATIO) return;
+        mLastActionMS = mTimeMS;
+        // fingers closing is a pinch out, the way the host has always read it
+        mListener.onPinch(ratio < 1.f ? WireProtocol.KPINCH_OUT : WireProtocol.KPINCH_IN, mGestureFingers);
+    }
+
+    /**
+     * @return the KSWIPE_ direction of the dominant axis of a finger displacement
+     */
+    public static int getSwipeDirection(float dx, float dy) {
+        if (Math.abs(dx) > Math.abs(dy)) {
+            return dx < 0.f ? WireProtocol.KSWIPE_LEFT : WireProtocol.KSWIPE_RIGHT;
+        }
+        return dy < 0.f ? WireProtocol.KSWIPE_UP : WireProtocol.KSWIPE_DOWN;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hosts heard from by DiscoveryThread, keyed by IP. A host that hasn't announced
+ * itself for KTTL_NS is evicted. The listener gets a sorted snapshot of the hosts, at
+ * most once per KNOTIFY_INTERVAL_NS however many hosts announce, repeated
+ * announcements of a known host don't count as a change.
+ *
+ * Written by the discovery thread, ticked by the UI, which also persists the hosts
+ * with {@link #save()} so the host list isn't empty on the next start.
+ */
+public class HostRegistry {
+
+    private final static String TAG = "HostRegistry";
+
+    // hosts announce every second, a few missed announcements are tolerated
+    public static final long KTTL_NS = 5000 * 1000000L;
+    public static final long KNOTIFY_INTERVAL_NS = 250 * 1000000L;
+    public static final int KMAX_HOSTS = 64;
+
+    private static final class Entry {
+        DiscoveryThread.MEVSystemItem mItem;
+        long mLastSeenNS;
+    }
+
+    private final HashMap<String, Entry> mHosts = new HashMap<>();
+    private final HostRegistryListener mListener;
+    private boolean mChanged = false;
+    private long mLastNotifyNS = 0;
+    private boolean mNotified = false;
+
+    public interface HostRegistryListener {
+        void onHostsChanged(List<DiscoveryThread.MEVSystemItem> hosts);
+    }
+
+    public HostRegistry(HostRegistryListener listener) {
+        mListener = listener;
+    }
+
+    public void onAnnounce(DiscoveryThread.MEVSystemItem item, long nowNS) {
+        List<DiscoveryThread.MEVSystemItem> hosts;
+        synchronized (this) {
+            put(item, nowNS);
+            hosts = takeChanges(nowNS);
+        }
+        if (hosts != null) mListener.onHostsChanged(hosts);
+    }
+
+    /**
+     * Evicts expired hosts and delivers changes held back by the rate limit, call it
+     * periodically.
+     */
+    public void tick(long nowNS) {
+        List<DiscoveryThread.MEVSystemItem> hosts;
+        synchronized (this) {
+            evictExpired(nowNS);
+            hosts = takeChanges(nowNS);
+        }
+        if (hosts != null) mListener.onHostsChanged(hosts);
+    }
+
+    public synchronized List<DiscoveryThread.MEVSystemItem> getHosts() {
+        return snapshot();
+    }
+
+    public synchronized int size() {
+        return mHosts.size();
+    }
+
+    /**
+     * @return the hosts as NAME{SPACE}IP lines, see {@link #restore(String, long)}
+     */
+    public synchronized String save() {
+        StringBuilder sb = new StringBuilder();
+        for (DiscoveryThread.MEVSystemItem item : snapshot()) {
+            sb.append(item.getName()).append(' ').append(item.getHostIP()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Adds hosts saved by {@link #save()}, they count as just seen and are evicted
+     * after KTTL_NS unless they announce themselves again. Lines that aren't a name and
+     * an IP literal are skipped.
+     */
+    public synchronized void restore(String saved, long nowNS) {
+        if (saved == null) return;
+        for (String line : saved.split("\n")) {
+            String[] parts = line.trim().split("\\s+");
+            if ((parts.length != 2) || !isAddressLiteral(parts[1])) continue;
+            put(new DiscoveryThread.MEVSystemItem(parts[0], parts[1]), nowNS);
+        }
+        Logging.d(TAG, "restore", mHosts.size());
+    }
+
+    /**
+     * Only what getHostAddress() gives, IPv4 or IPv6, no name that would need a lookup.
+     */
+    private static boolean isAddressLiteral(String address) {
+        boolean digit = false;
+        for (int x = 0; x < address.length(); x++) {
+            char c = address.charAt(x);
+            // an IPv6 scope, fe80::1%wlan0
+            if ((c == '%') && (x > 0)) break;
+            if (Character.digit(c, 16) >= 0) {
+                digit = true;
+            } else if ((c != '.') && (c != ':')) {
+                return false;
+            }
+        }
+        return digit;
+    }
+
+    private void put(DiscoveryThread.MEVSystemItem item, long nowNS) {
+        Entry entry = mHosts.get(item.getHostIP());
+        if (entry == null) {
+            if (mHosts.size() >= KMAX_HOSTS) evictOldest();
+            entry = new Entry();
+            mHosts.put(item.getHostIP(), entry);
+            entry.mItem = item;
+            mChanged = true;
+        } else if (!entry.mItem.getName().equals(item.getName())) {
+            entry.mItem = item;
+            mChanged = true;
+        }
+        entry.mLastSeenNS = nowNS;
+    }
+
+    private void evictExpired(long nowNS) {
+        int evicted = 0;
+        Iterator<Entry> it = mHosts.values().iterator();
+        while (it.hasNext()) {
+            if (nowNS - it.next().mLastSeenNS > KTTL_NS) {
+                it.remove();
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            Logging.d(TAG, "evictExpired", evicted);
+            mChanged = true;
+        }
+    }
+
+    private void evictOldest() {
+        String oldest = null;
+        long oldestNS = 0;
+        for (Entry entry : mHosts.values()) {
+            if ((oldest == null) || (entry.mLastSeenNS - oldestNS < 0)) {
+                oldest = entry.mItem.getHostIP();
+                oldestNS = entry.mLastSeenNS;
+            }
+        }
+        mHosts.remove(oldest);
+    }
+
+    private List<DiscoveryThread.MEVSystemItem> takeChanges(long nowNS) {
+        if (!mChanged) return null;
+        if (mNotified && (nowNS - mLastNotifyNS < KNOTIFY_INTERVAL_NS)) return null;
+        mChanged = false;
+        mNotified = true;
+        mLastNotifyNS = nowNS;
+        return snapshot();
+    }
+
+    private List<DiscoveryThread.MEVSystemItem> snapshot() {
+        ArrayList<DiscoveryThread.MEVSystemItem> hosts = new ArrayList<>(mHosts.size());
+        for (Entry entry : mHosts.values()) {
+            hosts.add(entry.mItem);
+        }
+        Collections.sort(hosts, (a, b) -> {
+            int result = a.getName().compareToIgnoreCase(b.getName());
+            return (result != 0) ? result : a.getHostIP().compareTo(b.getHostIP());
+        });
+        return hosts;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import java.io.PrintWriter;
+
+/**
+ * Where the time goes between a finger moving and the command leaving in a datagram,
+ * one {@link LatencyHistogram} per stage. All stamps are System.nanoTime(), touch event
+ * times are uptime milliseconds which on Android is the same monotonic clock, only
+ * coarser, so stages starting at the event read up to 1 ms long.
+ *
+ * stageInput: touch event to the command entering the send queue, the UI thread
+ * handoff and gesture processing, per command
+ * stageQueue: send queue to the sender taking the command off it, per command
+ * stageSend: sender taking the first command of a datagram to the datagram written,
+ * batching wait and the socket write, per datagram
+ * stageTotal: touch event of the oldest command in a datagram to the datagram written,
+ * per datagram
+ */
+public class InputLatency {
+
+    public enum Stage {
+        stageInput,
+        stageQueue,
+        stageSend,
+        stageTotal
+    }
+
+    private static final Stage[] KSTAGES = Stage.values();
+    private static final String[] KSTAGE_NAMES = {"input", "queue", "send", "total"};
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[KSTAGES.length];
+
+    public InputLatency() {
+        for (int x = 0; x < mHistograms.length; x++) {
+            mHistograms[x] = new LatencyHistogram();
+        }
+    }
+
+    public void record(Stage stage, long latencyNS) {
+        mHistograms[stage.ordinal()].record(latencyNS);
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return mHistograms[stage.ordinal()];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        for (Stage stage : KSTAGES) {
+            writer.print(prefix);
+            writer.print(KSTAGE_NAMES[stage.ordinal()]);
+            writer.print(": ");
+            writer.println(getHistogram(stage).format());
+        }
+    }
+
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : KSTAGES) {
+            sb.append(KSTAGE_NAMES[stage.ordinal()]).append('\n');
+            sb.append("  ").append(getHistogram(stage).format()).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import android.content.pm.ActivityInfo;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.MenuItem;
+import android.widget.Button;
+import android.widget.TextView;
+
+import androidx.appcompat.app.ActionBar;
+import androidx.appcompat.app.AppCompatActivity;
+
+/**
+ * Debug screen with the input latency percentiles per stage, see {@link InputLatency}.
+ * Touch on the touchpad, come back here and read where the time went.
+ */
+public class LatencyActivity extends AppCompatActivity {
+
+    private static final String TAG = "LatencyActivity";
+    private static final long KREFRESH_MS = 500;
+
+    private final Handler mHandler = new Handler();
+    private TextView tvLatency = null;
+
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            mHandler.postDelayed(this, KREFRESH_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        Logging.d(TAG, "onCreate");
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.latency_activity);
+        setTitle(getResources().getString(R.string.title_activity_latency));
+        setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
+        ActionBar actionBar = getSupportActionBar();
+        if (actionBar != null) {
+            actionBar.setDisplayHomeAsUpEnabled(true);
+        }
+        tvLatency = findViewById(R.id.tvLatency);
+        Button btnLatencyReset = findViewById(R.id.btnLatencyReset);
+        btnLatencyReset.setOnClickListener(v -> {
+            Logging.d(TAG, "btnLatencyReset.onClick");
+            TouchpadActivity.mInputLatency.reset();
+            refresh();
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        Logging.d(TAG, "onResume");
+        super.onResume();
+        mHandler.post(mRefreshRunnable);
+    }
+
+    @Override
+    protected void onPause() {
+        Logging.d(TAG, "onPause");
+        super.onPause();
+        mHandler.removeCallbacks(mRefreshRunnable);
+    }
+
+    private void refresh() {
+        tvLatency.setText(TouchpadActivity.mInputLatency.format());
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        Logging.d(TAG, "onOptionsItemSelected");
+        if (item.getItemId() == android.R.id.home) {
+            onBackPressed();
+        }
+        return true;
+    }
+}
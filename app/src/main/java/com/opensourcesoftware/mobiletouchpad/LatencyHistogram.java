@@ -0,0 +1,134 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed bucket latency histogram that never allocates once created. Buckets are log
+ * linear over microseconds, each power of two split in KSUB_BUCKETS, so percentiles are
+ * within 1/KSUB_BUCKETS of the recorded value from 1 us to over a minute. Recording
+ * takes no lock, the counters are atomics, so it stays cheap on the input and send
+ * paths. Readers see the buckets as they are while being written, a percentile may miss
+ * a sample recorded meanwhile, as may a reset.
+ */
+public class LatencyHistogram {
+
+    private static final int KSUB_BITS = 3;
+    private static final int KSUB_BUCKETS = 1 << KSUB_BITS;
+    // 2^26 us, a bit over a minute, anything longer lands in the last bucket
+    private static final int KMAX_EXPONENT = 26;
+    public static final int KBUCKETS = (KMAX_EXPONENT - KSUB_BITS + 2) * KSUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(KBUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumNS = new AtomicLong();
+    private final AtomicLong mMaxNS = new AtomicLong();
+
+    static int getBucket(long valueUS) {
+        if (valueUS < KSUB_BUCKETS) return (int) Math.max(valueUS, 0);
+        int exponent = 63 - Long.numberOfLeadingZeros(valueUS);
+        if (exponent > KMAX_EXPONENT) return KBUCKETS - 1;
+        int sub = (int) (valueUS >>> (exponent - KSUB_BITS)) & (KSUB_BUCKETS - 1);
+        return (exponent - KSUB_BITS + 1) * KSUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value in microseconds that falls into bucket
+     */
+    static long getBucketLimitUS(int bucket) {
+        if (bucket < KSUB_BUCKETS) return bucket;
+        int exponent = bucket / KSUB_BUCKETS + KSUB_BITS - 1;
+        int sub = bucket % KSUB_BUCKETS;
+        return ((long) (KSUB_BUCKETS + sub + 1) << (exponent - KSUB_BITS)) - 1;
+    }
+
+    public void record(long valueNS) {
+        // clocks that went backwards count as 0
+        if (valueNS < 0) valueNS = 0;
+        mCounts.incrementAndGet(getBucket(valueNS / 1000));
+        mCount.incrementAndGet();
+        mSumNS.addAndGet(valueNS);
+        long max = mMaxNS.get();
+        while ((valueNS > max) && !mMaxNS.compareAndSet(max, valueNS)) {
+            max = mMaxNS.get();
+        }
+    }
+
+    public void reset() {
+        for (int x = 0; x < KBUCKETS; x++) {
+            mCounts.set(x, 0);
+        }
+        mCount.set(0);
+        mSumNS.set(0);
+        mMaxNS.set(0);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMeanNS() {
+        long count = mCount.get();
+        return (count > 0) ? mSumNS.get() / count : 0;
+    }
+
+    public long getMaxNS() {
+        return mMaxNS.get();
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return upper bound of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    public long getPercentileNS(double percentile) {
+        // ranked against the buckets themselves, mCount may be ahead of them
+        long count = 0;
+        for (int x = 0; x < KBUCKETS; x++) {
+            count += mCounts.get(x);
+        }
+        if (count == 0) return 0;
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        rank = Math.max(1, Math.min(count, rank));
+        long maxNS = mMaxNS.get();
+        long seen = 0;
+        for (int x = 0; x < KBUCKETS; x++) {
+            seen += mCounts.get(x);
+            if (seen >= rank) return Math.min(getBucketLimitUS(x) * 1000 + 999, maxNS);
+        }
+        return maxNS;
+    }
+
+    public String format() {
+        return String.format(Locale.ENGLISH, "n %d  p50 %.2f  p95 %.2f  p99 %.2f  max %.2f ms",
+                getCount(),
+                getPercentileNS(50) / 1e6,
+                getPercentileNS(95) / 1e6,
+                getPercentileNS(99) / 1e6,
+                getMaxNS() / 1e6);
+    }
+}
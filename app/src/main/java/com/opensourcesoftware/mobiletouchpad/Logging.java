@@ -26,29 +26,139 @@ package com.opensourcesoftware.mobiletouchpad;
 
 import android.util.Log;
 
+/**
+ * Logging with the level fixed at build time by BuildConfig.LOG_LEVEL, the checks are
+ * compile time constants so disabled levels cost nothing.
+ *
+ * Messages with values use the overloads taking arguments, appended space separated,
+ * or a {@link MessageSupplier}; neither builds a string while the level is off. Call
+ * sites that fire per touch sample or per sensor event log at verbose level through a
+ * {@link RateLimit}.
+ */
 public class Logging {
 
-    private static boolean LogDebug = true;
-    private static boolean LogError = true;
+    public static final int KLEVEL_NONE = 0;
+    public static final int KLEVEL_ERROR = 1;
+    public static final int KLEVEL_DEBUG = 2;
+    public static final int KLEVEL_VERBOSE = 3;
+
+    public static final int LEVEL = BuildConfig.LOG_LEVEL;
+    public static final boolean ERROR = LEVEL >= KLEVEL_ERROR;
+    public static final boolean DEBUG = LEVEL >= KLEVEL_DEBUG;
+    public static final boolean VERBOSE = LEVEL >= KLEVEL_VERBOSE;
+
     public static final int LogDebugDisabledRet = 0;
     public static final int LogErrorDisabledRet = 0;
 
+    public interface MessageSupplier {
+        String get();
+    }
+
+    /**
+     * Lets one message through per interval, the ones held back are counted and reported
+     * with the next message that goes out.
+     */
+    public static final class RateLimit {
+        private final long mIntervalNS;
+        private long mNextNS = Long.MIN_VALUE;
+        private int mSuppressed = 0;
+
+        public RateLimit(long intervalMS) {
+            mIntervalNS = intervalMS * 1000000L;
+        }
+
+        private boolean acquire() {
+            long now = System.nanoTime();
+            if (now - mNextNS < 0) {
+                mSuppressed++;
+                return false;
+            }
+            mNextNS = now + mIntervalNS;
+            return true;
+        }
+
+        private String suffix() {
+            if (mSuppressed == 0) return "";
+            String suffix = " (+" + mSuppressed + " suppressed)";
+            mSuppressed = 0;
+            return suffix;
+        }
+    }
+
     public static int d(String tag, String msg) {
-        return LogDebug ? Log.d(tag, msg) : LogDebugDisabledRet;
+        return DEBUG ? Log.d(tag, msg) : LogDebugDisabledRet;
     }
 
     public static int d(String tag, String msg, Throwable tr) {
-        return LogDebug ? Log.d(tag, msg, tr) : LogDebugDisabledRet;
+        return DEBUG ? Log.d(tag, msg, tr) : LogDebugDisabledRet;
+    }
+
+    public static int d(String tag, String msg, long a) {
+        return DEBUG ? Log.d(tag, msg + " " + a) : LogDebugDisabledRet;
+    }
+
+    public static int d(String tag, String msg, long a, long b) {
+        return DEBUG ? Log.d(tag, msg + " " + a + " " + b) : LogDebugDisabledRet;
+    }
+
+    public static int d(String tag, String msg, double a) {
+        return DEBUG ? Log.d(tag, msg + " " + a) : LogDebugDisabledRet;
+    }
+
+    public static int d(String tag, String msg, double a, double b) {
+        return DEBUG ? Log.d(tag, msg + " " + a + " " + b) : LogDebugDisabledRet;
+    }
+
+    public static int d(String tag, String msg, boolean a) {
+        return DEBUG ? Log.d(tag, msg + " " + a) : LogDebugDisabledRet;
+    }
+
+    public static int d(String tag, String msg, Object a) {
+        return DEBUG ? Log.d(tag, msg + " " + a) : LogDebugDisabledRet;
+    }
+
+    public static int d(String tag, String msg, Object a, Object b) {
+        return DEBUG ? Log.d(tag, msg + " " + a + " " + b) : LogDebugDisabledRet;
+    }
+
+    public static int d(String tag, String msg, Object a, Object b, Object c) {
+        return DEBUG ? Log.d(tag, msg + " " + a + " " + b + " " + c) : LogDebugDisabledRet;
+    }
+
+    public static int d(String tag, MessageSupplier msg) {
+        return DEBUG ? Log.d(tag, msg.get()) : LogDebugDisabledRet;
+    }
+
+    public static int v(String tag, RateLimit limit, String msg) {
+        if (!VERBOSE || !limit.acquire()) return LogDebugDisabledRet;
+        return Log.v(tag, msg + limit.suffix());
+    }
+
+    public static int v(String tag, RateLimit limit, String msg, long a) {
+        if (!VERBOSE || !limit.acquire()) return LogDebugDisabledRet;
+        return Log.v(tag, msg + " " + a + limit.suffix());
+    }
+
+    public static int v(String tag, RateLimit limit, String msg, long a, long b) {
+        if (!VERBOSE || !limit.acquire()) return LogDebugDisabledRet;
+        return Log.v(tag, msg + " " + a + " " + b + limit.suffix());
+    }
+
+    public static int v(String tag, RateLimit limit, String msg, double a, double b) {
+        if (!VERBOSE || !limit.acquire()) return LogDebugDisabledRet;
+        return Log.v(tag, msg + " " + a + " " + b + limit.suffix());
     }
 
     public static int e(String tag, String msg) {
-        return LogError ? Log.e(tag, msg) : LogErrorDisabledRet;
+        return ERROR ? Log.e(tag, msg) : LogErrorDisabledRet;
     }
 
     public static int e(String tag, String msg, Throwable tr) {
-        return LogError ? Log.e(tag, msg, tr) : LogErrorDisabledRet;
+        return ERROR ? Log.e(tag, msg, tr) : LogErrorDisabledRet;
     }
 
-}
-
+    public static int e(String tag, String msg, Object a, Throwable tr) {
+        return ERROR ? Log.e(tag, msg + " " + a, tr) : LogErrorDisabledRet;
+    }
 
+}
@@ -0,0 +1,174 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+/**
+ * Turns the positions of one pointer into cursor motion. Every sample is integrated,
+ * historical ones included, each step is clamped and scaled on its own and the
+ * fraction left after rounding is carried into the next move, so the total motion
+ * doesn't depend on how the OS batches samples into MotionEvents.
+ *
+ * Positions are converted to motion units with the unit scale first, so the step
+ * clamp and the speeds the AccelerationCurve sees are in those units too.
+ *
+ * Each step is also multiplied by the gain of the AccelerationCurve at the current
+ * finger speed, taken from the sample timestamps.
+ */
+public class MotionIntegrator {
+
+    // weight of the newest step in the smoothed speed
+    private static final float KSPEED_SMOOTHING = 0.5f;
+
+    private float mMaxStep = 100.f;
+    private float mMultiplier = 1.f;
+    private float mUnitScale = 1.f;
+    private AccelerationCurve mCurve = AccelerationCurve.linear();
+    private float mLastX = 0.f;
+    private float mLastY = 0.f;
+    private long mLastTimeMS = 0;
+    private boolean mHasLast = false;
+    // motion units per millisecond
+    private float mSpeed = 0.f;
+    // cursor position integrated since reset and the part of it already sent
+    private double mPosX = 0.;
+    private double mPosY = 0.;
+    private double mSentX = 0.;
+    private double mSentY = 0.;
+    private int mMoveX = 0;
+    private int mMoveY = 0;
+
+    /**
+     * @param maxStep largest distance a single sample may move along an axis, in motion units
+     */
+    public void setMaxStep(float maxStep) {
+        mMaxStep = maxStep;
+    }
+
+    public void setMultiplier(float multiplier) {
+        mMultiplier = multiplier;
+    }
+
+    /**
+     * @param unitScale motion units per screen pixel
+     */
+    public void setUnitScale(float unitScale) {
+        mUnitScale = unitScale;
+    }
+
+    public void setAccelerationCurve(AccelerationCurve curve) {
+        mCurve = curve;
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    public double getPositionX() {
+        return mPosX;
+    }
+
+    public double getPositionY() {
+        return mPosY;
+    }
+
+    /**
+     * Starts integrating from x, y, e.g. when the tracked pointer goes down or changes.
+     */
+    public void reset(float x, float y, long timeMS) {
+        mLastX = x;
+        mLastY = y;
+        mLastTimeMS = timeMS;
+        mHasLast = true;
+        mSpeed = 0.f;
+        mPosX = 0.;
+        mPosY = 0.;
+        clear();
+    }
+
+    /**
+     * Drops the motion integrated so far but keeps the last position.
+     */
+    public void clear() {
+        mSentX = mPosX;
+        mSentY = mPosY;
+    }
+
+    private float clampStep(float step) {
+        if (step > mMaxStep) return mMaxStep;
+        if (step < -mMaxStep) return -mMaxStep;
+        return step;
+    }
+
+    public void addSample(float x, float y, long timeMS) {
+        if (mHasLast) {
+            float dx = clampStep((x - mLastX) * mUnitScale);
+            float dy = clampStep((y - mLastY) * mUnitScale);
+            long dt = timeMS - mLastTimeMS;
+            // samples sharing a timestamp keep the previous speed
+            if (dt > 0) {
+                float speed = (float) Math.sqrt(dx * dx + dy * dy) / dt;
+                mSpeed += (speed - mSpeed) * KSPEED_SMOOTHING;
+            }
+            float gain = mCurve.getGain(mSpeed) * mMultiplier;
+            mPosX += dx * gain;
+            mPosY += dy * gain;
+        }
+        mLastX = x;
+        mLastY = y;
+        mLastTimeMS = timeMS;
+        mHasLast = true;
+    }
+
+    /**
+     * Takes the whole pixels integrated so far into getMoveX/getMoveY, the fraction
+     * stays for the next call.
+     *
+     * @return false if there is not a whole pixel to move yet
+     */
+    public boolean takeMove() {
+        return takeMoveTo(mPosX, mPosY);
+    }
+
+    /**
+     * Like takeMove but moves towards x, y instead of the integrated position, e.g. a
+     * predicted one. Moving back to the integrated position later corrects the difference.
+     */
+    public boolean takeMoveTo(double x, double y) {
+        mMoveX = (int) Math.round(x - mSentX);
+        mMoveY = (int) Math.round(y - mSentY);
+        if ((mMoveX == 0) && (mMoveY == 0)) return false;
+        mSentX += mMoveX;
+        mSentY += mMoveY;
+        return true;
+    }
+
+    public int getMoveX() {
+        return mMoveX;
+    }
+
+    public int getMoveY() {
+        return mMoveY;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import java.util.Locale;
+
+/**
+ * Alpha-beta filter over the integrated cursor position, extrapolates it by a horizon
+ * to hide the network and host latency. Each new sample pulls the estimate back
+ * towards the measured position by alpha (and the velocity by beta), so a wrong guess
+ * is corrected over a few samples instead of jumping.
+ *
+ * Every prediction is checked against the measured position once its target time has
+ * passed, the error statistics are compared with the error of not predicting at all
+ * (the position H ms ago), which is what the horizon has to beat.
+ */
+public class MotionPredictor {
+
+    public static final int KHORIZON_MIN_MS = 0;
+    public static final int KHORIZON_MAX_MS = 50;
+    private static final float KALPHA = 0.6f;
+    private static final float KBETA = 0.2f;
+    // predictions waiting for their target time
+    private static final int KPENDING = 32;
+
+    public static class Stats {
+        private long mCount;
+        private double mSumError;
+        private double mSumSquaredError;
+        private double mMaxError;
+        private double mSumBaselineError;
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public double getMeanError() {
+            return (mCount > 0) ? mSumError / mCount : 0.;
+        }
+
+        public double getRmsError() {
+            return (mCount > 0) ? Math.sqrt(mSumSquaredError / mCount) : 0.;
+        }
+
+        public double getMaxError() {
+            return mMaxError;
+        }
+
+        /**
+         * @return mean error of sending the measured position, no prediction
+         */
+        public double getMeanBaselineError() {
+            return (mCount > 0) ? mSumBaselineError / mCount : 0.;
+        }
+
+        public String format() {
+            return String.format(Locale.ENGLISH, "n %d  err %.2f rms %.2f max %.2f  no prediction %.2f",
+                    mCount, getMeanError(), getRmsError(), getMaxError(), getMeanBaselineError());
+        }
+    }
+
+    private int mHorizonMS = 0;
+    private boolean mHasState = false;
+    private long mLastTimeMS = 0;
+    private double mX = 0.;
+    private double mY = 0.;
+    // motion units per millisecond
+    private double mVX = 0.;
+    private double mVY = 0.;
+    private final long[] mPendingTimeMS = new long[KPENDING];
+    private final double[] mPendingX = new double[KPENDING];
+    private final double[] mPendingY = new double[KPENDING];
+    private final double[] mPendingBaseX = new double[KPENDING];
+    private final double[] mPendingBaseY = new double[KPENDING];
+    private int mPendingHead = 0;
+    private int mPendingCount = 0;
+    private final Stats mStats = new Stats();
+
+    public void setHorizon(int horizonMS) {
+        mHorizonMS = Math.max(KHORIZON_MIN_MS, Math.min(horizonMS, KHORIZON_MAX_MS));
+    }
+
+    public boolean isEnabled() {
+        return mHorizonMS > 0;
+    }
+
+    /**
+     * Forgets the motion, e.g. when the tracked pointer goes down or changes.
+     */
+    public void reset() {
+        mHasState = false;
+        mPendingCount = 0;
+    }
+
+    public void resetStats() {
+        mStats.mCount = 0;
+        mStats.mSumError = 0.;
+        mStats.mSumSquaredError = 0.;
+        mStats.mMaxError = 0.;
+        mStats.mSumBaselineError = 0.;
+    }
+
+    public Stats getStats() {
+        return mStats;
+    }
+
+    private void checkPending(double x, double y, long timeMS) {
+        while ((mPendingCount > 0) && (mPendingTimeMS[mPendingHead] <= timeMS)) {
+            double error = Math.hypot(mPendingX[mPendingHead] - x, mPendingY[mPendingHead] - y);
+            mStats.mCount++;
+            mStats.mSumError += error;
+            mStats.mSumSquaredError += error * error;
+            mStats.mMaxError = Math.max(mStats.mMaxError, error);
+            mStats.mSumBaselineError += Math.hypot(mPendingBaseX[mPendingHead] - x, mPendingBaseY[mPendingHead] - y);
+            mPendingHead = (mPendingHead + 1) % KPENDING;
+            mPendingCount--;
+        }
+    }
+
+    private void addPending(double x, double y, long timeMS) {
+        if (mPendingCount == KPENDING) {
+            // oldest one never got checked, drop it
+            mPendingHead = (mPendingHead + 1) % KPENDING;
+            mPendingCount--;
+        }
+        int slot = (mPendingHead + mPendingCount) % KPENDING;
+        mPendingTimeMS[slot] = timeMS + mHorizonMS;
+        mPendingX[slot] = getPredictedX();
+        mPendingY[slot] = getPredictedY();
+        mPendingBaseX[slot] = x;
+        mPendingBaseY[slot] = y;
+        mPendingCount++;
+    }
+
+    /**
+     * @param x integrated cursor position, see MotionIntegrator
+     */
+    public void addSample(double x, double y, long timeMS) {
+        long dt = timeMS - mLastTimeMS;
+        if (!mHasState) {
+            mX = x;
+            mY = y;
+            mVX = 0.;
+            mVY = 0.;
+            mHasState = true;
+        } else if (dt > 0) {
+            double px = mX + mVX * dt;
+            double py = mY + mVY * dt;
+            double rx = x - px;
+            double ry = y - py;
+            mX = px + KALPHA * rx;
+            mY = py + KALPHA * ry;
+            mVX += KBETA * rx / dt;
+            mVY += KBETA * ry / dt;
+        } else {
+            // same timestamp, only the position is updated
+            mX += KALPHA * (x - mX);
+            mY += KALPHA * (y - mY);
+        }
+        mLastTimeMS = timeMS;
+        checkPending(x, y, timeMS);
+        if (isEnabled()) addPending(x, y, timeMS);
+    }
+
+    public double getPredictedX() {
+        return mX + mVX * mHorizonMS;
+    }
+
+    public double getPredictedY() {
+        return mY + mVY * mHorizonMS;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import java.util.Arrays;
+
+/**
+ * Discrete commands sent with a sequence number and kept until the host acknowledges
+ * them, so a lost drag end or click gets retransmitted instead of leaving the host
+ * stuck. Moves never go through here, a lost move is simply superseded by the next.
+ *
+ * The retransmit timeout follows the measured ack round trip (Karn's rule, only
+ * commands acked on their first transmission are sampled). Filled by the sender,
+ * acknowledged by the receiver.
+ */
+public class RetransmitQueue {
+
+    public static final int KCAPACITY = 32;
+    public static final int KMAX_RETRIES = 5;
+    private static final long KRTO_MIN_NS = 20 * 1000000L;
+    private static final long KRTO_MAX_NS = 250 * 1000000L;
+    private static final long KRTO_INITIAL_NS = 60 * 1000000L;
+    private static final long KBACKOFF_MAX_NS = 1000 * 1000000L;
+
+    private final int[] mSeqs = new int[KCAPACITY];
+    private final int[] mOpcodes = new int[KCAPACITY];
+    private final int[] mArgs0 = new int[KCAPACITY];
+    private final int[] mArgs1 = new int[KCAPACITY];
+    private final long[] mFirstSentNS = new long[KCAPACITY];
+    private final long[] mNextSendNS = new long[KCAPACITY];
+    private final int[] mRetries = new int[KCAPACITY];
+    private int mNextSeq = 1;
+    private long mSmoothedRttNS = 0;
+    private long mRtoNS = KRTO_INITIAL_NS;
+    private long mRetransmitCount = 0;
+    private long mGivenUpCount = 0;
+
+    /**
+     * Starts tracking a command that is about to be sent for the first time.
+     *
+     * @return the sequence number to put on the wire
+     */
+    public synchronized int track(int opcode, int arg0, int arg1, long nowNS) {
+        int seq = mNextSeq++;
+        if (mNextSeq <= 0) mNextSeq = 1;
+        int slot = freeSlot();
+        mSeqs[slot] = seq;
+        mOpcodes[slot] = opcode;
+        mArgs0[slot] = arg0;
+        mArgs1[slot] = arg1;
+        mFirstSentNS[slot] = nowNS;
+        mNextSendNS[slot] = nowNS + mRtoNS;
+        mRetries[slot] = 0;
+        return seq;
+    }
+
+    private int freeSlot() {
+        int oldest = 0;
+        for (int x = 0; x < KCAPACITY; x++) {
+            if (mSeqs[x] == 0) return x;
+            if (mFirstSentNS[x] < mFirstSentNS[oldest]) oldest = x;
+        }
+        // full, the oldest unacknowledged command is given up on
+        mGivenUpCount++;
+        return oldest;
+    }
+
+    public synchronized void onAck(int seq, long nowNS) {
+        for (int x = 0; x < KCAPACITY; x++) {
+            if (mSeqs[x] != seq) continue;
+            if (mRetries[x] == 0) {
+                long rtt = nowNS - mFirstSentNS[x];
+                mSmoothedRttNS = (mSmoothedRttNS == 0) ? rtt : (7 * mSmoothedRttNS + rtt) / 8;
+                mRtoNS = Math.max(KRTO_MIN_NS, Math.min(KRTO_MAX_NS, 2 * mSmoothedRttNS));
+            }
+            mSeqs[x] = 0;
+            return;
+        }
+    }
+
+    /**
+     * @return when the next retransmission is due, Long.MAX_VALUE if nothing is pending
+     */
+    public synchronized long getNextDeadlineNS() {
+        long deadline = Long.MAX_VALUE;
+        for (int x = 0; x < KCAPACITY; x++) {
+            if ((mSeqs[x] != 0) && (mNextSendNS[x] < deadline)) deadline = mNextSendNS[x];
+        }
+        return deadline;
+    }
+
+    /**
+     * Copies the commands due for retransmission into the caller's arrays and schedules
+     * their next attempt with exponential backoff. Commands past KMAX_RETRIES are dropped.
+     *
+     * @return number of commands copied
+     */
+    public synchronized int collectDue(long nowNS, int[] seqs, int[] opcodes, int[] args0, int[] args1) {
+        int count = 0;
+        for (int x = 0; (x < KCAPACITY) && (count < seqs.length); x++) {
+            if ((mSeqs[x] == 0) || (mNextSendNS[x] > nowNS)) continue;
+            if (mRetries[x] >= KMAX_RETRIES) {
+                mSeqs[x] = 0;
+                mGivenUpCount++;
+                continue;
+            }
+            mRetries[x]++;
+            mNextSendNS[x] = nowNS + Math.min(KBACKOFF_MAX_NS, mRtoNS << mRetries[x]);
+            seqs[count] = mSeqs[x];
+            opcodes[count] = mOpcodes[x];
+            args0[count] = mArgs0[x];
+            args1[count] = mArgs1[x];
+            count++;
+        }
+        mRetransmitCount += count;
+        return count;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(mSeqs, 0);
+    }
+
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (int seq : mSeqs) {
+            if (seq != 0) count++;
+        }
+        return count;
+    }
+
+    public synchronized long getRetransmitCount() {
+        return mRetransmitCount;
+    }
+
+    public synchronized long getGivenUpCount() {
+        return mGivenUpCount;
+    }
+}
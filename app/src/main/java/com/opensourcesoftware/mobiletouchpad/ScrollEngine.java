@@ -0,0 +1,142 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+/**
+ * Two finger scrolling with momentum. While the fingers move every delta is passed
+ * straight on and a velocity estimate is kept; when they lift fast enough the scroll
+ * keeps going in frames that decay exponentially, until it stops or a new touch
+ * cancels it. Frames are driven from outside at display cadence through
+ * {@link #step(long)}.
+ *
+ * Deltas are signed, negative scrolls up/left the way the legacy SCROLL_UP and
+ * SCROLL_LEFT commands do, in motion units.
+ */
+public class ScrollEngine {
+
+    public interface ScrollEngineListener {
+        void onScroll(float dx, float dy);
+    }
+
+    // weight of the newest delta in the velocity estimate
+    private static final float KVELOCITY_SMOOTHING = 0.4f;
+    // a scroll whose last delta is older than this when the fingers lift has stopped
+    private static final long KFLING_STALE_MS = 80;
+    // motion units per millisecond
+    private static final float KFLING_MIN_SPEED = 0.3f;
+    private static final float KFLING_MAX_SPEED = 12.f;
+    private static final float KFLING_STOP_SPEED = 0.02f;
+    // velocity time constant, it falls to 1/e every KFRICTION_TAU_MS
+    private static final float KFRICTION_TAU_MS = 325.f;
+    private static final long KFLING_MAX_NS = 4000 * 1000000L;
+
+    private final ScrollEngineListener mListener;
+    private long mLastDeltaMS = 0;
+    private boolean mHasDelta = false;
+    private float mVX = 0.f;
+    private float mVY = 0.f;
+    private boolean mFlinging = false;
+    private long mFlingStartNS = 0;
+    private long mLastFrameNS = 0;
+
+    public ScrollEngine(ScrollEngineListener listener) {
+        mListener = listener;
+    }
+
+    public boolean isFlinging() {
+        return mFlinging;
+    }
+
+    /**
+     * Starts a finger scroll, any fling still running is stopped.
+     */
+    public void begin() {
+        cancel();
+        mHasDelta = false;
+        mVX = 0.f;
+        mVY = 0.f;
+    }
+
+    public void cancel() {
+        mFlinging = false;
+    }
+
+    public void addDelta(float dx, float dy, long timeMS) {
+        if (mHasDelta) {
+            long dt = timeMS - mLastDeltaMS;
+            if (dt > 0) {
+                mVX += (dx / dt - mVX) * KVELOCITY_SMOOTHING;
+                mVY += (dy / dt - mVY) * KVELOCITY_SMOOTHING;
+            }
+        }
+        mLastDeltaMS = timeMS;
+        mHasDelta = true;
+        mListener.onScroll(dx, dy);
+    }
+
+    /**
+     * Called when the fingers lift.
+     *
+     * @return true if the scroll goes on with inertia, step() has to be called each frame
+     */
+    public boolean fling(long timeMS, long nowNS) {
+        if (!mHasDelta || (timeMS - mLastDeltaMS > KFLING_STALE_MS)) return false;
+        float speed = (float) Math.sqrt(mVX * mVX + mVY * mVY);
+        if (speed < KFLING_MIN_SPEED) return false;
+        if (speed > KFLING_MAX_SPEED) {
+            mVX *= KFLING_MAX_SPEED / speed;
+            mVY *= KFLING_MAX_SPEED / speed;
+        }
+        mFlinging = true;
+        mFlingStartNS = nowNS;
+        mLastFrameNS = nowNS;
+        return true;
+    }
+
+    /**
+     * Emits the inertial scroll since the previous frame.
+     *
+     * @return true while the fling goes on
+     */
+    public boolean step(long frameTimeNS) {
+        if (!mFlinging) return false;
+        float dt = (frameTimeNS - mLastFrameNS) / 1000000.f;
+        if (dt <= 0.f) return true;
+        mLastFrameNS = frameTimeNS;
+        // exact integral of the exponentially decaying velocity over the frame
+        float decay = (float) Math.exp(-dt / KFRICTION_TAU_MS);
+        float travel = KFRICTION_TAU_MS * (1.f - decay);
+        float dx = mVX * travel;
+        float dy = mVY * travel;
+        mVX *= decay;
+        mVY *= decay;
+        mListener.onScroll(dx, dy);
+        float speed = (float) Math.sqrt(mVX * mVX + mVY * mVY);
+        if ((speed < KFLING_STOP_SPEED) || (frameTimeNS - mFlingStartNS > KFLING_MAX_NS)) {
+            mFlinging = false;
+        }
+        return mFlinging;
+    }
+}
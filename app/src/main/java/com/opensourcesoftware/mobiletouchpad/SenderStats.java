@@ -0,0 +1,94 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+/**
+ * Running totals of what the sender put on the wire. Outlives the sender threads so
+ * the numbers carry across restarts. Written by the sender only, read by the UI.
+ */
+public class SenderStats {
+
+    private volatile long mPackets = 0;
+    private volatile long mBytes = 0;
+    private volatile long mCoalesced = 0;
+    private volatile long mLastSendNS = 0;
+    private volatile long mShedMoves = 0;
+    private volatile long mShedDiscrete = 0;
+
+    public void onFrameSent(int bytes, long nowNS) {
+        mPackets++;
+        mBytes += bytes;
+        mLastSendNS = nowNS;
+    }
+
+    public void onCoalesced() {
+        mCoalesced++;
+    }
+
+    public void onShed(boolean continuous) {
+        if (continuous) {
+            mShedMoves++;
+        } else {
+            mShedDiscrete++;
+        }
+    }
+
+    public long getPackets() {
+        return mPackets;
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return moves and scrolls folded into a preceding one instead of sent on their own
+     */
+    public long getCoalesced() {
+        return mCoalesced;
+    }
+
+    /**
+     * @return moves and scrolls dropped unsent for being older than the move deadline
+     */
+    public long getShedMoves() {
+        return mShedMoves;
+    }
+
+    /**
+     * @return the oldest discrete commands dropped unsent while more than the discrete
+     * backlog were queued, drag begin/end are never dropped
+     */
+    public long getShedDiscrete() {
+        return mShedDiscrete;
+    }
+
+    /**
+     * @return System.nanoTime() of the last datagram written, 0 if none yet
+     */
+    public long getLastSendNS() {
+        return mLastSendNS;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+
+/**
+ * Owns the sender lifecycle: resolves the host, runs a UDPClientThread and when the
+ * sender dies starts a new one after a jittered exponential backoff. The command ring
+ * and the RetransmitQueue outlive the sender, so queued and unacknowledged discrete
+ * commands survive a restart.
+ */
+public class SenderSupervisor extends Thread {
+
+    private final static String TAG = "SenderSupervisor";
+
+    public enum State {
+        resolving,
+        running,
+        backoff,
+        stopped
+    }
+
+    public interface SenderSupervisorListener {
+        /**
+         * Called on the supervisor thread.
+         *
+         * @param retryInMS delay before the next attempt, only meaningful in backoff
+         */
+        void onSenderStateChanged(State state, int failures, long retryInMS);
+    }
+
+    private static final long KBACKOFF_MIN_MS = 10;
+    private static final long KBACKOFF_MAX_MS = 5000;
+    // a sender that ran this long without failing resets the backoff
+    private static final long KSTABLE_MS = 10000;
+
+    private final String mHostName;
+    private final int mHostPort;
+    private final GestureEventRing mCmdQueue;
+    private final ConnectionHealth mHealth;
+    private final RetransmitQueue mRetransmitQueue;
+    private final SenderSupervisorListener mListener;
+    private final Random mRandom = new Random();
+    private int mBatchSize = 0;
+    private long mFlushDeadlineUS = 0;
+    private long mMoveDeadlineMS = UDPClientThread.KMOVE_DEADLINE_MS_DEFAULT;
+    private int mDiscreteBacklog = UDPClientThread.KDISCRETE_BACKLOG_DEFAULT;
+    private InputLatency mLatency = null;
+    private SenderStats mStats = new SenderStats();
+    private volatile UDPClientThread mSender = null;
+    private volatile State mState = State.stopped;
+    private int mFailures = 0;
+
+    SenderSupervisor(String hostName, int hostPort, GestureEventRing cmdQueue, ConnectionHealth health,
+                     RetransmitQueue retransmitQueue, SenderSupervisorListener listener) {
+        Logging.d(TAG, "SenderSupervisor()");
+        mHostName = hostName;
+        mHostPort = hostPort;
+        mCmdQueue = cmdQueue;
+        mHealth = health;
+        mRetransmitQueue = retransmitQueue;
+        mListener = listener;
+    }
+
+    /**
+     * Batching settings handed to every sender started from now on.
+     */
+    public void setBatching(int payloadSize, long flushDeadlineUS) {
+        Logging.d(TAG, "setBatching", payloadSize, flushDeadlineUS);
+        mBatchSize = payloadSize;
+        mFlushDeadlineUS = flushDeadlineUS;
+    }
+
+    /**
+     * Backpressure settings handed to every sender, see UDPClientThread.setBackpressure.
+     */
+    public void setBackpressure(long moveDeadlineMS, int discreteBacklog) {
+        Logging.d(TAG, "setBackpressure", moveDeadlineMS, discreteBacklog);
+        mMoveDeadlineMS = moveDeadlineMS;
+        mDiscreteBacklog = discreteBacklog;
+        UDPClientThread sender = mSender;
+        if (sender != null) sender.setBackpressure(moveDeadlineMS, discreteBacklog);
+    }
+
+    /**
+     * Latency histograms the senders record into, see UDPClientThread.setLatency.
+     */
+    public void setLatency(InputLatency latency) {
+        mLatency = latency;
+    }
+
+    /**
+     * Totals the senders count into, see UDPClientThread.setStats.
+     */
+    public void setStats(SenderStats stats) {
+        mStats = stats;
+    }
+
+    public State getSenderState() {
+        return mState;
+    }
+
+    public int getFailures() {
+        return mFailures;
+    }
+
+    /**
+     * @return the running sender, null between restarts
+     */
+    public UDPClientThread getSender() {
+        return mSender;
+    }
+
+    private void setState(State state, long retryInMS) {
+        mState = state;
+        if (mListener != null) mListener.onSenderStateChanged(state, mFailures, retryInMS);
+    }
+
+    /**
+     * Full jitter over the upper half of the exponential delay, so restarts of many
+     * clients after a shared outage don't line up.
+     */
+    private long nextBackoffMS() {
+        int shift = Math.min(mFailures - 1, 20);
+        long delay = Math.min(KBACKOFF_MAX_MS, KBACKOFF_MIN_MS << shift);
+        return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * Runs one sender until it dies, the sender is stopped with the supervisor.
+     */
+    private void runSender() throws InterruptedException {
+        setState(State.resolving, 0);
+        InetSocketAddress address;
+        try {
+            // resolved again on every attempt, the host may have a new address
+            address = new InetSocketAddress(InetAddress.getByName(mHostName), mHostPort);
+        } catch (Exception e) {
+            Logging.e(TAG, "runSender: resolve " + mHostName, e);
+            return;
+        }
+        UDPClientThread sender = new UDPClientThread(address, mCmdQueue, mHealth, mRetransmitQueue);
+        sender.setBatching(mBatchSize, mFlushDeadlineUS);
+        sender.setBackpressure(mMoveDeadlineMS, mDiscreteBacklog);
+        sender.setLatency(mLatency);
+        sender.setStats(mStats);
+        long startMS = System.currentTimeMillis();
+        mSender = sender;
+        sender.start();
+        setState(State.running, 0);
+        try {
+            sender.join();
+        } finally {
+            mSender = null;
+            if (sender.isAlive()) {
+                sender.interrupt();
+                sender.join();
+            }
+        }
+        if (System.currentTimeMillis() - startMS >= KSTABLE_MS) mFailures = 0;
+    }
+
+    @Override
+    public void run() {
+        Logging.d(TAG, "run");
+        try {
+            while (!isInterrupted()) {
+                runSender();
+                mFailures++;
+                long retryInMS = nextBackoffMS();
+                Logging.d(TAG, "run: sender failed, failures, retry in ms", mFailures, retryInMS);
+                setState(State.backoff, retryInMS);
+                Thread.sleep(retryInMS);
+            }
+        } catch (InterruptedException e) {
+            Logging.d(TAG, "run: stopped");
+        } finally {
+            setState(State.stopped, 0);
+        }
+    }
+}
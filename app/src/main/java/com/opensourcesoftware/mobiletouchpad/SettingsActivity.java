@@ -27,6 +27,7 @@ package com.opensourcesoftware.mobiletouchpad;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.content.res.Configuration;
 import android.os.Bundle;
@@ -52,13 +53,18 @@ import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AppCompatActivity;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
-public class SettingsActivity extends AppCompatActivity implements DiscoveryThread.DiscoveryThreadListener {
+public class SettingsActivity extends AppCompatActivity implements DiscoveryThread.DiscoveryThreadListener,
+        HostRegistry.HostRegistryListener {
 
     private static final String TAG = "SettingsActivity";
+    private static final long KHOST_TICK_MS = 1000;
 
     private DiscoveryThread mDiscoveryThread = null;
+    private final HostRegistry mHostRegistry = new HostRegistry(this);
+    private final Handler mHandler = new Handler();
     private DiscoveryThreadItemListAdapter mServerListViewAdapter = null;
     private ListView mServerListView = null;
     private final ArrayList<DiscoveryThread.MEVSystemItem> mServerList = new ArrayList<>();
@@ -66,6 +72,25 @@ public class SettingsActivity extends AppCompatActivity implements DiscoveryThre
     private Button btnScrollMultiplier = null;
     private Button btnUDPPort = null;
     private Button btnBounce = null;
+    private Button btnBatchSize = null;
+    private Button btnBatchDeadline = null;
+    private Button btnAccelCurve = null;
+    private Button btnMotionHighRes = null;
+    private Button btnTraceRecord = null;
+    private Button btnLatency = null;
+    private Button btnStatsOverlay = null;
+    private Button btnPredictHorizon = null;
+    private Button btnMoveDeadline = null;
+
+    private final Runnable mHostTickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mHostRegistry.tick(System.nanoTime());
+            // probing runs for a bounded window, after it hosts are only listened to
+            if ((mDiscoveryThread == null) || !mDiscoveryThread.isAlive()) restartDiscoveryThread(false);
+            mHandler.postDelayed(this, KHOST_TICK_MS);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -95,13 +120,59 @@ public class SettingsActivity extends AppCompatActivity implements DiscoveryThre
             Logging.d(TAG, "btnScrollMultiplier.onClick");
             showScrollMultiplierOptions();
         });
+        btnAccelCurve = findViewById(R.id.btnAccelCurve);
+        btnAccelCurve.setText(getAccelCurveText(AppPrefs.getAccelCurve()));
+        btnAccelCurve.setOnClickListener(v -> showAccelCurveOptions());
+        btnMotionHighRes = findViewById(R.id.btnMotionHighRes);
+        btnMotionHighRes.setText(AppPrefs.getMotionHighResolution() ? R.string.yesno_yes : R.string.yesno_no);
+        btnMotionHighRes.setOnClickListener(v -> {
+            Logging.d(TAG, "btnMotionHighRes.onClick");
+            AppPrefs.setMotionHighResolution(!AppPrefs.getMotionHighResolution());
+            AppPrefs.savePreferences(SettingsActivity.this);
+            btnMotionHighRes.setText(AppPrefs.getMotionHighResolution() ? R.string.yesno_yes : R.string.yesno_no);
+        });
+        btnPredictHorizon = findViewById(R.id.btnPredictHorizon);
+        btnPredictHorizon.setText(String.valueOf(AppPrefs.getPredictHorizon()));
+        btnPredictHorizon.setOnClickListener(v -> changePredictHorizon());
         btnUDPPort = findViewById(R.id.btnUDPPort);
         btnUDPPort.setText(String.valueOf(AppPrefs.getHostPort()));
         btnUDPPort.setOnClickListener(v -> changeUDPPort());
         btnBounce = findViewById(R.id.btnBounce);
         btnBounce.setText(String.valueOf(AppPrefs.getBounce()));
         btnBounce.setOnClickListener(v -> changeBounce());
-
+        btnMoveDeadline = findViewById(R.id.btnMoveDeadline);
+        btnMoveDeadline.setText(String.valueOf(AppPrefs.getMoveDeadline()));
+        btnMoveDeadline.setOnClickListener(v -> changeMoveDeadline());
+        btnTraceRecord = findViewById(R.id.btnTraceRecord);
+        btnTraceRecord.setText(AppPrefs.getTraceRecord() ? R.string.yesno_yes : R.string.yesno_no);
+        btnTraceRecord.setOnClickListener(v -> {
+            Logging.d(TAG, "btnTraceRecord.onClick");
+            AppPrefs.setTraceRecord(!AppPrefs.getTraceRecord());
+            AppPrefs.savePreferences(SettingsActivity.this);
+            btnTraceRecord.setText(AppPrefs.getTraceRecord() ? R.string.yesno_yes : R.string.yesno_no);
+        });
+        btnStatsOverlay = findViewById(R.id.btnStatsOverlay);
+        btnStatsOverlay.setText(AppPrefs.getStatsOverlay() ? R.string.yesno_yes : R.string.yesno_no);
+        btnStatsOverlay.setOnClickListener(v -> {
+            Logging.d(TAG, "btnStatsOverlay.onClick");
+            AppPrefs.setStatsOverlay(!AppPrefs.getStatsOverlay());
+            AppPrefs.savePreferences(SettingsActivity.this);
+            btnStatsOverlay.setText(AppPrefs.getStatsOverlay() ? R.string.yesno_yes : R.string.yesno_no);
+        });
+        btnLatency = findViewById(R.id.btnLatency);
+        btnLatency.setOnClickListener(v -> {
+            Logging.d(TAG, "btnLatency.onClick");
+            startActivity(new Intent(SettingsActivity.this, LatencyActivity.class));
+        });
+        btnBatchSize = findViewById(R.id.btnBatchSize);
+        btnBatchSize.setText(getBatchSizeText(AppPrefs.getBatchSize()));
+        btnBatchSize.setOnClickListener(v -> showBatchSizeOptions());
+        btnBatchDeadline = findViewById(R.id.btnBatchDeadline);
+        btnBatchDeadline.setText(String.valueOf(AppPrefs.getBatchDeadline()));
+        btnBatchDeadline.setOnClickListener(v -> changeBatchDeadline());
+
+        mHostRegistry.restore(AppPrefs.getKnownHosts(), System.nanoTime());
+        mServerList.addAll(mHostRegistry.getHosts());
         mServerListViewAdapter = new DiscoveryThreadItemListAdapter(this, mServerList);
         mServerListView.setAdapter(mServerListViewAdapter);
 
@@ -112,16 +183,22 @@ public class SettingsActivity extends AppCompatActivity implements DiscoveryThre
             AppPrefs.savePreferences(SettingsActivity.this);
 
         });
-
-        restartDiscoveryThread();
     }
 
-    private void restartDiscoveryThread() {
-        Logging.d(TAG, "restartDiscoveryThread");
+    /**
+     * @param probe true queries for hosts for a bounded window, false listens to
+     *              announcements until stopped
+     */
+    private void restartDiscoveryThread(boolean probe) {
+        Logging.d(TAG, "restartDiscoveryThread", probe);
         if (mDiscoveryThread != null) {
             mDiscoveryThread.interrupt();
         }
-        mDiscoveryThread = new DiscoveryThread(AppPrefs.getHostPort(), this, this);
+        if (probe) {
+            mDiscoveryThread = new DiscoveryThread(AppPrefs.getHostPort(), this, this);
+        } else {
+            mDiscoveryThread = new DiscoveryThread(AppPrefs.getHostPort(), 0, false, this, this);
+        }
         mDiscoveryThread.start();
     }
 
@@ -134,7 +211,7 @@ public class SettingsActivity extends AppCompatActivity implements DiscoveryThre
                     btnUDPPort.setText(String.valueOf(port));
                     AppPrefs.setHostPort(port);
                     AppPrefs.savePreferences(SettingsActivity.this);
-                    restartDiscoveryThread();
+                    restartDiscoveryThread(true);
                 } else {
                     Toast.makeText(SettingsActivity.this,
                             AppPrefs.getMsgErrInvalidPortRange(SettingsActivity.this),
@@ -166,17 +243,86 @@ public class SettingsActivity extends AppCompatActivity implements DiscoveryThre
         });
     }
 
+    private void changeBatchDeadline() {
+        Logging.d(TAG, "changeBatchDeadline");
+        showNumberInput(getResources().getString(R.string.settings_batch_deadline), AppPrefs.getBatchDeadline().toString(), value -> {
+            try {
+                Integer deadline = Integer.parseInt(value);
+                if (AppPrefs.isBatchDeadlineValid(deadline)) {
+                    btnBatchDeadline.setText(String.valueOf(deadline));
+                    AppPrefs.setBatchDeadline(deadline);
+                    AppPrefs.savePreferences(SettingsActivity.this);
+                } else {
+                    Toast.makeText(SettingsActivity.this,
+                            AppPrefs.getMsgErrInvalidBatchDeadlineRange(SettingsActivity.this),
+                            Toast.LENGTH_LONG).show();
+                }
+            } catch (Exception e) {
+                Logging.e(TAG, "onValueChanged: changeBatchDeadline: " + value, e);
+            }
+        });
+    }
+
+    private void changePredictHorizon() {
+        Logging.d(TAG, "changePredictHorizon");
+        showNumberInput(getResources().getString(R.string.settings_predict_horizon), AppPrefs.getPredictHorizon().toString(), value -> {
+            try {
+                Integer horizon = Integer.parseInt(value);
+                if (AppPrefs.isPredictHorizonValid(horizon)) {
+                    btnPredictHorizon.setText(String.valueOf(horizon));
+                    AppPrefs.setPredictHorizon(horizon);
+                    AppPrefs.savePreferences(SettingsActivity.this);
+                } else {
+                    Toast.makeText(SettingsActivity.this,
+                            AppPrefs.getMsgErrInvalidPredictHorizonRange(SettingsActivity.this),
+                            Toast.LENGTH_LONG).show();
+                }
+            } catch (Exception e) {
+                Logging.e(TAG, "onValueChanged: changePredictHorizon: " + value, e);
+            }
+        });
+    }
+
+    private void changeMoveDeadline() {
+        Logging.d(TAG, "changeMoveDeadline");
+        showNumberInput(getResources().getString(R.string.settings_move_deadline), AppPrefs.getMoveDeadline().toString(), value -> {
+            try {
+                Integer deadline = Integer.parseInt(value);
+                if (AppPrefs.isMoveDeadlineValid(deadline)) {
+                    btnMoveDeadline.setText(String.valueOf(deadline));
+                    AppPrefs.setMoveDeadline(deadline);
+                    AppPrefs.savePreferences(SettingsActivity.this);
+                } else {
+                    Toast.makeText(SettingsActivity.this,
+                            AppPrefs.getMsgErrInvalidMoveDeadlineRange(SettingsActivity.this),
+                            Toast.LENGTH_LONG).show();
+                }
+            } catch (Exception e) {
+                Logging.e(TAG, "onValueChanged: changeMoveDeadline: " + value, e);
+            }
+        });
+    }
+
     public interface NumberInputListener {
         void onValueChanged(String value);
     }
 
     private void showNumberInput(String title, String initialValue, NumberInputListener listener) {
         Logging.d(TAG, "showNumberInput");
+        showInput(title, initialValue, true, listener);
+    }
+
+    private void showInput(String title, String initialValue, boolean numeric, NumberInputListener listener) {
+        Logging.d(TAG, "showInput");
         AlertDialog.Builder alert = new AlertDialog.Builder(SettingsActivity.this);
         alert.setTitle(title);
         final EditText input = new EditText(SettingsActivity.this);
-        input.setInputType(InputType.TYPE_CLASS_NUMBER);
-        input.setRawInputType(Configuration.KEYBOARD_12KEY);
+        if (numeric) {
+            input.setInputType(InputType.TYPE_CLASS_NUMBER);
+            input.setRawInputType(Configuration.KEYBOARD_12KEY);
+        } else {
+            input.setInputType(InputType.TYPE_CLASS_TEXT);
+        }
         input.setText(initialValue);
         alert.setView(input);
         alert.setPositiveButton(R.string.ok, (DialogInterface.OnClickListener) (dialog, whichButton) -> listener.onValueChanged(input.getText().toString()));
@@ -216,12 +362,129 @@ public class SettingsActivity extends AppCompatActivity implements DiscoveryThre
         alert.show();
     }
 
+    private String getBatchSizeText(int batchSize) {
+        return (batchSize > 0) ? String.valueOf(batchSize) : getResources().getString(R.string.settings_batch_off);
+    }
+
+    private void showBatchSizeOptions() {
+        Logging.d(TAG, "showBatchSizeOptions");
+        AlertDialog.Builder alertDialog = new AlertDialog.Builder(this);
+        alertDialog.setTitle(R.string.settings_batch_size);
+        int[] sizes = AppPrefs.KBATCH_SIZES;
+        String[] items = new String[sizes.length];
+        int checkedItem = 0;
+        int batchSize = AppPrefs.getBatchSize();
+        for (int x = 0; x < sizes.length; x++) {
+            items[x] = getBatchSizeText(sizes[x]);
+            if (sizes[x] == batchSize) {
+                checkedItem = x;
+            }
+        }
+        alertDialog.setSingleChoiceItems(items, checkedItem, (dialog, which) -> {
+            Logging.d(TAG, "showBatchSizeOptions setSingleChoiceItems");
+            AppPrefs.setBatchSize(sizes[which]);
+            AppPrefs.savePreferences(SettingsActivity.this);
+            btnBatchSize.setText(getBatchSizeText(AppPrefs.getBatchSize()));
+            dialog.dismiss();
+        });
+        AlertDialog alert = alertDialog.create();
+        alert.setCanceledOnTouchOutside(false);
+        alert.show();
+    }
+
+    private String getAccelCurveText(String curve) {
+        if (curve.equals(AppPrefs.KACCEL_CURVE_OFF)) {
+            return getResources().getString(R.string.settings_accel_off);
+        } else if (curve.equals(AppPrefs.KACCEL_CURVE_SIGMOID)) {
+            return getResources().getString(R.string.settings_accel_sigmoid);
+        } else if (curve.equals(AppPrefs.KACCEL_CURVE_POWER)) {
+            return getResources().getString(R.string.settings_accel_power);
+        }
+        return getResources().getString(R.string.settings_accel_custom);
+    }
+
+    private void setAccelCurve(String curve) {
+        AppPrefs.setAccelCurve(curve);
+        AppPrefs.savePreferences(SettingsActivity.this);
+        btnAccelCurve.setText(getAccelCurveText(AppPrefs.getAccelCurve()));
+    }
+
+    private void changeAccelTable() {
+        Logging.d(TAG, "changeAccelTable");
+        String curve = AppPrefs.getAccelCurve();
+        if (!curve.startsWith(AccelerationCurve.Type.table.name())) curve = AppPrefs.KACCEL_CURVE_TABLE_DEFAULT;
+        String points = curve.substring(AccelerationCurve.Type.table.name().length()).trim();
+        showInput(getResources().getString(R.string.settings_accel_custom_title), points, false, value -> {
+            String table = AccelerationCurve.Type.table.name() + " " + value.trim();
+            if (AppPrefs.isAccelCurveValid(table)) {
+                setAccelCurve(table);
+            } else {
+                Toast.makeText(SettingsActivity.this,
+                        R.string.msg_settings_invalid_accel_table,
+                        Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    private void showAccelCurveOptions() {
+        Logging.d(TAG, "showAccelCurveOptions");
+        AlertDialog.Builder alertDialog = new AlertDialog.Builder(this);
+        alertDialog.setTitle(R.string.settings_accel_curve);
+        String[] curves = {AppPrefs.KACCEL_CURVE_OFF, AppPrefs.KACCEL_CURVE_SIGMOID, AppPrefs.KACCEL_CURVE_POWER};
+        String[] items = {
+                getResources().getString(R.string.settings_accel_off),
+                getResources().getString(R.string.settings_accel_sigmoid),
+                getResources().getString(R.string.settings_accel_power),
+                getResources().getString(R.string.settings_accel_custom)};
+        // anything that isn't a preset is custom
+        int checkedItem = curves.length;
+        String accelCurve = AppPrefs.getAccelCurve();
+        for (int x = 0; x < curves.length; x++) {
+            if (curves[x].equals(accelCurve)) {
+                checkedItem = x;
+            }
+        }
+        alertDialog.setSingleChoiceItems(items, checkedItem, (dialog, which) -> {
+            Logging.d(TAG, "showAccelCurveOptions setSingleChoiceItems");
+            dialog.dismiss();
+            if (which < curves.length) {
+                setAccelCurve(curves[which]);
+            } else {
+                changeAccelTable();
+            }
+        });
+        AlertDialog alert = alertDialog.create();
+        alert.setCanceledOnTouchOutside(false);
+        alert.show();
+    }
+
     @Override
     public void onPostCreate(@Nullable Bundle savedInstanceState, @Nullable PersistableBundle persistentState) {
         Logging.d(TAG, "onPostCreate");
         super.onPostCreate(savedInstanceState, persistentState);
     }
 
+    @Override
+    protected void onResume() {
+        Logging.d(TAG, "onResume");
+        super.onResume();
+        restartDiscoveryThread(true);
+        mHandler.post(mHostTickRunnable);
+    }
+
+    @Override
+    protected void onPause() {
+        Logging.d(TAG, "onPause");
+        super.onPause();
+        mHandler.removeCallbacks(mHostTickRunnable);
+        if (mDiscoveryThread != null) {
+            mDiscoveryThread.interrupt();
+            mDiscoveryThread = null;
+        }
+        AppPrefs.setKnownHosts(mHostRegistry.save());
+        AppPrefs.savePreferences(this);
+    }
+
     @Override
     protected void onDestroy() {
         Logging.d(TAG, "onDestroy");
@@ -249,17 +512,16 @@ public class SettingsActivity extends AppCompatActivity implements DiscoveryThre
 
     @Override
     public void onSystemFound(DiscoveryThread.MEVSystemItem item) {
-        Logging.d(TAG, "onSystemFound: ");
+        mHostRegistry.onAnnounce(item, System.nanoTime());
+    }
+
+    @Override
+    public void onHostsChanged(List<DiscoveryThread.MEVSystemItem> hosts) {
+        Logging.d(TAG, "onHostsChanged", hosts.size());
         runOnUiThread(() -> {
-            boolean exists = false;
-            for (DiscoveryThread.MEVSystemItem x : mServerList) {
-                exists = (x.getHostIP().equals(item.getHostIP()) && x.getName().equals(item.getName()));
-                if (exists) break;
-            }
-            if (!exists) {
-                mServerList.add(item);
-                mServerListViewAdapter.notifyDataSetChanged();
-            }
+            mServerList.clear();
+            mServerList.addAll(hosts);
+            mServerListViewAdapter.notifyDataSetChanged();
         });
     }
 
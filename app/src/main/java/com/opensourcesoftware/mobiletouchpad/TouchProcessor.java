@@ -0,0 +1,439 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+/**
+ * Everything between the touch samples and the wire commands: cursor motion
+ * integration and prediction, gesture recognition and kinetic scrolling. It has no
+ * Android dependencies, {@link TouchpadGestures} feeds it on the input thread and
+ * {@link TouchTrace} replays feed it on a plain JVM, so both run the same code.
+ *
+ * Time is the touch event time in milliseconds, uptime on Android, frames come in
+ * nanoseconds of the same monotonic clock. With a trace writer set every input and
+ * every command is recorded.
+ */
+public class TouchProcessor implements
+        GestureStateMachine.GestureStateMachineListener,
+        ScrollEngine.ScrollEngineListener {
+
+    public interface TouchProcessorListener {
+        // eventNS is the time of the input that caused the command, event time in ns
+        void onCommand(int opcode, int arg0, int arg1, long eventNS);
+        void onFeedback(int feedback);
+        // call onFrame() once per display frame until it returns false
+        void onFlingStarted();
+    }
+
+    private final static String TAG = "TouchProcessor";
+
+    public static final int KFEEDBACK_DRAG = 0;
+    public static final int KFEEDBACK_OPTIONS = 1;
+    // largest distance a single sample may move the cursor, in motion units
+    private final static float KBOUNDS_XY = 100.f;
+
+    public static final String KCONFIG_UNIT_SCALE = "unitScale";
+    public static final String KCONFIG_MULTIPLIER = "multiplier";
+    public static final String KCONFIG_ACCEL_CURVE = "accelCurve";
+    public static final String KCONFIG_PREDICT_HORIZON = "predictHorizon";
+    public static final String KCONFIG_SCROLL_NATURAL = "scrollNatural";
+    public static final String KCONFIG_BOUNCE = "bounce";
+    public static final String KCONFIG_TOUCH_SLOP = "touchSlop";
+    public static final String KCONFIG_LONG_PRESS_TIMEOUT = "longPressTimeout";
+    public static final String KCONFIG_DOUBLE_TAP_TIMEOUT = "doubleTapTimeout";
+    public static final String KCONFIG_DOUBLE_TAP_SLOP = "doubleTapSlop";
+
+    private final TouchProcessorListener mListener;
+    private final GestureStateMachine mGestures = new GestureStateMachine(this);
+    private final MotionIntegrator mMotionIntegrator = new MotionIntegrator();
+    private final MotionPredictor mMotionPredictor = new MotionPredictor();
+    private final ScrollEngine mScrollEngine = new ScrollEngine(this);
+
+    // motion units per screen pixel
+    private float mUnitScale = 1.f;
+    private float mMultiplier = 1.f;
+    private AccelerationCurve mAccelerationCurve = AccelerationCurve.linear();
+    private int mPredictHorizonMS = 0;
+    private boolean mScrollNatural = false;
+    private long mBounceMS = 55;
+    private float mTouchSlop = GestureStateMachine.KTOUCH_SLOP_DEFAULT;
+    private long mLongPressTimeoutMS = GestureStateMachine.KLONG_PRESS_TIMEOUT_MAX;
+    private long mDoubleTapTimeoutMS = GestureStateMachine.KDOUBLE_TAP_TIMEOUT_DEFAULT;
+    private float mDoubleTapSlop = GestureStateMachine.KDOUBLE_TAP_SLOP_DEFAULT;
+
+    // a move went out since the finger went down, predicted ones need settling
+    private boolean mMoveSent = false;
+    // pointer whose motion moves the cursor
+    private int mMotionPointerId = 0;
+    // scroll is sent in tenths, whatever rounds away is carried into the next delta
+    private float mScrollRestX = 0.f;
+    private float mScrollRestY = 0.f;
+    private long mTimeNS = 0;
+    private TouchTrace.Writer mTrace = null;
+
+    public TouchProcessor(TouchProcessorListener listener) {
+        Logging.d(TAG, "TouchProcessor()");
+        mListener = listener;
+        mMotionIntegrator.setMaxStep(KBOUNDS_XY);
+    }
+
+    /**
+     * @param unitScale motion units per screen pixel, see TouchpadGestures.setHighResolution
+     */
+    public void setUnitScale(float unitScale) {
+        Logging.d(TAG, "setUnitScale", unitScale);
+        mUnitScale = unitScale;
+        mMotionIntegrator.setUnitScale(unitScale);
+        traceConfig(KCONFIG_UNIT_SCALE, Float.toString(unitScale));
+    }
+
+    public void setMultiplier(float multiplier) {
+        Logging.d(TAG, "setMultiplier", multiplier);
+        mMultiplier = multiplier;
+        mMotionIntegrator.setMultiplier(multiplier);
+        traceConfig(KCONFIG_MULTIPLIER, Float.toString(multiplier));
+    }
+
+    public void setAccelerationCurve(AccelerationCurve curve) {
+        Logging.d(TAG, "setAccelerationCurve", curve);
+        mAccelerationCurve = curve;
+        mMotionIntegrator.setAccelerationCurve(curve);
+        traceConfig(KCONFIG_ACCEL_CURVE, curve.toString());
+    }
+
+    public void setPredictionHorizon(int horizonMS) {
+        Logging.d(TAG, "setPredictionHorizon", horizonMS);
+        mPredictHorizonMS = horizonMS;
+        mMotionPredictor.setHorizon(horizonMS);
+        mMotionPredictor.resetStats();
+        traceConfig(KCONFIG_PREDICT_HORIZON, Integer.toString(horizonMS));
+    }
+
+    public void setScrollNatural(boolean natural) {
+        Logging.d(TAG, "setScrollNatural", natural);
+        mScrollNatural = natural;
+        traceConfig(KCONFIG_SCROLL_NATURAL, Boolean.toString(natural));
+    }
+
+    public void setBounce(long bounceMS) {
+        mBounceMS = bounceMS;
+        mGestures.setBounce(bounceMS);
+        traceConfig(KCONFIG_BOUNCE, Long.toString(bounceMS));
+    }
+
+    public void setTouchSlop(float slop) {
+        mTouchSlop = slop;
+        mGestures.setTouchSlop(slop);
+        traceConfig(KCONFIG_TOUCH_SLOP, Float.toString(slop));
+    }
+
+    public void setLongPressTimeout(long timeoutMS) {
+        mGestures.setLongPressTimeout(timeoutMS);
+        mLongPressTimeoutMS = mGestures.getLongPressTimeout();
+        traceConfig(KCONFIG_LONG_PRESS_TIMEOUT, Long.toString(mLongPressTimeoutMS));
+    }
+
+    public void setDoubleTapTimeout(long timeoutMS) {
+        mDoubleTapTimeoutMS = timeoutMS;
+        mGestures.setDoubleTapTimeout(timeoutMS);
+        traceConfig(KCONFIG_DOUBLE_TAP_TIMEOUT, Long.toString(timeoutMS));
+    }
+
+    public void setDoubleTapSlop(float slop) {
+        mDoubleTapSlop = slop;
+        mGestures.setDoubleTapSlop(slop);
+        traceConfig(KCONFIG_DOUBLE_TAP_SLOP, Float.toString(slop));
+    }
+
+    /**
+     * Applies a setting as recorded by a trace.
+     *
+     * @return false if the key is unknown or the value invalid
+     */
+    public boolean applyConfig(String key, String value) {
+        try {
+            switch (key) {
+                case KCONFIG_UNIT_SCALE:
+                    setUnitScale(Float.parseFloat(value));
+                    return true;
+                case KCONFIG_MULTIPLIER:
+                    setMultiplier(Float.parseFloat(value));
+                    return true;
+                case KCONFIG_ACCEL_CURVE:
+                    AccelerationCurve curve = AccelerationCurve.parse(value);
+                    if (curve == null) return false;
+                    setAccelerationCurve(curve);
+                    return true;
+                case KCONFIG_PREDICT_HORIZON:
+                    setPredictionHorizon(Integer.parseInt(value));
+                    return true;
+                case KCONFIG_SCROLL_NATURAL:
+                    setScrollNatural(Boolean.parseBoolean(value));
+                    return true;
+                case KCONFIG_BOUNCE:
+                    setBounce(Long.parseLong(value));
+                    return true;
+                case KCONFIG_TOUCH_SLOP:
+                    setTouchSlop(Float.parseFloat(value));
+                    return true;
+                case KCONFIG_LONG_PRESS_TIMEOUT:
+                    setLongPressTimeout(Long.parseLong(value));
+                    return true;
+                case KCONFIG_DOUBLE_TAP_TIMEOUT:
+                    setDoubleTapTimeout(Long.parseLong(value));
+                    return true;
+                case KCONFIG_DOUBLE_TAP_SLOP:
+                    setDoubleTapSlop(Float.parseFloat(value));
+                    return true;
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            Logging.e(TAG, "applyConfig:", key, e);
+            return false;
+        }
+    }
+
+    /**
+     * Starts recording into trace, beginning with the current settings, null stops.
+     * The caller owns the writer and closes it.
+     */
+    public void setTraceWriter(TouchTrace.Writer trace) {
+        Logging.d(TAG, "setTraceWriter", trace != null);
+        mTrace = trace;
+        if (trace == null) return;
+        traceConfig(KCONFIG_UNIT_SCALE, Float.toString(mUnitScale));
+        traceConfig(KCONFIG_MULTIPLIER, Float.toString(mMultiplier));
+        traceConfig(KCONFIG_ACCEL_CURVE, mAccelerationCurve.toString());
+        traceConfig(KCONFIG_PREDICT_HORIZON, Integer.toString(mPredictHorizonMS));
+        traceConfig(KCONFIG_SCROLL_NATURAL, Boolean.toString(mScrollNatural));
+        traceConfig(KCONFIG_BOUNCE, Long.toString(mBounceMS));
+        traceConfig(KCONFIG_TOUCH_SLOP, Float.toString(mTouchSlop));
+        traceConfig(KCONFIG_LONG_PRESS_TIMEOUT, Long.toString(mLongPressTimeoutMS));
+        traceConfig(KCONFIG_DOUBLE_TAP_TIMEOUT, Long.toString(mDoubleTapTimeoutMS));
+        traceConfig(KCONFIG_DOUBLE_TAP_SLOP, Float.toString(mDoubleTapSlop));
+    }
+
+    private void traceConfig(String key, String value) {
+        if (mTrace != null) mTrace.writeConfig(key, value, mTimeNS);
+    }
+
+    public MotionPredictor.Stats getPredictionStats() {
+        return mMotionPredictor.getStats();
+    }
+
+    public GestureStateMachine.State getGestureState() {
+        return mGestures.getState();
+    }
+
+    /**
+     * @return event time at which onTimeout has to be called, Long.MAX_VALUE if none
+     */
+    public long getDeadline() {
+        return mGestures.getDeadline();
+    }
+
+    /**
+     * Feeds one touch sample, the pointer arrays hold pointerCount entries.
+     *
+     * @param historical a batched move sample, only moves the cursor
+     */
+    public void onTouchSample(int action, int actionIndex, int pointerCount, boolean historical,
+                              int[] ids, float[] x, float[] y, long timeMS) {
+        mTimeNS = timeMS * 1000000L;
+        if (mTrace != null) mTrace.writeSample(action, actionIndex, pointerCount, historical, ids, x, y, mTimeNS);
+        if (historical) {
+            addMotionSample(pointerCount, ids, x, y, timeMS);
+            return;
+        }
+        if (action == GestureStateMachine.KTOUCH_DOWN) {
+            // a new touch catches a scroll that is still gliding
+            mScrollEngine.cancel();
+            mMotionPointerId = ids[0];
+            mMotionIntegrator.reset(x[0], y[0], timeMS);
+            mMotionPredictor.reset();
+            mMoveSent = false;
+        } else if (action == GestureStateMachine.KTOUCH_POINTER_UP) {
+            if (ids[actionIndex] == mMotionPointerId) {
+                // follow one of the fingers still down
+                settleMotion();
+                int index = (actionIndex == 0) ? 1 : 0;
+                mMotionPointerId = ids[index];
+                mMotionIntegrator.reset(x[index], y[index], timeMS);
+                mMotionPredictor.reset();
+            }
+        } else if (action == GestureStateMachine.KTOUCH_UP) {
+            // moves have to be settled before a drag ends
+            settleMotion();
+        } else if (action == GestureStateMachine.KTOUCH_MOVE) {
+            addMotionSample(pointerCount, ids, x, y, timeMS);
+        }
+        mGestures.onTouchEvent(action, actionIndex, pointerCount, x, y, timeMS);
+    }
+
+    public void onTimeout(long nowMS) {
+        mTimeNS = nowMS * 1000000L;
+        if (mTrace != null) mTrace.writeTimeout(mTimeNS);
+        mGestures.onTimeout(nowMS);
+    }
+
+    /**
+     * @return true while the scroll is still gliding
+     */
+    public boolean onFrame(long frameTimeNS) {
+        if (!mScrollEngine.isFlinging()) return false;
+        mTimeNS = frameTimeNS;
+        if (mTrace != null) mTrace.writeFrame(frameTimeNS);
+        return mScrollEngine.step(frameTimeNS);
+    }
+
+    private void sendCommand(int opcode, int arg0, int arg1) {
+        if (mTrace != null) mTrace.writeCommand(opcode, arg0, arg1, mTimeNS);
+        mListener.onCommand(opcode, arg0, arg1, mTimeNS);
+    }
+
+    /**
+     * Feeds a sample of the tracked pointer to the integrator, the batched historical
+     * samples of a move come in first, each on its own.
+     */
+    private void addMotionSample(int pointerCount, int[] ids, float[] x, float[] y, long timeMS) {
+        for (int p = 0; p < pointerCount; p++) {
+            if (ids[p] != mMotionPointerId) continue;
+            mMotionIntegrator.addSample(x[p], y[p], timeMS);
+            mMotionPredictor.addSample(mMotionIntegrator.getPositionX(), mMotionIntegrator.getPositionY(), timeMS);
+            return;
+        }
+    }
+
+    private void sendOnMoveEvent() {
+        boolean move = mMotionPredictor.isEnabled() ?
+                mMotionIntegrator.takeMoveTo(mMotionPredictor.getPredictedX(), mMotionPredictor.getPredictedY()) :
+                mMotionIntegrator.takeMove();
+        if (!move) return;
+        mMoveSent = true;
+        sendCommand(WireProtocol.KOP_MOVE, mMotionIntegrator.getMoveX(), mMotionIntegrator.getMoveY());
+    }
+
+    /**
+     * Takes the cursor from the last predicted position to the measured one, so a
+     * prediction never leaves it somewhere the finger didn't go.
+     */
+    private void settleMotion() {
+        if (!mMoveSent || !mMotionPredictor.isEnabled()) return;
+        mMoveSent = false;
+        if (Logging.DEBUG) Logging.d(TAG, "settleMotion: prediction", mMotionPredictor.getStats().format());
+        if (mMotionIntegrator.takeMove()) {
+            sendCommand(WireProtocol.KOP_MOVE, mMotionIntegrator.getMoveX(), mMotionIntegrator.getMoveY());
+        }
+    }
+
+    @Override
+    public void onCursorMove() {
+        sendOnMoveEvent();
+    }
+
+    @Override
+    public void onDragBegin() {
+        Logging.d(TAG, "onDragBegin");
+        // the drag starts here, not where the finger went down
+        mMotionIntegrator.clear();
+        mListener.onFeedback(KFEEDBACK_DRAG);
+        sendCommand(WireProtocol.KOP_MOVE_DRAG_BEGIN, 0, 0);
+    }
+
+    @Override
+    public void onDragEnd() {
+        Logging.d(TAG, "onDragEnd");
+        sendCommand(WireProtocol.KOP_MOVE_DRAG_END, 0, 0);
+    }
+
+    @Override
+    public void onClick() {
+        Logging.d(TAG, "onClick");
+        sendCommand(WireProtocol.KOP_CLICK_DEFAULT, 0, 0);
+    }
+
+    @Override
+    public void onDoubleClick() {
+        Logging.d(TAG, "onDoubleClick");
+        sendCommand(WireProtocol.KOP_CLICK_DOUBLE, 0, 0);
+    }
+
+    @Override
+    public void onOptionsClick() {
+        Logging.d(TAG, "onOptionsClick");
+        mListener.onFeedback(KFEEDBACK_OPTIONS);
+        sendCommand(WireProtocol.KOP_CLICK_OPTIONS, 0, 0);
+    }
+
+    @Override
+    public void onTap(int fingers) {
+        Logging.d(TAG, "onTap", fingers);
+        sendCommand(WireProtocol.KOP_TAP, fingers, 0);
+    }
+
+    @Override
+    public void onScrollBegin() {
+        mScrollEngine.begin();
+    }
+
+    @Override
+    public void onScrollDelta(float dx, float dy, long timeMS) {
+        // negative is up/left
+        dx *= mUnitScale;
+        dy *= mUnitScale;
+        mScrollEngine.addDelta(dx, mScrollNatural ? -dy : dy, timeMS);
+    }
+
+    @Override
+    public void onScrollEnd(long timeMS) {
+        if (mScrollEngine.fling(timeMS, timeMS * 1000000L)) {
+            mListener.onFlingStarted();
+        }
+    }
+
+    @Override
+    public void onSwipe(int direction, int fingers) {
+        Logging.d(TAG, "onSwipe", direction, fingers);
+        sendCommand(WireProtocol.KOP_SWIPE, fingers, direction);
+    }
+
+    @Override
+    public void onPinch(int direction, int fingers) {
+        Logging.d(TAG, "onPinch", direction, fingers);
+        sendCommand(WireProtocol.KOP_PINCH, direction, fingers);
+    }
+
+    @Override
+    public void onScroll(float dx, float dy) {
+        dx = dx * 10.f + mScrollRestX;
+        dy = dy * 10.f + mScrollRestY;
+        int x = Math.round(dx);
+        int y = Math.round(dy);
+        mScrollRestX = dx - x;
+        mScrollRestY = dy - y;
+        if ((x == 0) && (y == 0)) return;
+        sendCommand(WireProtocol.KOP_SCROLL, x, y);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single producer / single consumer ring of touch samples, the touch listener copies
+ * each MotionEvent (and its batched history) in here on the UI thread and the input
+ * thread takes them out. Samples are flat primitive records of up to
+ * {@link #KMAX_POINTERS} pointers, nothing is allocated per event.
+ *
+ * Overflow policy: moves may only fill the ring up to capacity - KEVENT_RESERVE, the
+ * reserved slots keep room for the samples that put fingers down or lift them, losing
+ * one of those would leave the gesture recognition out of step with the screen.
+ */
+public class TouchSampleRing {
+
+    public static final int KCAPACITY_DEFAULT = 256;
+    public static final int KMAX_POINTERS = GestureStateMachine.KMAX_POINTERS;
+    private static final int KEVENT_RESERVE = 16;
+
+    private final int mMask;
+    private final int[] mActions;
+    private final int[] mActionIndexes;
+    private final int[] mPointerCounts;
+    private final boolean[] mHistorical;
+    private final long[] mTimes;
+    private final int[] mIds;
+    private final float[] mX;
+    private final float[] mY;
+
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mHead = new AtomicLong();
+    private long mCachedHead = 0;
+    private int mWriteSlot = 0;
+    private volatile long mDroppedCount = 0;
+
+    public TouchSampleRing() {
+        this(KCAPACITY_DEFAULT);
+    }
+
+    public TouchSampleRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mMask = capacity - 1;
+        mActions = new int[capacity];
+        mActionIndexes = new int[capacity];
+        mPointerCounts = new int[capacity];
+        mHistorical = new boolean[capacity];
+        mTimes = new long[capacity];
+        mIds = new int[capacity * KMAX_POINTERS];
+        mX = new float[capacity * KMAX_POINTERS];
+        mY = new float[capacity * KMAX_POINTERS];
+    }
+
+    // producer
+
+    /**
+     * Starts writing a sample, followed by setPointer() for each pointer and publish().
+     *
+     * @param isMove moves are dropped first when the ring fills up
+     * @return false if there is no room, the sample must not be written
+     */
+    public boolean begin(boolean isMove, int action, int actionIndex, int pointerCount, boolean historical,
+                         long timeMS) {
+        long tail = mTail.get();
+        int limit = isMove ? (mMask + 1 - KEVENT_RESERVE) : (mMask + 1);
+        if (tail - mCachedHead >= limit) {
+            mCachedHead = mHead.get();
+            if (tail - mCachedHead >= limit) {
+                mDroppedCount++;
+                return false;
+            }
+        }
+        mWriteSlot = (int) tail & mMask;
+        mActions[mWriteSlot] = action;
+        mActionIndexes[mWriteSlot] = actionIndex;
+        mPointerCounts[mWriteSlot] = Math.min(pointerCount, KMAX_POINTERS);
+        mHistorical[mWriteSlot] = historical;
+        mTimes[mWriteSlot] = timeMS;
+        return true;
+    }
+
+    public void setPointer(int pointer, int id, float x, float y) {
+        int index = mWriteSlot * KMAX_POINTERS + pointer;
+        mIds[index] = id;
+        mX[index] = x;
+        mY[index] = y;
+    }
+
+    public void publish() {
+        mTail.set(mTail.get() + 1);
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    // consumer
+
+    public boolean isEmpty() {
+        return mHead.get() >= mTail.get();
+    }
+
+    private int headSlot() {
+        return (int) mHead.get() & mMask;
+    }
+
+    public int getAction() {
+        return mActions[headSlot()];
+    }
+
+    public int getActionIndex() {
+        return mActionIndexes[headSlot()];
+    }
+
+    public int getPointerCount() {
+        return mPointerCounts[headSlot()];
+    }
+
+    /**
+     * @return true for a batched move sample older than the MotionEvent it came with
+     */
+    public boolean isHistorical() {
+        return mHistorical[headSlot()];
+    }
+
+    public long getTime() {
+        return mTimes[headSlot()];
+    }
+
+    /**
+     * Copies the pointers of the sample at the head into the caller's arrays.
+     */
+    public void copyPointers(int[] ids, float[] x, float[] y) {
+        int start = headSlot() * KMAX_POINTERS;
+        int count = mPointerCounts[headSlot()];
+        System.arraycopy(mIds, start, ids, 0, count);
+        System.arraycopy(mX, start, x, 0, count);
+        System.arraycopy(mY, start, y, 0, count);
+    }
+
+    public void remove() {
+        mHead.lazySet(mHead.get() + 1);
+    }
+}
@@ -0,0 +1,369 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary trace of a touch session: the pointer samples {@link TouchProcessor} was fed,
+ * the timer and frame ticks it got and the commands it generated, enough to replay
+ * the session and check that it still gives the same commands.
+ *
+ * The file starts with {@link #KMAGIC} and {@link #KVERSION}, then one record after
+ * another, each a type byte followed by varints. Times are nanoseconds, zigzag coded
+ * as the delta to the previous record. Pointer coordinates are stored exactly, as the
+ * zigzag coded difference between the float bits and those of the same pointer slot
+ * in the previous sample, a few bytes for the usual small move.
+ *
+ * KREC_CONFIG: key, value as length prefixed UTF-8, the settings the processor ran with
+ * KREC_SAMPLE / KREC_HISTORY: dt, action, actionIndex << 4 | pointerCount, then per
+ * pointer id, dx bits, dy bits; KREC_HISTORY is a batched move sample
+ * KREC_TIMEOUT / KREC_FRAME: dt
+ * KREC_COMMAND: dt, opcode, arg0, arg1
+ */
+public final class TouchTrace {
+
+    public static final byte[] KMAGIC = {'T', 'P', 'T', 'R'};
+    public static final int KVERSION = 1;
+
+    public static final int KREC_END = 0;
+    public static final int KREC_CONFIG = 1;
+    public static final int KREC_SAMPLE = 2;
+    public static final int KREC_HISTORY = 3;
+    public static final int KREC_TIMEOUT = 4;
+    public static final int KREC_FRAME = 5;
+    public static final int KREC_COMMAND = 6;
+
+    public static final int KMAX_POINTERS = GestureStateMachine.KMAX_POINTERS;
+    private static final int KBUFFER_SIZE = 8192;
+    // largest sample record, every varint at its longest
+    private static final int KMAX_RECORD_SIZE = 3 + 10 + KMAX_POINTERS * 15;
+    private static final int KMAX_STRING_SIZE = 1024;
+
+    private TouchTrace() {
+    }
+
+    /**
+     * Streams records to an OutputStream through an internal buffer. Write errors don't
+     * throw, the writer stops and {@link #isFailed()} tells, so recording can never
+     * break the input path.
+     */
+    public static class Writer {
+
+        private final static String TAG = "TouchTrace.Writer";
+
+        private final OutputStream mOut;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(KBUFFER_SIZE);
+        private final int[] mLastX = new int[KMAX_POINTERS];
+        private final int[] mLastY = new int[KMAX_POINTERS];
+        private long mLastTimeNS = 0;
+        private long mRecordCount = 0;
+        private long mByteCount = 0;
+        private boolean mFailed = false;
+
+        public Writer(OutputStream out) {
+            Logging.d(TAG, "Writer()");
+            mOut = out;
+            mBuffer.put(KMAGIC).put((byte) KVERSION);
+        }
+
+        public boolean isFailed() {
+            return mFailed;
+        }
+
+        public long getRecordCount() {
+            return mRecordCount;
+        }
+
+        public long getByteCount() {
+            return mByteCount + mBuffer.position();
+        }
+
+        private boolean beginRecord(int type, int size, long timeNS) {
+            if (mFailed) return false;
+            if (mBuffer.remaining() < size) drain();
+            if (mFailed) return false;
+            mBuffer.put((byte) type);
+            putVarLong(mBuffer, timeNS - mLastTimeNS);
+            mLastTimeNS = timeNS;
+            mRecordCount++;
+            return true;
+        }
+
+        public void writeConfig(String key, String value, long timeNS) {
+            byte[] k = key.getBytes(StandardCharsets.UTF_8);
+            byte[] v = value.getBytes(StandardCharsets.UTF_8);
+            if ((k.length > KMAX_STRING_SIZE) || (v.length > KMAX_STRING_SIZE)) return;
+            if (!beginRecord(KREC_CONFIG, 20 + k.length + v.length, timeNS)) return;
+            WireProtocol.putVarUInt(mBuffer, k.length);
+            mBuffer.put(k);
+            WireProtocol.putVarUInt(mBuffer, v.length);
+            mBuffer.put(v);
+        }
+
+        public void writeSample(int action, int actionIndex, int pointerCount, boolean historical,
+                                int[] ids, float[] x, float[] y, long timeNS) {
+            pointerCount = Math.min(pointerCount, KMAX_POINTERS);
+            if (!beginRecord(historical ? KREC_HISTORY : KREC_SAMPLE, KMAX_RECORD_SIZE, timeNS)) return;
+            mBuffer.put((byte) action);
+            mBuffer.put((byte) ((actionIndex << 4) | pointerCount));
+            for (int p = 0; p < pointerCount; p++) {
+                int bitsX = Float.floatToRawIntBits(x[p]);
+                int bitsY = Float.floatToRawIntBits(y[p]);
+                WireProtocol.putVarUInt(mBuffer, ids[p]);
+                WireProtocol.putVarSInt(mBuffer, bitsX - mLastX[p]);
+                WireProtocol.putVarSInt(mBuffer, bitsY - mLastY[p]);
+                mLastX[p] = bitsX;
+                mLastY[p] = bitsY;
+            }
+        }
+
+        public void writeTimeout(long timeNS) {
+            beginRecord(KREC_TIMEOUT, 11, timeNS);
+        }
+
+        public void writeFrame(long timeNS) {
+            beginRecord(KREC_FRAME, 11, timeNS);
+        }
+
+        public void writeCommand(int opcode, int arg0, int arg1, long timeNS) {
+            if (!beginRecord(KREC_COMMAND, 22, timeNS)) return;
+            mBuffer.put((byte) opcode);
+            WireProtocol.putVarSInt(mBuffer, arg0);
+            WireProtocol.putVarSInt(mBuffer, arg1);
+        }
+
+        private void drain() {
+            try {
+                mOut.write(mBuffer.array(), 0, mBuffer.position());
+                mByteCount += mBuffer.position();
+            } catch (IOException e) {
+                Logging.e(TAG, "drain: ", e);
+                mFailed = true;
+            }
+            mBuffer.clear();
+        }
+
+        public void flush() {
+            if (mFailed) return;
+            drain();
+            try {
+                mOut.flush();
+            } catch (IOException e) {
+                Logging.e(TAG, "flush: ", e);
+                mFailed = true;
+            }
+        }
+
+        public void close() {
+            Logging.d(TAG, "close");
+            flush();
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Logging.e(TAG, "close: ", e);
+            }
+        }
+    }
+
+    /**
+     * Reads a trace record by record, {@link #next()} returns the type and the getters
+     * the fields of the record just read.
+     */
+    public static class Reader {
+
+        private final InputStream mIn;
+        private final int[] mIds = new int[KMAX_POINTERS];
+        private final float[] mX = new float[KMAX_POINTERS];
+        private final float[] mY = new float[KMAX_POINTERS];
+        private final int[] mLastX = new int[KMAX_POINTERS];
+        private final int[] mLastY = new int[KMAX_POINTERS];
+        private long mTimeNS = 0;
+        private int mAction;
+        private int mActionIndex;
+        private int mPointerCount;
+        private int mOpcode;
+        private int mArg0;
+        private int mArg1;
+        private String mConfigKey;
+        private String mConfigValue;
+
+        /**
+         * @param in read byte by byte, wrap files in a BufferedInputStream
+         */
+        public Reader(InputStream in) throws IOException {
+            mIn = in;
+            for (byte b : KMAGIC) {
+                if (readByte() != (b & 0xFF)) throw new IOException("not a touch trace");
+            }
+            int version = readByte();
+            if (version != KVERSION) throw new IOException("unsupported touch trace version " + version);
+        }
+
+        /**
+         * @return the type of the next record, KREC_END at the end of the trace
+         */
+        public int next() throws IOException {
+            int type = mIn.read();
+            if (type < 0) return KREC_END;
+            mTimeNS += readVarLong();
+            switch (type) {
+                case KREC_CONFIG:
+                    mConfigKey = readString();
+                    mConfigValue = readString();
+                    break;
+                case KREC_SAMPLE:
+                case KREC_HISTORY:
+                    mAction = readByte();
+                    int counts = readByte();
+                    mActionIndex = counts >> 4;
+                    mPointerCount = Math.min(counts & 0x0F, KMAX_POINTERS);
+                    for (int p = 0; p < mPointerCount; p++) {
+                        mIds[p] = readVarUInt();
+                        mLastX[p] += readVarSInt();
+                        mLastY[p] += readVarSInt();
+                        mX[p] = Float.intBitsToFloat(mLastX[p]);
+                        mY[p] = Float.intBitsToFloat(mLastY[p]);
+                    }
+                    break;
+                case KREC_TIMEOUT:
+                case KREC_FRAME:
+                    break;
+                case KREC_COMMAND:
+                    mOpcode = readByte();
+                    mArg0 = readVarSInt();
+                    mArg1 = readVarSInt();
+                    break;
+                default:
+                    throw new IOException("unknown touch trace record " + type);
+            }
+            return type;
+        }
+
+        public long getTimeNS() {
+            return mTimeNS;
+        }
+
+        public int getAction() {
+            return mAction;
+        }
+
+        public int getActionIndex() {
+            return mActionIndex;
+        }
+
+        public int getPointerCount() {
+            return mPointerCount;
+        }
+
+        public int[] getIds() {
+            return mIds;
+        }
+
+        public float[] getX() {
+            return mX;
+        }
+
+        public float[] getY() {
+            return mY;
+        }
+
+        public int getOpcode() {
+            return mOpcode;
+        }
+
+        public int getArg0() {
+            return mArg0;
+        }
+
+        public int getArg1() {
+            return mArg1;
+        }
+
+        public String getConfigKey() {
+            return mConfigKey;
+        }
+
+        public String getConfigValue() {
+            return mConfigValue;
+        }
+
+        private int readByte() throws IOException {
+            int b = mIn.read();
+            if (b < 0) throw new EOFException("truncated touch trace");
+            return b;
+        }
+
+        private int readVarUInt() throws IOException {
+            return (int) readVarULong();
+        }
+
+        private int readVarSInt() throws IOException {
+            int value = readVarUInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readVarULong() throws IOException {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (((b & 0x80) != 0) && (shift < 70));
+            return value;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = readVarULong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private String readString() throws IOException {
+            int length = readVarUInt();
+            if ((length < 0) || (length > KMAX_STRING_SIZE)) throw new IOException("bad touch trace string");
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) readByte();
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+}
@@ -42,26 +42,47 @@ import android.os.PowerManager;
 import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
-import java.util.Locale;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.opensourcesoftware.mobiletouchpad.databinding.ActivityTouchpadBinding;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Locale;
+
 /**
  * An example full-screen activity that shows and hides the system UI (i.e.
  * status bar and navigation/system bar) with user interaction.
  */
 public class TouchpadActivity extends AppCompatActivity
         implements TouchpadGestures.TouchGesturesEventsListener,
-                    DeviceShakeDetector.DeviceShakeDetectorListener {
-
-    public static final ConcurrentLinkedQueue<String> mUDPCmdQueue = new ConcurrentLinkedQueue<String>();
-    private Thread mUDPClientThread = null;
+                    DeviceShakeDetector.DeviceShakeDetectorListener,
+                    SenderSupervisor.SenderSupervisorListener {
+
+    public static final GestureEventRing mUDPCmdQueue = new GestureEventRing();
+    public static final InputLatency mInputLatency = new InputLatency();
+    private SenderSupervisor mSenderSupervisor = null;
+    // settings the running supervisor was started with
+    private String mSenderHostIP = null;
+    private Integer mSenderHostPort = null;
+    private Integer mSenderBatchSize = null;
+    private Integer mSenderBatchDeadline = null;
+    private final ConnectionHealth mConnectionHealth = new ConnectionHealth();
+    private final RetransmitQueue mRetransmitQueue = new RetransmitQueue();
+    private final ConnectionHealth.Stats mConnectionStats = new ConnectionHealth.Stats();
+    private final SenderStats mSenderStats = new SenderStats();
 
     private static final String TAG = "TouchpadActivity";
+    private static final Logging.RateLimit KLOG_MOVE = new Logging.RateLimit(1000);
+    // slow on purpose, the overlay shouldn't add load of its own
+    private static final long KSTATS_REFRESH_MS = 1000;
+    // touch traces, replayed by the tools module
+    private static final String KTRACE_DIR = "traces";
+    private static final Logging.RateLimit KLOG_SEND = new Logging.RateLimit(1000);
 
     private enum StatusType {
         OK,
+        Warning,
         Error,
     }
 
@@ -103,6 +124,24 @@ public class TouchpadActivity extends AppCompatActivity
     };
     private boolean mVisible;
     private final Runnable mHideRunnable = () -> hide();
+    private final Runnable mConnectionStatusRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateConnectionStatus();
+            mMainHandler.postDelayed(this, WireProtocol.KPING_INTERVAL);
+        }
+    };
+    private TextView mStatsOverlayView;
+    private long mStatsLastNS = 0;
+    private long mStatsLastPackets = 0;
+    private long mStatsLastBytes = 0;
+    private final Runnable mStatsOverlayRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateStatsOverlay();
+            mMainHandler.postDelayed(this, KSTATS_REFRESH_MS);
+        }
+    };
 
     private ActivityTouchpadBinding binding;
     private DeviceShakeDetector mDeviceShakeDetector = new DeviceShakeDetector(this);
@@ -124,6 +163,7 @@ public class TouchpadActivity extends AppCompatActivity
         mVisible = true;
         mContentView = binding.fullscreenContent;
         mStatusTextView = binding.statusTextView;
+        mStatsOverlayView = binding.tvStatsOverlay;
 
         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_SENSOR_LANDSCAPE);
 
@@ -170,6 +210,8 @@ public class TouchpadActivity extends AppCompatActivity
         Logging.d(TAG, "onPause");
         super.onPause();
         mDeviceShakeDetector.unregisterListener();
+        mMainHandler.removeCallbacks(mConnectionStatusRunnable);
+        mMainHandler.removeCallbacks(mStatsOverlayRunnable);
     }
 
     @Override
@@ -188,12 +230,15 @@ public class TouchpadActivity extends AppCompatActivity
         if (mWakeLock != null) {
             mWakeLock.acquire(10*60*1000L /*10 minutes*/);
         }
+        mMainHandler.removeCallbacks(mConnectionStatusRunnable);
+        mMainHandler.postDelayed(mConnectionStatusRunnable, WireProtocol.KPING_INTERVAL);
     }
 
     @Override
     protected void onDestroy() {
         Logging.d(TAG, "onDestroy");
         super.onDestroy();
+        mTouchpadGestures.quit();
         if (mWakeLock != null) {
             Logging.d(TAG, "mWakeLock.release()");
             mWakeLock.release();
@@ -204,10 +249,78 @@ public class TouchpadActivity extends AppCompatActivity
         Logging.d(TAG, "applySettings");
 
         AppPrefs.loadPreferences(this);
-        mTouchpadGestures.setBounce(AppPrefs.getBounce());
-        mTouchpadGestures.setScrollMultiplier(AppPrefs.getScrollMultiplier());
-        mTouchpadGestures.setScrollNatural(AppPrefs.getScrollNatural());
-        startUDPClientThread(AppPrefs.getHostSystemIP(), AppPrefs.getHostPort());
+        long bounce = AppPrefs.getBounce();
+        float scrollMultiplier = AppPrefs.getScrollMultiplier();
+        boolean scrollNatural = AppPrefs.getScrollNatural();
+        AccelerationCurve accelerationCurve = AppPrefs.getAccelerationCurve();
+        boolean highResolution = AppPrefs.getMotionHighResolution();
+        int predictHorizon = AppPrefs.getPredictHorizon();
+        boolean traceRecord = AppPrefs.getTraceRecord();
+        File traceDir = getTraceDir();
+        mTouchpadGestures.runOnInputThread(() -> {
+            mTouchpadGestures.setBounce(bounce);
+            mTouchpadGestures.setScrollMultiplier(scrollMultiplier);
+            mTouchpadGestures.setScrollNatural(scrollNatural);
+            mTouchpadGestures.setAccelerationCurve(accelerationCurve);
+            mTouchpadGestures.setHighResolution(highResolution);
+            mTouchpadGestures.setPredictionHorizon(predictHorizon);
+            if (traceRecord) {
+                mTouchpadGestures.startTrace(traceDir);
+            } else {
+                mTouchpadGestures.stopTrace();
+            }
+        });
+        String hostIP = AppPrefs.getHostSystemIP();
+        Integer hostPort = AppPrefs.getHostPort();
+        if (isSenderCurrent(hostIP, hostPort, AppPrefs.getBatchSize(), AppPrefs.getBatchDeadline())) {
+            // runs on every resume, a running sender is kept when its settings didn't change
+            mSenderSupervisor.setBackpressure(AppPrefs.getMoveDeadline(), UDPClientThread.KDISCRETE_BACKLOG_DEFAULT);
+        } else {
+            startUDPClientThread(hostIP, hostPort);
+        }
+
+        mMainHandler.removeCallbacks(mStatsOverlayRunnable);
+        if (AppPrefs.getStatsOverlay()) {
+            mStatsOverlayView.setVisibility(View.VISIBLE);
+            mStatsLastNS = 0;
+            mMainHandler.post(mStatsOverlayRunnable);
+        } else {
+            mStatsOverlayView.setVisibility(View.GONE);
+        }
+    }
+
+    /**
+     * Rates are over the last refresh interval, the first refresh only takes the
+     * starting point.
+     */
+    private void updateStatsOverlay() {
+        long nowNS = System.nanoTime();
+        long packets = mSenderStats.getPackets();
+        long bytes = mSenderStats.getBytes();
+        long lastSendNS = mSenderStats.getLastSendNS();
+        double seconds = (nowNS - mStatsLastNS) / 1e9;
+        boolean hasRates = (mStatsLastNS != 0) && (seconds > 0);
+        mStatsOverlayView.setText(String.format(Locale.ENGLISH,
+                "%.0f pkt/s  %.1f KB/s\nqueue %d  coalesced %d\ndropped %d moves  %d discrete  %d samples\nshed %d moves  %d discrete\nlast send %s",
+                hasRates ? (packets - mStatsLastPackets) / seconds : 0.0,
+                hasRates ? (bytes - mStatsLastBytes) / seconds / 1024.0 : 0.0,
+                mUDPCmdQueue.size(),
+                mSenderStats.getCoalesced(),
+                mUDPCmdQueue.getDroppedMoves(),
+                mUDPCmdQueue.getDroppedDiscrete(),
+                mTouchpadGestures.getDroppedSamples(),
+                mSenderStats.getShedMoves(),
+                mSenderStats.getShedDiscrete(),
+                (lastSendNS == 0) ? "-" : ((nowNS - lastSendNS) / 1000000L) + " ms ago"));
+        mStatsLastNS = nowNS;
+        mStatsLastPackets = packets;
+        mStatsLastBytes = bytes;
+    }
+
+    private File getTraceDir() {
+        // external storage is reachable with adb pull without root
+        File dir = getExternalFilesDir(KTRACE_DIR);
+        return (dir != null) ? dir : new File(getFilesDir(), KTRACE_DIR);
     }
 
     private void setStatusColors(StatusType statusType) {
@@ -221,6 +334,10 @@ public class TouchpadActivity extends AppCompatActivity
                 colorBg = resources.getColor(R.color.conn_bg_ok, theme);
                 colorFg = resources.getColor(R.color.conn_fg_ok, theme);
                 break;
+            case Warning:
+                colorBg = resources.getColor(R.color.conn_bg_warn, theme);
+                colorFg = resources.getColor(R.color.conn_fg_warn, theme);
+                break;
             case Error:
                 colorBg = resources.getColor(R.color.conn_bg_err, theme);
                 colorFg = resources.getColor(R.color.conn_fg_err, theme);
@@ -236,6 +353,39 @@ public class TouchpadActivity extends AppCompatActivity
         mStatusTextView.setText(text);
     }
 
+    private String getHostStatusText() {
+        return String.format("%s / %s", AppPrefs.getHostSystemName(), AppPrefs.getHostSystemIP());
+    }
+
+    /**
+     * Shows the ping/pong health of the connection, tells a slow link (degraded) apart
+     * from a host that stopped answering (lost).
+     */
+    private void updateConnectionStatus() {
+        if ((mSenderSupervisor == null) || !mWifiIsOnline) return;
+        if (mSenderSupervisor.getSenderState() == SenderSupervisor.State.backoff) {
+            setStatusText(StatusType.Warning, getHostStatusText() + "  " +
+                    getString(R.string.status_sender_reconnecting, mSenderSupervisor.getFailures()));
+            return;
+        }
+        mConnectionHealth.getStats(System.nanoTime(), mConnectionStats);
+        switch (mConnectionStats.getState()) {
+            case unknown:
+                setStatusText(StatusType.OK, getHostStatusText());
+                break;
+            case good:
+                setStatusText(StatusType.OK, getHostStatusText() + "  " + mConnectionStats.format());
+                break;
+            case degraded:
+                setStatusText(StatusType.Warning, getHostStatusText() + "  " + mConnectionStats.format());
+                break;
+            case lost:
+                setStatusText(StatusType.Error, getHostStatusText() + "  " +
+                        getString(R.string.status_host_not_responding, mConnectionStats.getSinceLastSeenMS() / 1000));
+                break;
+        }
+    }
+
     private final BroadcastReceiver WifiStateChangedReceiver = new BroadcastReceiver() {
 
         @Override
@@ -243,7 +393,7 @@ public class TouchpadActivity extends AppCompatActivity
             int extraWifiState = intent.getIntExtra(WifiManager.EXTRA_WIFI_STATE,
                     WifiManager.WIFI_STATE_UNKNOWN);
 
-            Logging.d(TAG, "WifiStateChangedReceiver.onReceive extraWifiState: " + extraWifiState);
+            Logging.d(TAG, "WifiStateChangedReceiver.onReceive extraWifiState:", extraWifiState);
 
             switch (extraWifiState) {
                 case WifiManager.WIFI_STATE_ENABLED:
@@ -306,129 +456,96 @@ public class TouchpadActivity extends AppCompatActivity
     }
 
     @Override
-    public void OnSwipeEvent(TouchpadGestures.SwipeDirection direction, int fingers) {
-        Logging.d(TAG, "OnSwipeEvent: " + direction.toString() + " fingers: " + String.valueOf(fingers));
-        int up = 0;
-        int down = 0;
-        int left = 0;
-        int right = 0;
-        switch (direction) {
-            case swipeUp:
-                up++;
-                break;
-            case swipeDown:
-                down++;
-                break;
-            case swipeLeft:
-                left++;
-                break;
-            case swipeRight:
-                right++;
-                break;
+    public void OnGestureCommand(int opcode, int arg0, int arg1, long eventNS) {
+        if (WireProtocol.isContinuous(opcode)) {
+            Logging.v(TAG, KLOG_MOVE, "OnGestureCommand:", arg0, arg1);
+        } else {
+            Logging.d(TAG, "OnGestureCommand:", opcode, arg0, arg1);
         }
-        sendGestureEvent(String.format(Locale.ENGLISH, CmdConsts.KGESTURE_SWIPE + " %d U%d,D%d,L%d,R%d ok",
-                fingers,
-                up,
-                down,
-                left,
-                right));
-    }
-
-    @Override
-    public void OnPinchEvent(TouchpadGestures.PinchDirection direction, int fingers) {
-        Logging.d(TAG, "OnPinchEvent: " + direction.toString() + " fingers: " + String.valueOf(fingers));
-        sendGestureEvent(CmdConsts.KGESTURE_PINCH + " " + (direction == TouchpadGestures.PinchDirection.pinchIn ? "IN" : "OUT") + " " + fingers + " ok");
-    }
-
-    @Override
-    public void OnMoveDragBeginEvent() {
-        Logging.d(TAG, "OnMoveDragBeginEvent: ");
-        sendGestureEvent(CmdConsts.KACTION_MOVE_DRAG_BEGIN);
+        sendGestureEvent(opcode, arg0, arg1, eventNS);
     }
 
     @Override
-    public void OnMoveDragEndEvent() {
-        Logging.d(TAG, "OnMoveDragEndEvent: ");
-        sendGestureEvent(CmdConsts.KACTION_MOVE_DRAG_END);
-    }
-
-    @Override
-    public void OnMoveEvent(int x, int y) {
-        Logging.d(TAG, "OnMoveEvent: ");
-        sendGestureEvent(CmdConsts.KACTION_MOVE + " " + x + " " + y);
-    }
-
-    @Override
-    public void OnScrollDownEvent(String speed) {
-        Logging.d(TAG, "OnScrollDownEvent: " + speed);
-        sendGestureEvent(CmdConsts.KSCROLL_DOWN + " " + speed);
-    }
-
-    @Override
-    public void OnScrollUpEvent(String speed) {
-        Logging.d(TAG, "OnScrollUpEvent: " + speed);
-        sendGestureEvent(CmdConsts.KSCROLL_UP + " " + speed);
-    }
-
-    @Override
-    public void OnScrollLeftEvent(String speed) {
-        Logging.d(TAG, "OnScrollLeftEvent: " + speed);
-        sendGestureEvent(CmdConsts.KSCROLL_LEFT + " " + speed);
-    }
-
-    @Override
-    public void OnScrollRightEvent(String speed) {
-        Logging.d(TAG, "OnScrollRightEvent: " + speed);
-        sendGestureEvent(CmdConsts.KSCROLL_RIGHT + " " + speed);
-    }
-
-    @Override
-    public void OnClickDefaultEvent() {
-        Logging.d(TAG, "OnClickDefaultEvent: ");
-        sendGestureEvent(CmdConsts.KACTION_CLICK_DEFAULT);
+    public void OnFlashScreen(long duration) {
+        Logging.d(TAG, "OnFlashScreen");
+        // gesture events come from the input thread
+        mMainHandler.post(() -> mContentView.setBackgroundColor(mContentBackgroundColorFlash));
+        mMainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                mContentView.setBackgroundColor(mContentBackgroundColor);
+            }
+        }, duration);
     }
 
-    @Override
-    public void OnClickOptionsEvent() {
-        Logging.d(TAG, "OnClickOptionsEvent: ");
-        sendGestureEvent(CmdConsts.KACTION_CLICK_OPTIONS);
+    private void sendGestureEvent(int opcode, int arg0, int arg1, long eventNS) {
+        Logging.v(TAG, KLOG_SEND, "sendGestureEvent:", opcode);
+        long nowNS = System.nanoTime();
+        mInputLatency.record(InputLatency.Stage.stageInput, nowNS - eventNS);
+        mUDPCmdQueue.offer(opcode, arg0, arg1, eventNS, nowNS);
     }
 
+    /**
+     * Latency dump, adb shell dumpsys activity
+     * com.opensourcesoftware.mobiletouchpad/.TouchpadActivity [reset]
+     */
     @Override
-    public void OnClickDoubleEvent() {
-        Logging.d(TAG, "OnClickDoubleEvent: ");
-        sendGestureEvent(CmdConsts.KACTION_CLICK_DOUBLE);
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.println("Input latency:");
+        mInputLatency.dump(prefix + "  ", writer);
+        writer.print(prefix);
+        writer.println("  dropped samples " + mTouchpadGestures.getDroppedSamples()
+                + "  moves " + mUDPCmdQueue.getDroppedMoves()
+                + "  discrete " + mUDPCmdQueue.getDroppedDiscrete());
+        writer.print(prefix);
+        writer.println("  shed moves " + mSenderStats.getShedMoves()
+                + "  discrete " + mSenderStats.getShedDiscrete());
+        if ((args != null) && (args.length > 0) && "reset".equals(args[0])) {
+            mInputLatency.reset();
+            writer.print(prefix);
+            writer.println("  reset");
+        }
     }
 
     @Override
-    public void OnTapEvent(int fingers) {
-        Logging.d(TAG, "OnTapEvent: ");
-        sendGestureEvent(CmdConsts.KACTION_TAP + " " + fingers);
+    public void onSenderStateChanged(SenderSupervisor.State state, int failures, long retryInMS) {
+        Logging.d(TAG, "onSenderStateChanged:", state, failures, retryInMS);
+        mMainHandler.post(this::updateConnectionStatus);
     }
 
-    @Override
-    public void OnFlashScreen(long duration) {
-        Logging.d(TAG, "OnFlashScreen");
-        mContentView.setBackgroundColor(mContentBackgroundColorFlash);
-        mMainHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                mContentView.setBackgroundColor(mContentBackgroundColor);
-            }
-        }, duration);
+    /**
+     * Stops the supervisor and waits for it, it joins its sender, so afterwards nothing
+     * consumes the command ring or touches the health and retransmission state anymore.
+     * Those are reset only then, the next connection starts without the old RTT and loss.
+     */
+    private void stopUDPClientThread() {
+        if (mSenderSupervisor == null) return;
+        Logging.d(TAG, "stopUDPClientThread");
+        mSenderSupervisor.interrupt();
+        try {
+            mSenderSupervisor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mSenderSupervisor = null;
+        mConnectionHealth.reset();
+        mRetransmitQueue.clear();
     }
 
-    private void sendGestureEvent(String s) {
-        Logging.d(TAG, "sendGestureEvent: " + s);
-        mUDPCmdQueue.add(s);
+    /**
+     * @return true when the running supervisor was started with these settings
+     */
+    private boolean isSenderCurrent(String hostIP, Integer hostPort, Integer batchSize, Integer batchDeadline) {
+        return (mSenderSupervisor != null) && mSenderSupervisor.isAlive() && mWifiIsOnline
+                && hostIP.equals(mSenderHostIP) && hostPort.equals(mSenderHostPort)
+                && batchSize.equals(mSenderBatchSize) && batchDeadline.equals(mSenderBatchDeadline);
     }
 
     private void startUDPClientThread(String hostIP, Integer hostPort) {
         Logging.d(TAG, "startUDPClientThread");
-        //TODO PING-PONG for connection status
-        if (mUDPClientThread != null) {
-            mUDPClientThread.interrupt();
-        }
+        stopUDPClientThread();
         if (hostIP.isEmpty()) {
             setStatusText(StatusType.Error, getText(R.string.settings_notif_notset).toString());
             return;
@@ -437,9 +554,19 @@ public class TouchpadActivity extends AppCompatActivity
             return;
         }
         mUDPCmdQueue.clear();
-        setStatusText(StatusType.OK, String.format("%s / %s", AppPrefs.getHostSystemName(), AppPrefs.getHostSystemIP()));
-        mUDPClientThread = new UDPClientThread(hostIP, hostPort, mUDPCmdQueue);
-        mUDPClientThread.start();
+        setStatusText(StatusType.OK, getHostStatusText());
+        SenderSupervisor supervisor = new SenderSupervisor(hostIP, hostPort, mUDPCmdQueue, mConnectionHealth,
+                mRetransmitQueue, this);
+        mSenderHostIP = hostIP;
+        mSenderHostPort = hostPort;
+        mSenderBatchSize = AppPrefs.getBatchSize();
+        mSenderBatchDeadline = AppPrefs.getBatchDeadline();
+        supervisor.setBatching(mSenderBatchSize, mSenderBatchDeadline);
+        supervisor.setBackpressure(AppPrefs.getMoveDeadline(), UDPClientThread.KDISCRETE_BACKLOG_DEFAULT);
+        supervisor.setLatency(mInputLatency);
+        supervisor.setStats(mSenderStats);
+        mSenderSupervisor = supervisor;
+        mSenderSupervisor.start();
     }
 
 }
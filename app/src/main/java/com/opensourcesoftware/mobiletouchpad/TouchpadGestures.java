@@ -25,14 +25,16 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.opensourcesoftware.mobiletouchpad;
 
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.VibrationEffect;
-import android.view.GestureDetector;
+import android.view.Choreographer;
 import android.view.MotionEvent;
-import android.view.ScaleGestureDetector;
 import android.view.View;
 import android.os.Vibrator;
-
-import androidx.core.view.GestureDetectorCompat;
+import android.view.ViewConfiguration;
 
 /*
     NOTES:
@@ -42,288 +44,247 @@ import androidx.core.view.GestureDetectorCompat;
 
 import static android.content.Context.VIBRATOR_SERVICE;
 
-public class TouchpadGestures extends GestureDetector.SimpleOnGestureListener
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Turns the touch stream into touchpad commands. The work is done by
+ * {@link TouchProcessor}, this side drives its timers and frames and gives the
+ * feedback.
+ *
+ * The touch listener only copies the pointer samples into a {@link TouchSampleRing},
+ * everything else runs on a high priority input thread so a busy UI thread doesn't
+ * delay the commands, listener callbacks come from that thread too.
+ */
+public class TouchpadGestures
         implements
             View.OnTouchListener,
-            ScaleGestureDetector.OnScaleGestureListener {
+            TouchProcessor.TouchProcessorListener,
+            Choreographer.FrameCallback {
 
     public interface TouchGesturesEventsListener {
-        void OnSwipeEvent(SwipeDirection direction, int fingers);
-        void OnPinchEvent(PinchDirection direction, int fingers);
-        void OnMoveDragBeginEvent();
-        void OnMoveDragEndEvent();
-        void OnMoveEvent(int x, int y);
-        void OnScrollDownEvent(String speed);
-        void OnScrollUpEvent(String speed);
-        void OnScrollLeftEvent(String speed);
-        void OnScrollRightEvent(String speed);
-        void OnClickDefaultEvent();
-        void OnClickOptionsEvent();
-        void OnClickDoubleEvent();
-        void OnTapEvent(int fingers);
+        // opcode and arguments as WireProtocol defines them, eventNS is when the touch
+        // that caused it happened
+        void OnGestureCommand(int opcode, int arg0, int arg1, long eventNS);
         void OnFlashScreen(long duration);
     }
 
     private final static String TAG = "TouchpadGestures";
-    private final static float KBOUNDS_XY = 100.f;
-
-    public enum SwipeDirection {
-        swipeUp,
-        swipeDown,
-        swipeLeft,
-        swipeRight
-    };
-
-    public enum PinchDirection {
-        pinchIn,
-        pinchOut
-    };
-
-    public enum MovementAction {
-        actionNone,
-        actionSwipe,
-        actionPinch,
-        actionScroll,
-        actionLongPress,
-        actionTaps,
-        actionMove
-    };
-
-    private int mFingersDown = 0;
-    private int mTapFingers = 0;
-    private int mPinchFingersDown = 0;
-    private int mScrollFingersDown = 0;
-    private SwipeDirection mSwipeDirection = SwipeDirection.swipeDown;
-
-    private long mLastActionTS = 0;
-    private MovementAction mMovementAction = MovementAction.actionNone;
-    private PinchDirection mMovePinchDirection;
-    private float mPinchScaleFactor = 0.f;
+    // thresholds are in motion units, screen pixels or, in high resolution mode,
+    // pixels of a KREFERENCE_DENSITY screen so they cover the same finger travel on
+    // every device
+    private final static float KREFERENCE_DENSITY = 2.f;
+    private final static String KTRACE_EXTENSION = ".trace";
 
     private TouchGesturesEventsListener mListener = null;
-    private boolean moveDrag = false;
     private View mTargetView = null;
 
-    private final ScaleGestureDetector mScaleDetector;
-    private final GestureDetectorCompat mGestureDetectorCompat;
-    private final UILongPressGestureRecognizer mLongPressGestureRecognizer;
-
-    private boolean mScrollNatural = false;
-    private float mScrollMultiplier = 1.f;
-
-    private long mBounceTimeOutMS = 55;
-    private long mLongPressTimeOut = UILongPressGestureRecognizer.KLONG_PRESS_TIMEOUT_MAX;
-
-//    private final Handler mainHandler = new Handler();
+    private final TouchProcessor mProcessor = new TouchProcessor(this);
+    private final TouchSampleRing mSamples = new TouchSampleRing();
+    private final int[] mPointerIds = new int[TouchSampleRing.KMAX_POINTERS];
+    private final float[] mPointerX = new float[TouchSampleRing.KMAX_POINTERS];
+    private final float[] mPointerY = new float[TouchSampleRing.KMAX_POINTERS];
+    private final HandlerThread mInputThread;
+    private final Handler mHandler;
+    private final AtomicBoolean mDrainPending = new AtomicBoolean(false);
+    private final Runnable mDrainRunnable = this::drainSamples;
+    private final Runnable mTimeoutRunnable = this::onGestureTimeout;
+    private long mScheduledDeadline = Long.MAX_VALUE;
+    private final float mDensity;
+    private TouchTrace.Writer mTrace = null;
 
     public TouchpadGestures(View v, TouchGesturesEventsListener listener) {
         Logging.d(TAG, "TouchpadGestures");
         mTargetView = v;
         mListener = listener;
+        mDensity = v.getResources().getDisplayMetrics().density;
+        mInputThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mInputThread.start();
+        mHandler = new Handler(mInputThread.getLooper());
+        mProcessor.setLongPressTimeout(ViewConfiguration.getLongPressTimeout());
+        mProcessor.setDoubleTapTimeout(ViewConfiguration.getDoubleTapTimeout());
+        mProcessor.setTouchSlop(ViewConfiguration.get(v.getContext()).getScaledTouchSlop());
+        mProcessor.setDoubleTapSlop(ViewConfiguration.get(v.getContext()).getScaledDoubleTapSlop());
+    }
 
-        mScaleDetector = new ScaleGestureDetector(v.getContext(), this);
-        mScaleDetector.setQuickScaleEnabled(false);
-        mGestureDetectorCompat = new GestureDetectorCompat(v.getContext(), this);
-
-        mLongPressGestureRecognizer = new UILongPressGestureRecognizer(() -> {
-//                Logging.d(TAG, "onLongPressEvent: FINGERS: " + mFingersDown);
-            long currTS = System.currentTimeMillis();
-            if (mFingersDown == 2 && ((currTS - mLastActionTS) >= mLongPressTimeOut)) {
-                setAction(MovementAction.actionLongPress);
-                vibrate(AppPrefs.KVIBRATE_LONG);
-                mListener.OnClickOptionsEvent();
-            }
-            mLastActionTS = currTS;
-        });
-        mLongPressTimeOut = mLongPressGestureRecognizer.getLongPressTimeOut();
+    /**
+     * Runs r on the input thread, the setters below may only be called from there once
+     * touches are coming in.
+     */
+    public void runOnInputThread(Runnable r) {
+        mHandler.post(r);
+    }
+
+    public void quit() {
+        Logging.d(TAG, "quit");
+        mHandler.post(this::stopTrace);
+        mInputThread.quitSafely();
+    }
+
+    public long getDroppedSamples() {
+        return mSamples.getDroppedCount();
     }
 
     public void setBounce(long bounce) {
-        Logging.d(TAG, "setBounce " + bounce);
-        mBounceTimeOutMS = bounce;
+        Logging.d(TAG, "setBounce", bounce);
+        mProcessor.setBounce(bounce);
     }
 
     public void setScrollMultiplier(float multiplier) {
-        Logging.d(TAG, "setScrollMultiplier " + multiplier);
-        mScrollMultiplier = multiplier;
+        Logging.d(TAG, "setScrollMultiplier", multiplier);
+        mProcessor.setMultiplier(multiplier);
     }
 
-    public void setScrollNatural(boolean natural) {
-        Logging.d(TAG, "setScrollNatural " + natural);
-        mScrollNatural = natural;
+    public void setAccelerationCurve(AccelerationCurve curve) {
+        Logging.d(TAG, "setAccelerationCurve", curve);
+        mProcessor.setAccelerationCurve(curve);
     }
 
-    public boolean isAction(MovementAction action) {
-        return mMovementAction == action;
+    /**
+     * In high resolution mode motion and thresholds are measured in density independent
+     * units, so the cursor covers the same distance for the same finger travel on a
+     * phone and on a tablet.
+     */
+    public void setHighResolution(boolean highResolution) {
+        Logging.d(TAG, "setHighResolution", highResolution, mDensity);
+        mProcessor.setUnitScale(highResolution ? KREFERENCE_DENSITY / mDensity : 1.f);
     }
 
-    private void setAction(MovementAction action) {
-        mMovementAction = action;
+    /**
+     * @param horizonMS how far ahead moves are predicted, 0 sends the measured motion
+     */
+    public void setPredictionHorizon(int horizonMS) {
+        Logging.d(TAG, "setPredictionHorizon", horizonMS);
+        mProcessor.setPredictionHorizon(horizonMS);
     }
 
-    @Override
-    public boolean onScaleBegin(ScaleGestureDetector detector) {
-        Logging.d(TAG, "onScaleBegin: FINGERS " + mFingersDown);
-        mPinchFingersDown = mFingersDown;
-        setAction(MovementAction.actionPinch);
-        return true;
+    public MotionPredictor.Stats getPredictionStats() {
+        return mProcessor.getPredictionStats();
     }
 
-    @Override
-    public boolean onScale(ScaleGestureDetector detector) {
-        Logging.d(TAG, "onScale: ");
-        mPinchScaleFactor = detector.getScaleFactor();
-        if ((mPinchScaleFactor < 0.7f || mPinchScaleFactor > 1.3f) && (mMovementAction == MovementAction.actionPinch)) {
-            mMovePinchDirection = (mPinchScaleFactor < 1.f) ?
-                    PinchDirection.pinchOut :
-                    PinchDirection.pinchIn;
-        }
-        return false;
+    public void setScrollNatural(boolean natural) {
+        Logging.d(TAG, "setScrollNatural", natural);
+        mProcessor.setScrollNatural(natural);
     }
 
-    @Override
-    public void onScaleEnd(ScaleGestureDetector detector) {
-        if (!isAction(MovementAction.actionPinch)) return;
-        Logging.d(TAG, "onScaleEnd: " + mPinchScaleFactor);
-        long currTS = System.currentTimeMillis();
-        if (!isBounce(mLastActionTS, currTS)) {
-            mLastActionTS = currTS;
-            mListener.OnPinchEvent(mMovePinchDirection, mPinchFingersDown);
-        }
+    public GestureStateMachine.State getGestureState() {
+        return mProcessor.getGestureState();
     }
 
-    @Override
-    public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
-//        Logging.d(TAG, "onFling: FINGERS " + mScrollFingersDown);
-//        if (mScrollFingersDown >= 3) {
-//            if (isBounce(lastMovementActionTS, System.currentTimeMillis())) {
-//                return true;
-//            }
-//            lastMovementActionTS = System.currentTimeMillis();
-//            mListener.OnSwipeEvent(mSwipeDirection, mScrollFingersDown);
-//        }
-        return true;
+    /**
+     * Starts recording the touch session into a new trace file in dir, replay it with
+     * the tools module. Input thread.
+     */
+    public void startTrace(File dir) {
+        if (mTrace != null) return;
+        String name = "touch-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File file = new File(dir, name + KTRACE_EXTENSION);
+        Logging.d(TAG, "startTrace", file);
+        // the file is opened and written on a background thread, never here
+        mTrace = new TouchTrace.Writer(new BackgroundFileOutputStream(file));
+        mProcessor.setTraceWriter(mTrace);
     }
 
-    @Override
-    public void onLongPress(MotionEvent e) {
-        Logging.d(TAG, "onLongPress");
-
-        if (!isAction(MovementAction.actionNone) || isBounce(mLastActionTS, System.currentTimeMillis())) return;
-        // better detection for one finger long press
-        setAction(MovementAction.actionLongPress);
-        moveDrag = true;
-        vibrate(AppPrefs.KVIBRATE_SHORT);
-        mListener.OnMoveDragBeginEvent();
+    /**
+     * Input thread.
+     */
+    public void stopTrace() {
+        if (mTrace == null) return;
+        Logging.d(TAG, "stopTrace: records", mTrace.getRecordCount(), mTrace.getByteCount());
+        mProcessor.setTraceWriter(null);
+        mTrace.close();
+        mTrace = null;
     }
 
+    /**
+     * UI thread, copies the event and its batched history into the sample ring.
+     */
     @Override
-    public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
-        if (isAction(MovementAction.actionPinch) && mFingersDown != 1) return true;
-        SwipeDirection swipeDirection = swipeDirectionFromXYDist(distanceX, distanceY);
-        long currTS = System.currentTimeMillis();
-        boolean isScrollOrNone = isAction(MovementAction.actionNone) || isAction(MovementAction.actionScroll);
-//        Logging.d(TAG, "onScroll: " + (mFingersDown >= 2 ? swipeDirection.toString() : "") + " X: " + distanceX + " Y: " + distanceY + " FINGERS: " + mFingersDown);
-
-        if ((mFingersDown > 2) && isAction(MovementAction.actionNone)) {
-            // swipe with 3 or more fingers
-            if (mFingersDown >= mScrollFingersDown) {
-                mScrollFingersDown = mFingersDown;
-                mSwipeDirection = swipeDirection;
-                setAction(MovementAction.actionSwipe);
-            }
-            mLastActionTS = currTS;
-            return true;
-        } else if ((mFingersDown == 2) && !isBounce(mLastActionTS, currTS) && isScrollOrNone) {
-            setAction(MovementAction.actionScroll);
-            // scroll with 2 fingers
-            String speed = "FAST";
-            float absX = Math.abs(distanceX);
-            float absY = Math.abs(distanceY);
-            float dist = Math.max(absX, absY);
-            if (dist <= 15.f) {
-                speed = "SLOW";
-            } else if (dist <= 30.f) {
-                speed = "NORMAL";
-            }
-            speed += " " + dist;
-            float scrollDelta = 2.5f;//5;
-            if (dist >= scrollDelta) {
-                switch (swipeDirection) {
-                    case swipeUp:
-                        if (mScrollNatural) {
-                            mListener.OnScrollDownEvent(speed);
-                        } else mListener.OnScrollUpEvent(speed); break;
-                    case swipeDown:
-                        if (mScrollNatural) {
-                            mListener.OnScrollUpEvent(speed);
-                        } else mListener.OnScrollDownEvent(speed); break;
-                    case swipeLeft: mListener.OnScrollLeftEvent(speed); break;
-                    case swipeRight: mListener.OnScrollRightEvent(speed); break;
+    public boolean onTouch(View v, MotionEvent event) {
+        int action = event.getActionMasked();
+        int pointerCount = Math.min(event.getPointerCount(), TouchSampleRing.KMAX_POINTERS);
+        boolean isMove = action == MotionEvent.ACTION_MOVE;
+        if (isMove) {
+            int historySize = event.getHistorySize();
+            for (int h = 0; h < historySize; h++) {
+                if (!mSamples.begin(true, action, 0, pointerCount, true, event.getHistoricalEventTime(h))) break;
+                for (int p = 0; p < pointerCount; p++) {
+                    mSamples.setPointer(p, event.getPointerId(p), event.getHistoricalX(p, h), event.getHistoricalY(p, h));
                 }
-                mLastActionTS = System.currentTimeMillis();
+                mSamples.publish();
             }
-        } else if ((mFingersDown == 1) && isAction(MovementAction.actionNone)) {
-            // move cursor with one finger
-            float x = -distanceX;
-            float y = -distanceY;
-
-            sendOnMoveEvent(x, y);
+        }
+        if (mSamples.begin(isMove, action, event.getActionIndex(), pointerCount, false, event.getEventTime())) {
+            for (int p = 0; p < pointerCount; p++) {
+                mSamples.setPointer(p, event.getPointerId(p), event.getX(p), event.getY(p));
+            }
+            mSamples.publish();
+        }
+        if (mDrainPending.compareAndSet(false, true)) {
+            mHandler.post(mDrainRunnable);
         }
         return true;
     }
 
-    private float limitToBounds(float value, float lower, float upper) {
-        if (value > upper) {
-            return upper;
-        } else if (value < lower) {
-            return lower;
+    private void drainSamples() {
+        // cleared first, a sample published from here on posts another drain
+        mDrainPending.set(false);
+        while (!mSamples.isEmpty()) {
+            int action = mSamples.getAction();
+            if (action == MotionEvent.ACTION_DOWN) {
+                // a new touch catches a scroll that is still gliding
+                Choreographer.getInstance().removeFrameCallback(this);
+            }
+            mSamples.copyPointers(mPointerIds, mPointerX, mPointerY);
+            mProcessor.onTouchSample(action, mSamples.getActionIndex(), mSamples.getPointerCount(),
+                    mSamples.isHistorical(), mPointerIds, mPointerX, mPointerY, mSamples.getTime());
+            mSamples.remove();
+            // a gesture ended, hand what was recorded so far to the file thread so it
+            // survives the app being killed
+            if ((mTrace != null) && (action == MotionEvent.ACTION_UP)) mTrace.flush();
         }
-        return value;
+        scheduleGestureTimeout();
     }
 
-    @Override
-    public boolean onSingleTapConfirmed(MotionEvent e) {
-        Logging.d(TAG, "onSingleTapConfirmed: ");
-        mListener.OnClickDefaultEvent();
-        return super.onSingleTapConfirmed(e);
+    private void onGestureTimeout() {
+        mScheduledDeadline = Long.MAX_VALUE;
+        mProcessor.onTimeout(SystemClock.uptimeMillis());
+        scheduleGestureTimeout();
     }
 
-    @Override
-    public boolean onDoubleTap(MotionEvent e) {
-        Logging.d(TAG, "onDoubleTap: ");
-        mListener.OnClickDoubleEvent();
-        return super.onDoubleTap(e);
+    private void scheduleGestureTimeout() {
+        long deadline = mProcessor.getDeadline();
+        if (deadline == mScheduledDeadline) return;
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mScheduledDeadline = deadline;
+        // event times are uptime, same clock as the handler
+        if (deadline != Long.MAX_VALUE) mHandler.postAtTime(mTimeoutRunnable, deadline);
     }
 
-    private SwipeDirection swipeDirectionFromXYDist(float xDist, float yDist) {
-        Logging.d(TAG, "swipeDirectionFromXYDist");
-        SwipeDirection direction;
-        float dist = 0;
-        if (Math.abs(xDist) > Math.abs(yDist)) {
-            // x axis
-            direction = xDist > 0 ? SwipeDirection.swipeLeft : SwipeDirection.swipeRight;
-            dist = Math.abs(xDist);
-        } else {
-            // y axis
-            direction = yDist > 0 ? SwipeDirection.swipeUp : SwipeDirection.swipeDown;
-
-            // natural scroll support ^_^
-//            if (mScrollNatural && (mFingersDown == 2)) {
-//                direction = (direction == SwipeDirection.swipeDown) ?
-//                        SwipeDirection.swipeUp :
-//                        SwipeDirection.swipeDown;
-//            }
+    @Override
+    public void onCommand(int opcode, int arg0, int arg1, long eventNS) {
+        // event times are uptime, the same monotonic clock as System.nanoTime()
+        mListener.OnGestureCommand(opcode, arg0, arg1, eventNS);
+    }
 
-            dist = Math.abs(yDist);
-        }
+    @Override
+    public void onFeedback(int feedback) {
+        vibrate((feedback == TouchProcessor.KFEEDBACK_OPTIONS) ? AppPrefs.KVIBRATE_LONG : AppPrefs.KVIBRATE_SHORT);
+    }
 
-//        Logging.d(TAG, "swipeDirectionFromXYDist: " + direction.toString() + " dist: " + dist + " x: " + xDist + " y: " + yDist);
-        return direction;
+    @Override
+    public void onFlingStarted() {
+        Choreographer.getInstance().postFrameCallback(this);
     }
 
-    private boolean isBounce(long prevTMS, long currTMS) {
-        return ((currTMS - prevTMS) <= mBounceTimeOutMS);
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (mProcessor.onFrame(frameTimeNanos)) {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
     }
 
     private void vibrate(long duration) {
@@ -337,68 +298,4 @@ public class TouchpadGestures extends GestureDetector.SimpleOnGestureListener
         }
     }
 
-    @Override
-    public boolean onTouch(View v, MotionEvent event) {
-//        Logging.d(TAG, "onTouch");
-        int action = event.getActionMasked();
-        long currentTimeMS = System.currentTimeMillis();
-
-        if (action == MotionEvent.ACTION_DOWN) {
-            // at least one finger down
-            mFingersDown = 1;
-            mTapFingers = 1;
-            mScrollFingersDown = 0;
-            setAction(MovementAction.actionNone);
-        } else if (action == MotionEvent.ACTION_POINTER_DOWN) {
-            // two or more fingers down
-            mFingersDown++;
-            mTapFingers++;
-        } else if (action == MotionEvent.ACTION_POINTER_UP) {
-            // one finger was raised from the screen surface
-            mFingersDown--;
-        } else if (action == MotionEvent.ACTION_UP) {
-            // all fingers are raised from the screen surface
-            if (moveDrag) {
-                moveDrag = false;
-                mListener.OnMoveDragEndEvent();
-            } else if (isAction(MovementAction.actionSwipe)) {
-                mListener.OnSwipeEvent(mSwipeDirection, mScrollFingersDown);
-            } else if (isAction(MovementAction.actionNone) && (mTapFingers > 1)) {
-//                Logging.d(TAG, "onTouch: UP " + mTapFingers);
-                mListener.OnTapEvent(mTapFingers);
-            }
-            setAction(MovementAction.actionNone);
-        } else if (action == MotionEvent.ACTION_MOVE) {
-            if (moveDrag) {
-                int historySize = event.getHistorySize();
-                if (historySize > 1) {
-                    float x0 = event.getHistoricalX(historySize -2);
-                    float x1 = event.getHistoricalX(historySize -1);
-                    float y0 = event.getHistoricalY(historySize -2);
-                    float y1 = event.getHistoricalY(historySize -1);
-                    float x = x1 - x0;
-                    float y = y1 - y0;
-
-                    sendOnMoveEvent(x, y);
-                }
-                return true;
-            }
-        }
-
-        mScaleDetector.onTouchEvent(event);
-        mGestureDetectorCompat.onTouchEvent(event);
-        mLongPressGestureRecognizer.onTouchEvent(event);
-
-        return true;
-    }
-
-    private void sendOnMoveEvent(float x, float y) {
-        Logging.d(TAG, "sendOnMoveEvent");
-        x = limitToBounds(x, -KBOUNDS_XY, KBOUNDS_XY) * mScrollMultiplier;
-        y = limitToBounds(y, -KBOUNDS_XY, KBOUNDS_XY) * mScrollMultiplier;
-        mListener.OnMoveEvent(Math.round(x), Math.round(y));
-    }
-
 }
-
-
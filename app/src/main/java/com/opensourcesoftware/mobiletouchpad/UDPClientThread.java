@@ -24,63 +24,471 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.opensourcesoftware.mobiletouchpad;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketTimeoutException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
 
-public class UDPClientThread extends Thread {
+/**
+ * Sends the queued commands to the host over a connected DatagramChannel. Frames are
+ * encoded in place into a single preallocated direct buffer and the command being
+ * encoded is kept in plain int fields, so the steady state send path allocates nothing.
+ * Once a binary version is negotiated discrete commands carry a sequence number and are
+ * retransmitted from the RetransmitQueue until the host acknowledges them.
+ */
+public class UDPClientThread extends Thread implements UDPReceiverThread.UDPReceiverListener {
 
     private final static String TAG = "UDPClientThread";
 
-    private String mHostIP = "";
-    private Integer mHostPort = 0;
-    private ConcurrentLinkedQueue<String> mCmdQueue;
+    public static final long KMOVE_DEADLINE_MS_DEFAULT = 150;
+    public static final int KDISCRETE_BACKLOG_DEFAULT = 16;
+    // hosts older than KVERSION_BINARY_2 get a scroll of at least 2.5px at most every
+    // 55ms, like before continuous scrolling, every command is a discrete step there
+    private static final int KLEGACY_SCROLL_MIN_TENTHS = 25;
+    private static final long KLEGACY_SCROLL_INTERVAL_NS = 55 * 1000000L;
+    // a held back scroll remainder this old isn't carried into the next scroll
+    private static final long KLEGACY_SCROLL_IDLE_NS = 250 * 1000000L;
+    // HELLO offers made to a host that hasn't upgraded, it may still be starting up
+    static final int KHELLO_OFFERS_MAX = 3;
 
-    UDPClientThread(String hostIP, Integer hostPort, ConcurrentLinkedQueue<String> cmdQueue) {
+    private final InetSocketAddress mHostAddress;
+    private GestureEventRing mCmdQueue;
+    private final ConnectionHealth mHealth;
+    private final RetransmitQueue mRetransmitQueue;
+    // version used for the frame being built, follows mNegotiatedVersion
+    private int mProtocolVersion = WireProtocol.KVERSION_TEXT;
+    private volatile int mNegotiatedVersion = WireProtocol.KVERSION_TEXT;
+    private int mHelloOffers = 0;
+    // a PONG came back while still on text, the host answered without upgrading
+    private volatile boolean mTextPongSeen = false;
+    private final ByteBuffer mTxBuffer = ByteBuffer.allocateDirect(WireProtocol.KMAX_FRAME_SIZE);
+    private SenderStats mStats = new SenderStats();
+    // command being encoded
+    private int mCmdOpcode = 0;
+    private int mCmdArg0 = 0;
+    private int mCmdArg1 = 0;
+    private boolean mHasCarryCmd = false;
+    // sequence number of a retransmitted command, 0 for a new one
+    private int mCmdSeq = 0;
+    // oldest touch event time and dequeue time of the command and of the frame,
+    // Long.MAX_VALUE for pings and retransmissions, which aren't measured
+    private long mCmdEventNS = Long.MAX_VALUE;
+    private long mCmdDequeueNS = 0;
+    private long mFrameEventNS = Long.MAX_VALUE;
+    private long mFrameDequeueNS = 0;
+    private volatile InputLatency mLatency = null;
+    private final int[] mRetxSeqs = new int[RetransmitQueue.KCAPACITY];
+    private final int[] mRetxOpcodes = new int[RetransmitQueue.KCAPACITY];
+    private final int[] mRetxArgs0 = new int[RetransmitQueue.KCAPACITY];
+    private final int[] mRetxArgs1 = new int[RetransmitQueue.KCAPACITY];
+    // batching, payload bytes per datagram, 0 sends one command per datagram
+    private int mBatchSize = 0;
+    private volatile long mMoveDeadlineNS = TimeUnit.MILLISECONDS.toNanos(KMOVE_DEADLINE_MS_DEFAULT);
+    private volatile int mDiscreteBacklog = KDISCRETE_BACKLOG_DEFAULT;
+    private long mFlushDeadlineNS = 0;
+    private int mLastMergePos = -1;
+    private int mLastMergeOpcode = 0;
+    private int mLastMergeX = 0;
+    private int mLastMergeY = 0;
+    // scroll held back for a legacy host, tenths of a pixel
+    private int mLegacyScrollX = 0;
+    private int mLegacyScrollY = 0;
+    private long mLegacyScrollEventNS = Long.MAX_VALUE;
+    private long mLegacyScrollHeldNS = 0;
+    private long mLegacyScrollSentNS = 0;
+
+    UDPClientThread(InetSocketAddress hostAddress, GestureEventRing cmdQueue, ConnectionHealth health,
+                    RetransmitQueue retransmitQueue) {
         Logging.d(TAG, "UDPClientThread()");
-        mHostIP = hostIP;
-        mHostPort = hostPort;
+        mHostAddress = hostAddress;
         mCmdQueue = cmdQueue;
+        mHealth = health;
+        mRetransmitQueue = retransmitQueue;
+    }
+
+    /**
+     * Packs as many queued commands as fit in payloadSize bytes into each datagram,
+     * waiting at most flushDeadlineUS for more commands once a frame is started.
+     */
+    public void setBatching(int payloadSize, long flushDeadlineUS) {
+        Logging.d(TAG, "setBatching", payloadSize, flushDeadlineUS);
+        mBatchSize = Math.min(payloadSize, mTxBuffer.capacity());
+        mFlushDeadlineNS = TimeUnit.MICROSECONDS.toNanos(flushDeadlineUS);
+    }
+
+    /**
+     * Moves and scrolls queued for longer than moveDeadlineMS are dropped instead of
+     * sent, and once more than discreteBacklog discrete commands are queued the oldest
+     * are dropped. Drag begin/end are never dropped, the host would be left holding
+     * the button. Once the host is back the pointer picks up from where the finger is
+     * now instead of replaying everything that piled up.
+     */
+    public void setBackpressure(long moveDeadlineMS, int discreteBacklog) {
+        Logging.d(TAG, "setBackpressure", moveDeadlineMS, discreteBacklog);
+        mMoveDeadlineNS = TimeUnit.MILLISECONDS.toNanos(moveDeadlineMS);
+        mDiscreteBacklog = Math.max(1, discreteBacklog);
+    }
+
+    /**
+     * Records the queue, send and total stages into latency, null stops measuring.
+     */
+    public void setLatency(InputLatency latency) {
+        mLatency = latency;
+    }
+
+    public int getProtocolVersion() {
+        return mNegotiatedVersion;
+    }
+
+    /**
+     * Counts into stats instead of a private SenderStats, set before start().
+     */
+    public void setStats(SenderStats stats) {
+        mStats = stats;
+    }
+
+    public SenderStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public void onHello(int version) {
+        Logging.d(TAG, "onHello", version);
+        mHealth.onHostSeen(System.nanoTime());
+        if ((version > WireProtocol.KVERSION_TEXT) && (version <= WireProtocol.KVERSION_MAX)) {
+            mNegotiatedVersion = version;
+        }
+    }
+
+    @Override
+    public void onPong(int seq, long nowNS) {
+        if (mNegotiatedVersion == WireProtocol.KVERSION_TEXT) mTextPongSeen = true;
+        mHealth.onPongReceived(seq, nowNS);
+    }
+
+    @Override
+    public void onAck(int seq, long nowNS) {
+        mHealth.onHostSeen(nowNS);
+        mRetransmitQueue.onAck(seq, nowNS);
+    }
+
+    /**
+     * Takes the next command off the queue into the mCmd fields. Consecutive moves, or
+     * scrolls, are summed into one so after a stall the host gets the net motion in a
+     * single packet instead of a burst of stale ones. Every other command is a barrier,
+     * deltas are never merged across it. Scrolls for a legacy host are held back, see
+     * holdLegacyScroll.
+     *
+     * @return false if no command is ready
+     */
+    private boolean pollCoalesced() {
+        if (mCmdQueue.isEmpty()) return false;
+        long nowNS = System.nanoTime();
+        if (!shedStale(nowNS)) return false;
+        InputLatency latency = mLatency;
+        mCmdOpcode = mCmdQueue.peekOpcode();
+        mCmdArg0 = mCmdQueue.peekArg0();
+        mCmdArg1 = mCmdQueue.peekArg1();
+        mCmdEventNS = mCmdQueue.peekEventTime();
+        mCmdDequeueNS = nowNS;
+        if (latency != null) latency.record(InputLatency.Stage.stageQueue, nowNS - mCmdQueue.peekTimestamp());
+        mCmdQueue.remove();
+        if (!WireProtocol.isContinuous(mCmdOpcode)) return true;
+        while (!mCmdQueue.isEmpty() && (mCmdQueue.peekOpcode() == mCmdOpcode)) {
+            mCmdArg0 += mCmdQueue.peekArg0();
+            mCmdArg1 += mCmdQueue.peekArg1();
+            if (latency != null) latency.record(InputLatency.Stage.stageQueue, nowNS - mCmdQueue.peekTimestamp());
+            mCmdQueue.remove();
+            mStats.onCoalesced();
+        }
+        if ((mCmdOpcode == WireProtocol.KOP_SCROLL) && (mNegotiatedVersion < WireProtocol.KVERSION_BINARY_2)) {
+            return holdLegacyScroll(nowNS);
+        }
+        return true;
+    }
+
+    /**
+     * Adds the current scroll to the held back one and releases it once it reaches
+     * KLEGACY_SCROLL_MIN_TENTHS and KLEGACY_SCROLL_INTERVAL_NS passed since the last one.
+     *
+     * @return true if a scroll is ready in the mCmd fields
+     */
+    private boolean holdLegacyScroll(long nowNS) {
+        if (nowNS - mLegacyScrollHeldNS > KLEGACY_SCROLL_IDLE_NS) {
+            mLegacyScrollX = 0;
+            mLegacyScrollY = 0;
+            mLegacyScrollEventNS = Long.MAX_VALUE;
+        }
+        mLegacyScrollX += mCmdArg0;
+        mLegacyScrollY += mCmdArg1;
+        mLegacyScrollEventNS = Math.min(mLegacyScrollEventNS, mCmdEventNS);
+        mLegacyScrollHeldNS = nowNS;
+        mCmdEventNS = Long.MAX_VALUE;
+        return releaseLegacyScroll(nowNS);
+    }
+
+    private boolean releaseLegacyScroll(long nowNS) {
+        if (getLegacyScrollWaitNS(nowNS) > 0) return false;
+        mCmdOpcode = WireProtocol.KOP_SCROLL;
+        mCmdArg0 = mLegacyScrollX;
+        mCmdArg1 = mLegacyScrollY;
+        mCmdEventNS = mLegacyScrollEventNS;
+        mCmdDequeueNS = nowNS;
+        mLegacyScrollX = 0;
+        mLegacyScrollY = 0;
+        mLegacyScrollEventNS = Long.MAX_VALUE;
+        mLegacyScrollSentNS = nowNS;
+        return true;
+    }
+
+    /**
+     * @return how long until the held back scroll may go out, Long.MAX_VALUE if it is
+     * too small to be sent at all
+     */
+    private long getLegacyScrollWaitNS(long nowNS) {
+        if (WireProtocol.getLegacyScrollDist(mLegacyScrollX, mLegacyScrollY) < KLEGACY_SCROLL_MIN_TENTHS) {
+            return Long.MAX_VALUE;
+        }
+        return mLegacyScrollSentNS + KLEGACY_SCROLL_INTERVAL_NS - nowNS;
+    }
+
+    /**
+     * Drops stale moves and the oldest discrete commands over the backlog from the
+     * head of the queue, stops at a drag begin/end, see setBackpressure.
+     *
+     * @return false if nothing is left to send
+     */
+    private boolean shedStale(long nowNS) {
+        long moveDeadlineNS = mMoveDeadlineNS;
+        int discreteBacklog = mDiscreteBacklog;
+        int movesShed = 0;
+        int discreteShed = 0;
+        while (!mCmdQueue.isEmpty()) {
+            int opcode = mCmdQueue.peekOpcode();
+            boolean isContinuous = WireProtocol.isContinuous(opcode);
+            if (isContinuous) {
+                if (nowNS - mCmdQueue.peekTimestamp() <= moveDeadlineNS) break;
+                movesShed++;
+            } else {
+                if ((opcode == WireProtocol.KOP_MOVE_DRAG_BEGIN) || (opcode == WireProtocol.KOP_MOVE_DRAG_END)) break;
+                if (mCmdQueue.discreteSize() <= discreteBacklog) break;
+                discreteShed++;
+            }
+            mCmdQueue.remove();
+            mStats.onShed(isContinuous);
+        }
+        if ((movesShed > 0) || (discreteShed > 0)) {
+            Logging.d(TAG, "shedStale", movesShed, discreteShed);
+        }
+        return !mCmdQueue.isEmpty();
+    }
+
+    private boolean nextCmd() {
+        if (mHasCarryCmd) {
+            mHasCarryCmd = false;
+            return true;
+        }
+        if (pollCoalesced()) return true;
+        return releaseLegacyScroll(System.nanoTime());
+    }
+
+    private void beginFrame() {
+        mProtocolVersion = mNegotiatedVersion;
+        mTxBuffer.clear();
+        if (mBatchSize > 0) mTxBuffer.limit(mBatchSize);
+        mLastMergePos = -1;
+        mFrameEventNS = Long.MAX_VALUE;
+        mFrameDequeueNS = 0;
+        if (mProtocolVersion != WireProtocol.KVERSION_TEXT) {
+            WireProtocol.putHeader(mTxBuffer, mProtocolVersion);
+        }
+    }
+
+    /**
+     * Appends the current command to the frame, a move or scroll directly following
+     * another one of its kind is folded into it. Text commands are newline separated,
+     * which is how the host splits them anyway. Scrolls go out as the legacy bucketed
+     * commands to hosts older than KVERSION_BINARY_2.
+     *
+     * @return false if the command doesn't fit, the frame is left untouched
+     */
+    private boolean appendCmd() {
+        int start = mTxBuffer.position();
+        int x = mCmdArg0;
+        int y = mCmdArg1;
+        boolean isContinuous = WireProtocol.isContinuous(mCmdOpcode);
+        boolean merge = isContinuous && (mLastMergePos >= 0) && (mLastMergeOpcode == mCmdOpcode);
+        if (merge) {
+            start = mLastMergePos;
+            x += mLastMergeX;
+            y += mLastMergeY;
+        }
+        boolean isText = mProtocolVersion == WireProtocol.KVERSION_TEXT;
+        int maxSize = isText ? WireProtocol.KMAX_TEXT_CMD_SIZE : WireProtocol.KMAX_CMD_SIZE;
+        if (mTxBuffer.limit() - start < maxSize) return false;
+        mTxBuffer.position(start);
+        if (isText) {
+            WireProtocol.putTextCommand(mTxBuffer, mCmdOpcode, x, y);
+        } else if (WireProtocol.isReliable(mCmdOpcode)) {
+            int seq = mCmdSeq;
+            if (seq == 0) seq = mRetransmitQueue.track(mCmdOpcode, x, y, System.nanoTime());
+            WireProtocol.putReliableCommand(mTxBuffer, mCmdOpcode, seq, x, y);
+        } else if ((mCmdOpcode == WireProtocol.KOP_SCROLL) && (mProtocolVersion < WireProtocol.KVERSION_BINARY_2)) {
+            WireProtocol.putLegacyScrollCommand(mTxBuffer, x, y);
+        } else {
+            WireProtocol.putCommand(mTxBuffer, mCmdOpcode, x, y);
+        }
+        if (merge) mStats.onCoalesced();
+        if (mCmdEventNS != Long.MAX_VALUE) {
+            if (mFrameEventNS == Long.MAX_VALUE) mFrameDequeueNS = mCmdDequeueNS;
+            mFrameEventNS = Math.min(mFrameEventNS, mCmdEventNS);
+        }
+        mCmdSeq = 0;
+        mCmdEventNS = Long.MAX_VALUE;
+        mLastMergePos = isContinuous ? start : -1;
+        mLastMergeOpcode = mCmdOpcode;
+        mLastMergeX = x;
+        mLastMergeY = y;
+        return true;
+    }
+
+    /**
+     * Keeps adding queued commands to the frame until it is full or no command showed
+     * up within the flush deadline.
+     */
+    private void fillFrame() {
+        long deadline = System.nanoTime() + mFlushDeadlineNS;
+        while (!isInterrupted()) {
+            if (!pollCoalesced()) {
+                long wait = deadline - System.nanoTime();
+                if (wait <= 0) return;
+                mCmdQueue.await(wait);
+                continue;
+            }
+            if (!appendCmd()) {
+                mHasCarryCmd = true;
+                return;
+            }
+        }
+    }
+
+    private void sendFrame(DatagramChannel channel) throws IOException {
+        mTxBuffer.flip();
+        int bytes;
+        try {
+            bytes = channel.write(mTxBuffer);
+        } catch (PortUnreachableException e) {
+            // nothing listening on the host yet, that shows up in the health stats and
+            // is no reason to restart the sender
+            return;
+        }
+        long nowNS = System.nanoTime();
+        mStats.onFrameSent(bytes, nowNS);
+        InputLatency latency = mLatency;
+        if ((latency != null) && (mFrameEventNS != Long.MAX_VALUE) && (mFrameDequeueNS != 0)) {
+            latency.record(InputLatency.Stage.stageSend, nowNS - mFrameDequeueNS);
+            latency.record(InputLatency.Stage.stageTotal, nowNS - mFrameEventNS);
+        }
+    }
+
+    /**
+     * Sends the keepalive ping. Until a binary version is negotiated it goes out as the
+     * legacy bare PING together with a HELLO offer, so a host started after us still
+     * gets the chance to upgrade the protocol. A host that answered a PING but not the
+     * HELLO next to it is legacy, it gets no more offers, neither does one that ignored
+     * KHELLO_OFFERS_MAX of them.
+     */
+    private void sendPing(DatagramChannel channel) throws IOException {
+        beginFrame();
+        boolean isText = mProtocolVersion == WireProtocol.KVERSION_TEXT;
+        mCmdOpcode = WireProtocol.KOP_PING;
+        mCmdArg0 = isText ? 0 : mHealth.onPingSent(System.nanoTime());
+        appendCmd();
+        if (isText && !mTextPongSeen && (mHelloOffers < KHELLO_OFFERS_MAX)) {
+            mHelloOffers++;
+            mCmdOpcode = WireProtocol.KOP_HELLO;
+            mCmdArg0 = WireProtocol.KVERSION_MAX;
+            appendCmd();
+        }
+        sendFrame(channel);
+    }
+
+    /**
+     * Resends the unacknowledged commands that are due, packed into as few datagrams as
+     * the batch size allows.
+     */
+    private void sendRetransmits(DatagramChannel channel) throws IOException {
+        int count = mRetransmitQueue.collectDue(System.nanoTime(), mRetxSeqs, mRetxOpcodes,
+                mRetxArgs0, mRetxArgs1);
+        if (count == 0) return;
+        beginFrame();
+        for (int x = 0; x < count; x++) {
+            mCmdSeq = mRetxSeqs[x];
+            mCmdOpcode = mRetxOpcodes[x];
+            mCmdArg0 = mRetxArgs0[x];
+            mCmdArg1 = mRetxArgs1[x];
+            if (!appendCmd()) {
+                sendFrame(channel);
+                beginFrame();
+                appendCmd();
+            }
+        }
+        sendFrame(channel);
     }
 
     @Override
     public void run() {
         Logging.d(TAG, "run");
-        DatagramSocket ds = null;
-        long tsLastSend = 0;
+        DatagramChannel channel = null;
+        long tsLastPing = 0;
         try {
-            ds = new DatagramSocket();
+            channel = DatagramChannel.open();
+            channel.socket().setReuseAddress(true);
             // IP Address below is the IP address of that Device where server socket is opened.
-            InetAddress serverAddr = InetAddress.getByName(mHostIP);
-            DatagramPacket dp;
-            ds.setReuseAddress(true);
-            ds.setSoTimeout(1000);
+            channel.connect(mHostAddress);
+            new UDPReceiverThread(channel, this).start();
             while (!isInterrupted()) {
                 long currTS = System.currentTimeMillis();
-                if (!mCmdQueue.isEmpty()) {
-                    String data = mCmdQueue.poll();
-                    if (data == null) continue;
-                    data += "\n";
-                    dp = new DatagramPacket(data.getBytes(), data.length(), serverAddr, mHostPort);
-                    ds.send(dp);
-                    tsLastSend = currTS;
-                } else if ((currTS - tsLastSend) >= AppPrefs.KPING_INTERVAL) {
-                    mCmdQueue.add(CmdConsts.KCOMM_PING);
-                } else Thread.sleep(0, 1);
+                long sincePing = currTS - tsLastPing;
+                if (!mHasCarryCmd && (sincePing >= WireProtocol.KPING_INTERVAL)) {
+                    // pings go out even while busy, they double as the health probe
+                    sendPing(channel);
+                    tsLastPing = currTS;
+                    continue;
+                }
+                // after a restart the host has to be renegotiated first, text can't carry seqs
+                long retxWait = (mNegotiatedVersion == WireProtocol.KVERSION_TEXT) ? Long.MAX_VALUE :
+                        mRetransmitQueue.getNextDeadlineNS() - System.nanoTime();
+                if (!mHasCarryCmd && (retxWait <= 0)) {
+                    sendRetransmits(channel);
+                    continue;
+                }
+                if (nextCmd()) {
+                    beginFrame();
+                    appendCmd();
+                    if (mBatchSize > 0) fillFrame();
+                    sendFrame(channel);
+                } else {
+                    // park until a command arrives, the next ping, a retransmission or a
+                    // held back scroll is due
+                    long pingWait = TimeUnit.MILLISECONDS.toNanos(WireProtocol.KPING_INTERVAL - sincePing);
+                    long scrollWait = getLegacyScrollWaitNS(System.nanoTime());
+                    mCmdQueue.await(Math.min(pingWait, Math.min(retxWait, scrollWait)));
+                }
             }
-        } catch (SocketTimeoutException ste) {
-            Logging.e(TAG, "run: ", ste);
-            interrupt();
         } catch (Exception e) {
             Logging.e(TAG, "startUDPClientThread Thread run: ", e);
         } finally {
-            if (ds != null) {
-                ds.close();
+            if (channel != null) {
+                try {
+                    // also stops the receiver
+                    channel.close();
+                } catch (IOException e) {
+                    Logging.e(TAG, "run: close ", e);
+                }
             }
         }
     }
 }
-
-
@@ -0,0 +1,131 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the host replies (HELLO, PONG, ACK) from the sender's connected channel. Runs until
+ * the channel is closed, which is how the sender stops it.
+ */
+public class UDPReceiverThread extends Thread {
+
+    private final static String TAG = "UDPReceiverThread";
+
+    public interface UDPReceiverListener {
+        void onHello(int version);
+        void onPong(int seq, long nowNS);
+        void onAck(int seq, long nowNS);
+    }
+
+    private final DatagramChannel mChannel;
+    private final UDPReceiverListener mListener;
+    private final ByteBuffer mRxBuffer = ByteBuffer.allocateDirect(WireProtocol.KMAX_FRAME_SIZE);
+    private final byte[] mTextBuffer = new byte[WireProtocol.KMAX_FRAME_SIZE];
+
+    UDPReceiverThread(DatagramChannel channel, UDPReceiverListener listener) {
+        Logging.d(TAG, "UDPReceiverThread()");
+        mChannel = channel;
+        mListener = listener;
+    }
+
+    @Override
+    public void run() {
+        Logging.d(TAG, "run");
+        while (!isInterrupted()) {
+            try {
+                mRxBuffer.clear();
+                mChannel.read(mRxBuffer);
+                long nowNS = System.nanoTime();
+                mRxBuffer.flip();
+                if (WireProtocol.isBinaryFrame(mRxBuffer)) {
+                    parseBinary(nowNS);
+                } else {
+                    parseText(nowNS);
+                }
+            } catch (PortUnreachableException pue) {
+                // nothing listens on the host port (yet), the sender keeps pinging
+                Logging.d(TAG, "run: port unreachable");
+            } catch (ClosedChannelException cce) {
+                break;
+            } catch (IOException e) {
+                Logging.e(TAG, "run: ", e);
+                break;
+            } catch (RuntimeException e) {
+                // malformed datagram, drop it
+                Logging.e(TAG, "run: ", e);
+            }
+        }
+        Logging.d(TAG, "run: END");
+    }
+
+    private void parseBinary(long nowNS) {
+        mRxBuffer.position(mRxBuffer.position() + WireProtocol.KFRAME_HEADER_SIZE);
+        while (mRxBuffer.hasRemaining()) {
+            int opcode = mRxBuffer.get() & 0xFF;
+            switch (opcode) {
+                case WireProtocol.KOP_HELLO:
+                    mListener.onHello(WireProtocol.getVarUInt(mRxBuffer));
+                    break;
+                case WireProtocol.KOP_PONG:
+                    mListener.onPong(WireProtocol.getVarUInt(mRxBuffer), nowNS);
+                    break;
+                case WireProtocol.KOP_ACK:
+                    mListener.onAck(WireProtocol.getVarUInt(mRxBuffer), nowNS);
+                    break;
+                default:
+                    // unknown command, its length is unknown too
+                    return;
+            }
+        }
+    }
+
+    private void parseText(long nowNS) {
+        int length = mRxBuffer.remaining();
+        mRxBuffer.get(mTextBuffer, 0, length);
+        String[] lines = new String(mTextBuffer, 0, length, StandardCharsets.UTF_8).split("\n");
+        for (String line : lines) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length < 2) continue;
+            try {
+                int value = Integer.parseInt(parts[1]);
+                if (parts[0].equals(CmdConsts.KCOMM_HELLO)) {
+                    mListener.onHello(value);
+                } else if (parts[0].equals(CmdConsts.KCOMM_PONG)) {
+                    mListener.onPong(value, nowNS);
+                } else if (parts[0].equals(CmdConsts.KCOMM_ACK)) {
+                    mListener.onAck(value, nowNS);
+                }
+            } catch (NumberFormatException e) {
+                Logging.e(TAG, "parseText:", line, e);
+            }
+        }
+    }
+}
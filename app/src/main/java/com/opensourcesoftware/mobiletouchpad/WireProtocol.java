@@ -0,0 +1,405 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary framing for the touchpad commands.
+ *
+ * A binary datagram starts with {@link #KFRAME_MARKER}, which is never a valid UTF-8
+ * lead byte so the host can tell it apart from a text frame, followed by the protocol
+ * version and one or more commands. A command is a single opcode byte followed by its
+ * arguments encoded as varints, signed values are zigzag encoded so a typical
+ * ACTION:MOVE fits in 3 bytes instead of 20+.
+ *
+ * The version is negotiated with {@link CmdConsts#KCOMM_HELLO}, hosts that never answer
+ * keep receiving the newline terminated text commands. Hosts speaking the binary
+ * protocol answer KOP_PING with KOP_PONG carrying the same sequence number.
+ *
+ * Discrete commands (clicks, taps, drag begin/end, swipes and pinches) are sent with
+ * {@link #KFLAG_SEQ} set and a sequence number, the host answers KOP_ACK with that
+ * number and ignores sequence numbers it has already seen, since unacknowledged
+ * commands are retransmitted. Moves and scrolls are never acknowledged.
+ *
+ * Version 2 adds {@link #KOP_SCROLL}, a continuous scroll delta. Older hosts get it
+ * downgraded to one of the bucketed SCROLL_xx commands through {@link #getLegacyScrollOpcode},
+ * {@link #getLegacyScrollSpeed} and {@link #getLegacyScrollDist}.
+ */
+public final class WireProtocol {
+
+    public static final int KPORT_DEFAULT = 19999;
+    public static final long KPING_INTERVAL = 1000;
+
+    public static final byte KFRAME_MARKER = (byte) 0xFE;
+    public static final int KFRAME_HEADER_SIZE = 2;
+
+    public static final int KVERSION_TEXT = 0;
+    public static final int KVERSION_BINARY_1 = 1;
+    public static final int KVERSION_BINARY_2 = 2;
+    public static final int KVERSION_MAX = KVERSION_BINARY_2;
+
+    // largest encoded command, opcode plus sequence and two arguments as 5 byte varints
+    public static final int KMAX_CMD_SIZE = 16;
+    // largest text command including the newline, ACTION:MOVE with two 11 digit ints
+    public static final int KMAX_TEXT_CMD_SIZE = 48;
+    public static final int KMAX_FRAME_SIZE = 1400;
+
+    // session
+    public static final int KOP_HELLO = 0x01;
+    public static final int KOP_PING = 0x02;
+    public static final int KOP_PONG = 0x03;
+    public static final int KOP_ACK = 0x04;
+    // set on the opcode of a reliable command, a varint sequence number follows it
+    public static final int KFLAG_SEQ = 0x80;
+    // pointer
+    public static final int KOP_MOVE = 0x10;
+    public static final int KOP_MOVE_DRAG_BEGIN = 0x11;
+    public static final int KOP_MOVE_DRAG_END = 0x12;
+    public static final int KOP_CLICK_DEFAULT = 0x13;
+    public static final int KOP_CLICK_OPTIONS = 0x14;
+    public static final int KOP_CLICK_DOUBLE = 0x15;
+    public static final int KOP_TAP = 0x16;
+    // scroll, args: speed (0 slow, 1 normal, 2 fast), distance in tenths of a pixel
+    public static final int KOP_SCROLL_UP = 0x20;
+    public static final int KOP_SCROLL_DOWN = 0x21;
+    public static final int KOP_SCROLL_LEFT = 0x22;
+    public static final int KOP_SCROLL_RIGHT = 0x23;
+    // continuous scroll, args: dx, dy in tenths of a motion unit, negative is up/left
+    public static final int KOP_SCROLL = 0x24;
+    // gestures, swipe args: fingers, direction; pinch args: direction, fingers
+    public static final int KOP_SWIPE = 0x30;
+    public static final int KOP_PINCH = 0x31;
+
+    // gesture directions, in TouchpadGestures.SwipeDirection and PinchDirection order
+    public static final int KSWIPE_UP = 0;
+    public static final int KSWIPE_DOWN = 1;
+    public static final int KSWIPE_LEFT = 2;
+    public static final int KSWIPE_RIGHT = 3;
+    public static final int KPINCH_IN = 0;
+    public static final int KPINCH_OUT = 1;
+
+    // legacy scroll speed buckets by distance in tenths, anything above normal is fast
+    public static final int KSCROLL_SPEED_SLOW = 0;
+    public static final int KSCROLL_SPEED_NORMAL = 1;
+    public static final int KSCROLL_SPEED_FAST = 2;
+    private static final int KSCROLL_SLOW_MAX = 150;
+    private static final int KSCROLL_NORMAL_MAX = 300;
+
+    private static final byte[] KTEXT_HELLO = ascii(CmdConsts.KCOMM_HELLO);
+    private static final byte[] KTEXT_PING = ascii(CmdConsts.KCOMM_PING);
+    private static final byte[] KTEXT_MOVE = ascii(CmdConsts.KACTION_MOVE);
+    private static final byte[] KTEXT_MOVE_DRAG_BEGIN = ascii(CmdConsts.KACTION_MOVE_DRAG_BEGIN);
+    private static final byte[] KTEXT_MOVE_DRAG_END = ascii(CmdConsts.KACTION_MOVE_DRAG_END);
+    private static final byte[] KTEXT_CLICK_DEFAULT = ascii(CmdConsts.KACTION_CLICK_DEFAULT);
+    private static final byte[] KTEXT_CLICK_OPTIONS = ascii(CmdConsts.KACTION_CLICK_OPTIONS);
+    private static final byte[] KTEXT_CLICK_DOUBLE = ascii(CmdConsts.KACTION_CLICK_DOUBLE);
+    private static final byte[] KTEXT_TAP = ascii(CmdConsts.KACTION_TAP);
+    private static final byte[] KTEXT_SCROLL_UP = ascii(CmdConsts.KSCROLL_UP);
+    private static final byte[] KTEXT_SCROLL_DOWN = ascii(CmdConsts.KSCROLL_DOWN);
+    private static final byte[] KTEXT_SCROLL_LEFT = ascii(CmdConsts.KSCROLL_LEFT);
+    private static final byte[] KTEXT_SCROLL_RIGHT = ascii(CmdConsts.KSCROLL_RIGHT);
+    private static final byte[] KTEXT_SWIPE = ascii(CmdConsts.KGESTURE_SWIPE);
+    private static final byte[] KTEXT_PINCH = ascii(CmdConsts.KGESTURE_PINCH);
+    private static final byte[][] KTEXT_SCROLL_SPEEDS = {
+            ascii(CmdConsts.KSCROLL_SPEEDS[0]),
+            ascii(CmdConsts.KSCROLL_SPEEDS[1]),
+            ascii(CmdConsts.KSCROLL_SPEEDS[2])
+    };
+    private static final byte[] KTEXT_IN = ascii("IN");
+    private static final byte[] KTEXT_OUT = ascii("OUT");
+    private static final byte[] KTEXT_OK = ascii("ok");
+
+    private WireProtocol() {
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static int getArgCount(int opcode) {
+        switch (opcode) {
+            case KOP_MOVE:
+            case KOP_SCROLL_UP:
+            case KOP_SCROLL_DOWN:
+            case KOP_SCROLL_LEFT:
+            case KOP_SCROLL_RIGHT:
+            case KOP_SCROLL:
+            case KOP_SWIPE:
+            case KOP_PINCH:
+                return 2;
+            case KOP_HELLO:
+            case KOP_PING:
+            case KOP_PONG:
+            case KOP_ACK:
+            case KOP_TAP:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return true for the discrete commands that are worth retransmitting
+     */
+    public static boolean isReliable(int opcode) {
+        switch (opcode) {
+            case KOP_MOVE_DRAG_BEGIN:
+            case KOP_MOVE_DRAG_END:
+            case KOP_CLICK_DEFAULT:
+            case KOP_CLICK_OPTIONS:
+            case KOP_CLICK_DOUBLE:
+            case KOP_TAP:
+            case KOP_SWIPE:
+            case KOP_PINCH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true for the commands that carry a delta, consecutive ones can be summed
+     */
+    public static boolean isContinuous(int opcode) {
+        return (opcode == KOP_MOVE) || (opcode == KOP_SCROLL);
+    }
+
+    private static boolean isArgSigned(int opcode) {
+        return isContinuous(opcode);
+    }
+
+    /**
+     * @return the SCROLL_xx opcode for the dominant axis of a KOP_SCROLL delta
+     */
+    public static int getLegacyScrollOpcode(int dx, int dy) {
+        if (Math.abs(dx) > Math.abs(dy)) {
+            return dx < 0 ? KOP_SCROLL_LEFT : KOP_SCROLL_RIGHT;
+        }
+        return dy < 0 ? KOP_SCROLL_UP : KOP_SCROLL_DOWN;
+    }
+
+    public static int getLegacyScrollDist(int dx, int dy) {
+        return Math.max(Math.abs(dx), Math.abs(dy));
+    }
+
+    public static int getLegacyScrollSpeed(int distTenths) {
+        if (distTenths <= KSCROLL_SLOW_MAX) return KSCROLL_SPEED_SLOW;
+        if (distTenths <= KSCROLL_NORMAL_MAX) return KSCROLL_SPEED_NORMAL;
+        return KSCROLL_SPEED_FAST;
+    }
+
+    public static void putHeader(ByteBuffer buffer, int version) {
+        buffer.put(KFRAME_MARKER);
+        buffer.put((byte) version);
+    }
+
+    public static void putReliableCommand(ByteBuffer buffer, int opcode, int seq, int arg0, int arg1) {
+        buffer.put((byte) (opcode | KFLAG_SEQ));
+        putVarUInt(buffer, seq);
+        putArgs(buffer, opcode, arg0, arg1);
+    }
+
+    public static void putCommand(ByteBuffer buffer, int opcode, int arg0, int arg1) {
+        buffer.put((byte) opcode);
+        putArgs(buffer, opcode, arg0, arg1);
+    }
+
+    /**
+     * Writes a KOP_SCROLL delta as the SCROLL_xx command a version 1 host understands.
+     */
+    public static void putLegacyScrollCommand(ByteBuffer buffer, int dx, int dy) {
+        int dist = getLegacyScrollDist(dx, dy);
+        putCommand(buffer, getLegacyScrollOpcode(dx, dy), getLegacyScrollSpeed(dist), dist);
+    }
+
+    private static void putArgs(ByteBuffer buffer, int opcode, int arg0, int arg1) {
+        int argCount = getArgCount(opcode);
+        if (isArgSigned(opcode)) {
+            if (argCount > 0) putVarSInt(buffer, arg0);
+            if (argCount > 1) putVarSInt(buffer, arg1);
+        } else {
+            if (argCount > 0) putVarUInt(buffer, arg0);
+            if (argCount > 1) putVarUInt(buffer, arg1);
+        }
+    }
+
+    /**
+     * Writes the legacy text form of a command, newline included, straight into the
+     * buffer so the text fallback doesn't build any strings either.
+     */
+    public static void putTextCommand(ByteBuffer buffer, int opcode, int arg0, int arg1) {
+        switch (opcode) {
+            case KOP_HELLO:
+                buffer.put(KTEXT_HELLO).put((byte) ' ');
+                putAsciiInt(buffer, arg0);
+                break;
+            case KOP_PING:
+                // legacy hosts get the bare PING, the sequence is only sent when set
+                buffer.put(KTEXT_PING);
+                if (arg0 != 0) {
+                    buffer.put((byte) ' ');
+                    putAsciiInt(buffer, arg0);
+                }
+                break;
+            case KOP_MOVE:
+                buffer.put(KTEXT_MOVE).put((byte) ' ');
+                putAsciiInt(buffer, arg0);
+                buffer.put((byte) ' ');
+                putAsciiInt(buffer, arg1);
+                break;
+            case KOP_MOVE_DRAG_BEGIN:
+                buffer.put(KTEXT_MOVE_DRAG_BEGIN);
+                break;
+            case KOP_MOVE_DRAG_END:
+                buffer.put(KTEXT_MOVE_DRAG_END);
+                break;
+            case KOP_CLICK_DEFAULT:
+                buffer.put(KTEXT_CLICK_DEFAULT);
+                break;
+            case KOP_CLICK_OPTIONS:
+                buffer.put(KTEXT_CLICK_OPTIONS);
+                break;
+            case KOP_CLICK_DOUBLE:
+                buffer.put(KTEXT_CLICK_DOUBLE);
+                break;
+            case KOP_TAP:
+                buffer.put(KTEXT_TAP).put((byte) ' ');
+                putAsciiInt(buffer, arg0);
+                break;
+            case KOP_SCROLL_UP:
+                putTextScroll(buffer, KTEXT_SCROLL_UP, arg0, arg1);
+                break;
+            case KOP_SCROLL_DOWN:
+                putTextScroll(buffer, KTEXT_SCROLL_DOWN, arg0, arg1);
+                break;
+            case KOP_SCROLL_LEFT:
+                putTextScroll(buffer, KTEXT_SCROLL_LEFT, arg0, arg1);
+                break;
+            case KOP_SCROLL_RIGHT:
+                putTextScroll(buffer, KTEXT_SCROLL_RIGHT, arg0, arg1);
+                break;
+            case KOP_SCROLL: {
+                int dist = getLegacyScrollDist(arg0, arg1);
+                putTextCommand(buffer, getLegacyScrollOpcode(arg0, arg1), getLegacyScrollSpeed(dist), dist);
+                return;
+            }
+            case KOP_SWIPE:
+                // G_SWIPE fingers U0,D0,L0,R0 ok
+                buffer.put(KTEXT_SWIPE).put((byte) ' ');
+                putAsciiInt(buffer, arg0);
+                buffer.put((byte) ' ');
+                putTextSwipeFlag(buffer, 'U', arg1 == KSWIPE_UP);
+                buffer.put((byte) ',');
+                putTextSwipeFlag(buffer, 'D', arg1 == KSWIPE_DOWN);
+                buffer.put((byte) ',');
+                putTextSwipeFlag(buffer, 'L', arg1 == KSWIPE_LEFT);
+                buffer.put((byte) ',');
+                putTextSwipeFlag(buffer, 'R', arg1 == KSWIPE_RIGHT);
+                buffer.put((byte) ' ').put(KTEXT_OK);
+                break;
+            case KOP_PINCH:
+                // G_PINCH IN|OUT fingers ok
+                buffer.put(KTEXT_PINCH).put((byte) ' ');
+                buffer.put(arg0 == KPINCH_IN ? KTEXT_IN : KTEXT_OUT);
+                buffer.put((byte) ' ');
+                putAsciiInt(buffer, arg1);
+                buffer.put((byte) ' ').put(KTEXT_OK);
+                break;
+        }
+        buffer.put((byte) '\n');
+    }
+
+    private static void putTextScroll(ByteBuffer buffer, byte[] cmd, int speed, int distTenths) {
+        // SCROLL_xx SLOW|NORMAL|FAST dist.d
+        buffer.put(cmd).put((byte) ' ');
+        buffer.put(KTEXT_SCROLL_SPEEDS[speed]).put((byte) ' ');
+        putAsciiInt(buffer, distTenths / 10);
+        buffer.put((byte) '.');
+        putAsciiInt(buffer, distTenths % 10);
+    }
+
+    private static void putTextSwipeFlag(ByteBuffer buffer, char direction, boolean set) {
+        buffer.put((byte) direction).put((byte) (set ? '1' : '0'));
+    }
+
+    public static void putAsciiInt(ByteBuffer buffer, int value) {
+        long v = value;
+        if (v < 0) {
+            buffer.put((byte) '-');
+            v = -v;
+        }
+        long divisor = 1;
+        while (divisor * 10 <= v) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            buffer.put((byte) ('0' + (v / divisor)));
+            v %= divisor;
+            divisor /= 10;
+        }
+    }
+
+    public static void putVarUInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static void putVarSInt(ByteBuffer buffer, int value) {
+        putVarUInt(buffer, (value << 1) ^ (value >> 31));
+    }
+
+    public static int getVarUInt(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 35);
+        return value;
+    }
+
+    public static int getVarSInt(ByteBuffer buffer) {
+        int value = getVarUInt(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads one argument of opcode, the counterpart of the argument encoding in putCommand.
+     */
+    public static int getArg(ByteBuffer buffer, int opcode) {
+        return isArgSigned(opcode) ? getVarSInt(buffer) : getVarUInt(buffer);
+    }
+
+    public static boolean isBinaryFrame(ByteBuffer buffer) {
+        return (buffer.remaining() >= KFRAME_HEADER_SIZE) && (buffer.get(buffer.position()) == KFRAME_MARKER);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The input thread side of a touch: a move sample going through TouchProcessor to a
+ * cursor move command, a two finger scroll sample through gesture recognition and the
+ * scroll engine, the scroll delta to command conversion and the swipe direction.
+ *
+ * The fingers go back and forth so the coordinates stay in a realistic range however
+ * many iterations run, time moves on 8 ms per sample like a 120 Hz panel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GestureBenchmark implements TouchProcessor.TouchProcessorListener {
+
+    private static final long KSAMPLE_MS = 8;
+    private static final int KSWEEP = 64;
+    // the sigmoid preset in AppPrefs
+    private static final String KACCEL_CURVE = "sigmoid 0.6 2.5 1.0 4.0";
+
+    private final TouchProcessor mMoveProcessor = new TouchProcessor(this);
+    private final TouchProcessor mScrollProcessor = new TouchProcessor(this);
+    private final int[] mIds = {0, 1};
+    private final float[] mX = new float[2];
+    private final float[] mY = new float[2];
+    private long mTimeMS = 1000;
+    private int mStep = 0;
+    private long mSink = 0;
+
+    @Override
+    public void onCommand(int opcode, int arg0, int arg1, long eventNS) {
+        mSink += opcode + arg0 + arg1;
+    }
+
+    @Override
+    public void onFeedback(int feedback) {
+    }
+
+    @Override
+    public void onFlingStarted() {
+    }
+
+    @Setup
+    public void setup() {
+        mMoveProcessor.setAccelerationCurve(AccelerationCurve.parse(KACCEL_CURVE));
+        mMoveProcessor.setPredictionHorizon(8);
+        touch(mMoveProcessor, GestureStateMachine.KTOUCH_DOWN, 0, 1);
+        // a second finger lands and the pair moves past the slop, now scrolling
+        touch(mScrollProcessor, GestureStateMachine.KTOUCH_DOWN, 0, 1);
+        mX[1] = mX[0] + 300.f;
+        touch(mScrollProcessor, GestureStateMachine.KTOUCH_POINTER_DOWN, 1, 2);
+        for (int x = 0; x < 8; x++) {
+            advance();
+            touch(mScrollProcessor, GestureStateMachine.KTOUCH_MOVE, 0, 2);
+        }
+    }
+
+    private void touch(TouchProcessor processor, int action, int actionIndex, int pointerCount) {
+        processor.onTouchSample(action, actionIndex, pointerCount, false, mIds, mX, mY, mTimeMS);
+    }
+
+    private void advance() {
+        mStep++;
+        int phase = mStep % (2 * KSWEEP);
+        float offset = (phase < KSWEEP) ? phase : 2 * KSWEEP - phase;
+        mX[0] = 100.f + offset * 3.3f;
+        mY[0] = 200.f + offset * 1.7f;
+        mX[1] = mX[0] + 300.f;
+        mY[1] = mY[0];
+        mTimeMS += KSAMPLE_MS;
+    }
+
+    /**
+     * One finger move sample to the KOP_MOVE it produces, with acceleration and
+     * prediction on.
+     */
+    @Benchmark
+    public long moveSample() {
+        advance();
+        touch(mMoveProcessor, GestureStateMachine.KTOUCH_MOVE, 0, 1);
+        return mSink;
+    }
+
+    @Benchmark
+    public long scrollSample() {
+        advance();
+        touch(mScrollProcessor, GestureStateMachine.KTOUCH_MOVE, 0, 2);
+        return mSink;
+    }
+
+    /**
+     * Scroll engine output to KOP_SCROLL, the fractional rest carried between calls.
+     */
+    @Benchmark
+    public long scrollDelta() {
+        mStep++;
+        mScrollProcessor.onScroll(0.37f, (mStep & 1) == 0 ? 1.21f : -0.83f);
+        return mSink;
+    }
+
+    @Benchmark
+    public int swipeDirection() {
+        mStep++;
+        return GestureStateMachine.getSwipeDirection((mStep & 7) - 3.5f, ((mStep >> 3) & 7) - 3.5f);
+    }
+}
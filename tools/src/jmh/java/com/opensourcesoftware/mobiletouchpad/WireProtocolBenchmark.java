@@ -0,0 +1,103 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding one command into a direct buffer the way UDPClientThread fills a datagram,
+ * binary and legacy text.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WireProtocolBenchmark {
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(WireProtocol.KMAX_FRAME_SIZE);
+    private int mStep = 0;
+
+    private int nextArg() {
+        mStep++;
+        // small signed deltas, the usual size of a move
+        return (mStep & 31) - 16;
+    }
+
+    @Benchmark
+    public int binaryMove() {
+        mBuffer.clear();
+        WireProtocol.putHeader(mBuffer, WireProtocol.KVERSION_MAX);
+        WireProtocol.putCommand(mBuffer, WireProtocol.KOP_MOVE, nextArg(), nextArg());
+        return mBuffer.position();
+    }
+
+    @Benchmark
+    public int binaryReliableClick() {
+        mBuffer.clear();
+        WireProtocol.putHeader(mBuffer, WireProtocol.KVERSION_MAX);
+        WireProtocol.putReliableCommand(mBuffer, WireProtocol.KOP_CLICK_DEFAULT, ++mStep & 0xFFFF, 0, 0);
+        return mBuffer.position();
+    }
+
+    /**
+     * A full datagram of moves, per op numbers are for the whole frame.
+     */
+    @Benchmark
+    public int binaryMoveFrame() {
+        mBuffer.clear();
+        WireProtocol.putHeader(mBuffer, WireProtocol.KVERSION_MAX);
+        while (mBuffer.remaining() >= WireProtocol.KMAX_CMD_SIZE) {
+            WireProtocol.putCommand(mBuffer, WireProtocol.KOP_MOVE, nextArg(), nextArg());
+        }
+        return mBuffer.position();
+    }
+
+    @Benchmark
+    public int textMove() {
+        mBuffer.clear();
+        WireProtocol.putTextCommand(mBuffer, WireProtocol.KOP_MOVE, nextArg(), nextArg());
+        return mBuffer.position();
+    }
+
+    @Benchmark
+    public int textScroll() {
+        mBuffer.clear();
+        WireProtocol.putTextCommand(mBuffer, WireProtocol.KOP_SCROLL, nextArg(), nextArg() * 20);
+        return mBuffer.position();
+    }
+}
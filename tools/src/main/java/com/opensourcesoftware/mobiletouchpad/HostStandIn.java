@@ -0,0 +1,405 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * JVM stand-in for the touchpad-mev host. Listens on the host port, decodes text and
+ * binary frames and answers HELLO, PING and reliable commands the way the real host
+ * does. It also multicasts the announcements DiscoveryThread looks for and answers its
+ * queries. Commands are handed to a listener instead of moving a pointer.
+ *
+ * Run with: ./gradlew :tools:runHost --args="-port 19999 -name bench -text"
+ */
+public class HostStandIn extends Thread {
+
+    private final static String TAG = "HostStandIn";
+
+    public interface HostStandInListener {
+        /**
+         * Called on the host thread for every decoded command, pings and acks excluded.
+         */
+        void onCommand(int opcode, int arg0, int arg1, long nowNS);
+    }
+
+    private static final long KANNOUNCE_INTERVAL_MS = 1000;
+    // reliable commands already handled, retransmits of these are only acked
+    private static final int KSEEN_WINDOW = 256;
+    // room for bursts while the text parser catches up
+    private static final int KRECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final int mPort;
+    private final String mName;
+    private final boolean mTextOnly;
+    private final HostStandInListener mListener;
+    private final DatagramSocket mSocket;
+    private final byte[] mRxData = new byte[WireProtocol.KMAX_FRAME_SIZE];
+    private final DatagramPacket mRxPacket = new DatagramPacket(mRxData, mRxData.length);
+    private final ByteBuffer mRxBuffer = ByteBuffer.wrap(mRxData);
+    private final ByteBuffer mTxBuffer = ByteBuffer.allocate(WireProtocol.KMAX_FRAME_SIZE);
+    private final DatagramPacket mTxPacket = new DatagramPacket(mTxBuffer.array(), 0);
+    private final int[] mSeenSeqs = new int[KSEEN_WINDOW];
+    private volatile long mPackets = 0;
+    private volatile long mBytes = 0;
+    private volatile long mCommands = 0;
+    private volatile long mDuplicates = 0;
+
+    /**
+     * @param textOnly behave like a legacy host, never answer HELLO so the client
+     *                 stays on the text protocol
+     */
+    public HostStandIn(int port, String name, boolean textOnly, HostStandInListener listener) throws IOException {
+        Logging.d(TAG, "HostStandIn()");
+        mPort = port;
+        mName = name;
+        mTextOnly = textOnly;
+        mListener = listener;
+        MulticastSocket socket = new MulticastSocket(null);
+        socket.setReuseAddress(true);
+        socket.setReceiveBufferSize(KRECEIVE_BUFFER_SIZE);
+        socket.bind(new InetSocketAddress(port));
+        socket.setSoTimeout((int) KANNOUNCE_INTERVAL_MS);
+        try {
+            socket.joinGroup(InetAddress.getByName(DiscoveryThread.KMULTICAST_ADDR));
+        } catch (IOException e) {
+            // no multicast route, discovery queries won't reach us
+            Logging.d(TAG, "HostStandIn: joinGroup", e.getMessage());
+        }
+        mSocket = socket;
+    }
+
+    public int getPort() {
+        return mSocket.getLocalPort();
+    }
+
+    public long getPackets() {
+        return mPackets;
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+
+    public long getCommands() {
+        return mCommands;
+    }
+
+    public long getDuplicates() {
+        return mDuplicates;
+    }
+
+    public void close() {
+        interrupt();
+        mSocket.close();
+    }
+
+    private void reply(SocketAddress address) throws IOException {
+        mTxPacket.setData(mTxBuffer.array(), 0, mTxBuffer.position());
+        mTxPacket.setSocketAddress(address);
+        mSocket.send(mTxPacket);
+    }
+
+    private void replyBinary(SocketAddress address, int opcode, int arg0) throws IOException {
+        mTxBuffer.clear();
+        WireProtocol.putHeader(mTxBuffer, WireProtocol.KVERSION_MAX);
+        WireProtocol.putCommand(mTxBuffer, opcode, arg0, 0);
+        reply(address);
+    }
+
+    private void replyText(SocketAddress address, String cmd, int arg0) throws IOException {
+        mTxBuffer.clear();
+        mTxBuffer.put((cmd + " " + arg0 + "\n").getBytes(StandardCharsets.US_ASCII));
+        reply(address);
+    }
+
+    private void onCommand(int opcode, int arg0, int arg1, long nowNS) {
+        mCommands++;
+        if (mListener != null) mListener.onCommand(opcode, arg0, arg1, nowNS);
+    }
+
+    /**
+     * @return true the first time seq shows up within the window
+     */
+    private boolean markSeen(int seq) {
+        int slot = seq & (KSEEN_WINDOW - 1);
+        if (mSeenSeqs[slot] == seq) {
+            mDuplicates++;
+            return false;
+        }
+        mSeenSeqs[slot] = seq;
+        return true;
+    }
+
+    private static boolean isKnownOpcode(int opcode) {
+        switch (opcode) {
+            case WireProtocol.KOP_MOVE_DRAG_BEGIN:
+            case WireProtocol.KOP_MOVE_DRAG_END:
+            case WireProtocol.KOP_CLICK_DEFAULT:
+            case WireProtocol.KOP_CLICK_OPTIONS:
+            case WireProtocol.KOP_CLICK_DOUBLE:
+                return true;
+            default:
+                return WireProtocol.getArgCount(opcode) > 0;
+        }
+    }
+
+    private void parseBinary(SocketAddress address, long nowNS) throws IOException {
+        mRxBuffer.position(WireProtocol.KFRAME_HEADER_SIZE);
+        while (mRxBuffer.hasRemaining()) {
+            int opcode = mRxBuffer.get() & 0xFF;
+            int seq = 0;
+            if ((opcode & WireProtocol.KFLAG_SEQ) != 0) {
+                opcode &= ~WireProtocol.KFLAG_SEQ;
+                seq = WireProtocol.getVarUInt(mRxBuffer);
+            }
+            // unknown commands have an unknown length, the rest of the frame is lost
+            if (!isKnownOpcode(opcode)) return;
+            int argCount = WireProtocol.getArgCount(opcode);
+            int arg0 = (argCount > 0) ? WireProtocol.getArg(mRxBuffer, opcode) : 0;
+            int arg1 = (argCount > 1) ? WireProtocol.getArg(mRxBuffer, opcode) : 0;
+            switch (opcode) {
+                case WireProtocol.KOP_HELLO:
+                    replyBinary(address, WireProtocol.KOP_HELLO, Math.min(arg0, WireProtocol.KVERSION_MAX));
+                    break;
+                case WireProtocol.KOP_PING:
+                    replyBinary(address, WireProtocol.KOP_PONG, arg0);
+                    break;
+                default:
+                    if (seq != 0) {
+                        replyBinary(address, WireProtocol.KOP_ACK, seq);
+                        if (!markSeen(seq)) break;
+                    }
+                    onCommand(opcode, arg0, arg1, nowNS);
+                    break;
+            }
+        }
+    }
+
+    private static int parseScrollSpeed(String speed) {
+        int index = Arrays.asList(CmdConsts.KSCROLL_SPEEDS).indexOf(speed);
+        return Math.max(index, 0);
+    }
+
+    private static int parseTenths(String value) {
+        return Math.round(Float.parseFloat(value) * 10.f);
+    }
+
+    private void parseTextLine(SocketAddress address, String line, long nowNS) throws IOException {
+        String[] parts = line.split(" ");
+        switch (parts[0]) {
+            case CmdConsts.KCOMM_HELLO:
+                if (!mTextOnly) {
+                    int version = Math.min(Integer.parseInt(parts[1]), WireProtocol.KVERSION_MAX);
+                    replyText(address, CmdConsts.KCOMM_HELLO, version);
+                }
+                break;
+            case CmdConsts.KCOMM_PING:
+                if (parts.length > 1) replyText(address, CmdConsts.KCOMM_PONG, Integer.parseInt(parts[1]));
+                break;
+            case CmdConsts.KACTION_MOVE:
+                onCommand(WireProtocol.KOP_MOVE, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), nowNS);
+                break;
+            case CmdConsts.KACTION_MOVE_DRAG_BEGIN:
+                onCommand(WireProtocol.KOP_MOVE_DRAG_BEGIN, 0, 0, nowNS);
+                break;
+            case CmdConsts.KACTION_MOVE_DRAG_END:
+                onCommand(WireProtocol.KOP_MOVE_DRAG_END, 0, 0, nowNS);
+                break;
+            case CmdConsts.KACTION_CLICK_DEFAULT:
+                onCommand(WireProtocol.KOP_CLICK_DEFAULT, 0, 0, nowNS);
+                break;
+            case CmdConsts.KACTION_CLICK_OPTIONS:
+                onCommand(WireProtocol.KOP_CLICK_OPTIONS, 0, 0, nowNS);
+                break;
+            case CmdConsts.KACTION_CLICK_DOUBLE:
+                onCommand(WireProtocol.KOP_CLICK_DOUBLE, 0, 0, nowNS);
+                break;
+            case CmdConsts.KACTION_TAP:
+                onCommand(WireProtocol.KOP_TAP, Integer.parseInt(parts[1]), 0, nowNS);
+                break;
+            case CmdConsts.KSCROLL_UP:
+                onCommand(WireProtocol.KOP_SCROLL_UP, parseScrollSpeed(parts[1]), parseTenths(parts[2]), nowNS);
+                break;
+            case CmdConsts.KSCROLL_DOWN:
+                onCommand(WireProtocol.KOP_SCROLL_DOWN, parseScrollSpeed(parts[1]), parseTenths(parts[2]), nowNS);
+                break;
+            case CmdConsts.KSCROLL_LEFT:
+                onCommand(WireProtocol.KOP_SCROLL_LEFT, parseScrollSpeed(parts[1]), parseTenths(parts[2]), nowNS);
+                break;
+            case CmdConsts.KSCROLL_RIGHT:
+                onCommand(WireProtocol.KOP_SCROLL_RIGHT, parseScrollSpeed(parts[1]), parseTenths(parts[2]), nowNS);
+                break;
+            case CmdConsts.KGESTURE_SWIPE:
+                // G_SWIPE fingers U0,D0,L0,R0 ok
+                int direction = parts[2].indexOf('1') / 3;
+                onCommand(WireProtocol.KOP_SWIPE, Integer.parseInt(parts[1]), direction, nowNS);
+                break;
+            case CmdConsts.KGESTURE_PINCH:
+                // G_PINCH IN|OUT fingers ok
+                int pinch = parts[1].equals("IN") ? WireProtocol.KPINCH_IN : WireProtocol.KPINCH_OUT;
+                onCommand(WireProtocol.KOP_PINCH, pinch, Integer.parseInt(parts[2]), nowNS);
+                break;
+            default:
+                Logging.e(TAG, "parseTextLine: unknown " + line);
+                break;
+        }
+    }
+
+    private void parseText(SocketAddress address, long nowNS) throws IOException {
+        String text = new String(mRxData, 0, mRxPacket.getLength(), StandardCharsets.US_ASCII);
+        for (String line : text.split("\n")) {
+            if (line.isEmpty()) continue;
+            try {
+                parseTextLine(address, line, nowNS);
+            } catch (RuntimeException e) {
+                Logging.e(TAG, "parseText: " + line, e);
+            }
+        }
+    }
+
+    private void announce(MulticastSocket socket, InetAddress group) throws IOException {
+        byte[] data = (DiscoveryThread.ANNOUNCE_PREFIX + " " + mName + "\n").getBytes(StandardCharsets.UTF_8);
+        socket.send(new DatagramPacket(data, data.length, group, mPort));
+    }
+
+    /**
+     * Answers a DiscoveryThread query with the announcement, sent straight back to the
+     * client. Announcements, ours looped back or from other hosts, are ignored.
+     *
+     * @return true if the packet was discovery traffic
+     */
+    private boolean handleDiscovery(SocketAddress address) throws IOException {
+        int length = mRxPacket.getLength();
+        int prefixLength = DiscoveryThread.ANNOUNCE_PREFIX.length();
+        if ((length < prefixLength) || (mRxData[0] != '@') || (mRxData[1] != '*')) return false;
+        String data = new String(mRxData, 0, length, StandardCharsets.UTF_8);
+        if (!data.startsWith(DiscoveryThread.ANNOUNCE_PREFIX)) return false;
+        if (data.startsWith(DiscoveryThread.QUERY_PREFIX)) {
+            mTxBuffer.clear();
+            mTxBuffer.put((DiscoveryThread.ANNOUNCE_PREFIX + " " + mName + "\n").getBytes(StandardCharsets.UTF_8));
+            reply(address);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        Logging.d(TAG, "run");
+        try (MulticastSocket announceSocket = new MulticastSocket()) {
+            InetAddress group = InetAddress.getByName(DiscoveryThread.KMULTICAST_ADDR);
+            long tsLastAnnounce = 0;
+            while (!isInterrupted()) {
+                long currTS = System.currentTimeMillis();
+                if (currTS - tsLastAnnounce >= KANNOUNCE_INTERVAL_MS) {
+                    try {
+                        announce(announceSocket, group);
+                    } catch (IOException e) {
+                        // no multicast route, e.g. loopback only, discovery is optional
+                        Logging.d(TAG, "run: announce", e.getMessage());
+                    }
+                    tsLastAnnounce = currTS;
+                }
+                try {
+                    mSocket.receive(mRxPacket);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if (handleDiscovery(mRxPacket.getSocketAddress())) continue;
+                long nowNS = System.nanoTime();
+                mPackets++;
+                mBytes += mRxPacket.getLength();
+                mRxBuffer.clear().limit(mRxPacket.getLength());
+                if (WireProtocol.isBinaryFrame(mRxBuffer)) {
+                    parseBinary(mRxPacket.getSocketAddress(), nowNS);
+                } else {
+                    parseText(mRxPacket.getSocketAddress(), nowNS);
+                }
+            }
+        } catch (IOException e) {
+            if (!mSocket.isClosed()) Logging.e(TAG, "run: ", e);
+        } finally {
+            mSocket.close();
+        }
+    }
+
+    private static void usage() {
+        System.out.println("usage: HostStandIn [-port n] [-name s] [-text]");
+        System.out.println("  -port  port to listen on, default " + WireProtocol.KPORT_DEFAULT);
+        System.out.println("  -name  name announced to DiscoveryThread");
+        System.out.println("  -text  legacy host, don't negotiate the binary protocol");
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = WireProtocol.KPORT_DEFAULT;
+        String name = "standin";
+        boolean textOnly = false;
+        for (int x = 0; x < args.length; x++) {
+            switch (args[x]) {
+                case "-port":
+                    port = Integer.parseInt(args[++x]);
+                    break;
+                case "-name":
+                    name = args[++x];
+                    break;
+                case "-text":
+                    textOnly = true;
+                    break;
+                default:
+                    usage();
+                    return;
+            }
+        }
+        HostStandIn host = new HostStandIn(port, name, textOnly, null);
+        host.start();
+        System.out.println("listening on " + host.getPort() + (textOnly ? " (text only)" : ""));
+        long lastPackets = 0;
+        long lastBytes = 0;
+        long lastCommands = 0;
+        while (host.isAlive()) {
+            Thread.sleep(1000);
+            long packets = host.getPackets();
+            long bytes = host.getBytes();
+            long commands = host.getCommands();
+            if (packets == lastPackets) continue;
+            System.out.println(String.format(Locale.US, "%d pkt/s  %d B/s  %d cmd/s  %d dup",
+                    packets - lastPackets, bytes - lastBytes, commands - lastCommands, host.getDuplicates()));
+            lastPackets = packets;
+            lastBytes = bytes;
+            lastCommands = commands;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End to end benchmark of the send path: feeds the real GestureEventRing and
+ * UDPClientThread at a fixed rate and receives on a HostStandIn over loopback.
+ * Reports packets/s, bytes/s and enqueue to receive latency percentiles.
+ *
+ * Every event is a SCROLL_DOWN carrying its index as the distance, scrolls are never
+ * coalesced so each one can be matched on the host.
+ *
+ * Run with: ./gradlew :tools:loopbackBenchmark --args="-rate 2000 -batch 512"
+ */
+public class LoopbackBenchmark {
+
+    private static final long KNEGOTIATE_TIMEOUT_MS = 3000;
+    // how long to wait for stragglers once everything is queued
+    private static final long KDRAIN_TIMEOUT_MS = 1000;
+
+    private int mCount = 100000;
+    private int mRate = 5000;
+    private int mBatchSize = 0;
+    private long mFlushDeadlineUS = 1000;
+    private boolean mTextOnly = false;
+
+    private long[] mSentNS;
+    private long[] mLatencyNS;
+    private volatile long mReceived = 0;
+    private volatile long mLastReceiveNS = 0;
+
+    private void onCommand(int opcode, int arg0, int arg1, long nowNS) {
+        if ((opcode != WireProtocol.KOP_SCROLL_DOWN) || (arg1 < 0) || (arg1 >= mCount)) return;
+        if (mLatencyNS[arg1] != 0) return;
+        mLatencyNS[arg1] = nowNS - mSentNS[arg1];
+        mReceived++;
+        mLastReceiveNS = nowNS;
+    }
+
+    private static double percentileUS(long[] sorted, int count, double p) {
+        if (count == 0) return 0;
+        int index = (int) Math.min(count - 1, Math.ceil(p * count) - 1);
+        return sorted[Math.max(index, 0)] / 1000.0;
+    }
+
+    private void run() throws Exception {
+        mSentNS = new long[mCount];
+        mLatencyNS = new long[mCount];
+        HostStandIn host = new HostStandIn(0, "bench", mTextOnly, this::onCommand);
+        host.start();
+
+        GestureEventRing ring = new GestureEventRing();
+        UDPClientThread client = new UDPClientThread(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), host.getPort()),
+                ring, new ConnectionHealth(), new RetransmitQueue());
+        client.setBatching(mBatchSize, mFlushDeadlineUS);
+        // measures the sender, nothing may be shed however far behind it falls
+        client.setBackpressure(Long.MAX_VALUE, ring.getCapacity());
+        client.start();
+        if (!mTextOnly) {
+            long deadline = System.currentTimeMillis() + KNEGOTIATE_TIMEOUT_MS;
+            while ((client.getProtocolVersion() == WireProtocol.KVERSION_TEXT)
+                    && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(1);
+            }
+        }
+        long packets0 = host.getPackets();
+        long bytes0 = host.getBytes();
+
+        long periodNS = (mRate > 0) ? TimeUnit.SECONDS.toNanos(1) / mRate : 0;
+        long dropped = 0;
+        long startNS = System.nanoTime();
+        for (int x = 0; x < mCount; x++) {
+            long dueNS = startNS + x * periodNS;
+            long nowNS = System.nanoTime();
+            while (nowNS < dueNS) {
+                if (dueNS - nowNS > 100000) LockSupport.parkNanos(dueNS - nowNS - 50000);
+                nowNS = System.nanoTime();
+            }
+            mSentNS[x] = nowNS;
+            if (!ring.offer(WireProtocol.KOP_SCROLL_DOWN, 1, x, nowNS)) dropped++;
+        }
+        long sendEndNS = System.nanoTime();
+        while ((mReceived + dropped < mCount) &&
+                (System.nanoTime() - Math.max(mLastReceiveNS, sendEndNS) < TimeUnit.MILLISECONDS.toNanos(KDRAIN_TIMEOUT_MS))) {
+            Thread.sleep(1);
+        }
+        long endNS = Math.max(mLastReceiveNS, sendEndNS);
+        long packets = host.getPackets() - packets0;
+        long bytes = host.getBytes() - bytes0;
+
+        client.interrupt();
+        client.join();
+        host.close();
+        host.join();
+
+        int received = 0;
+        long[] latencies = new long[mCount];
+        for (long latency : mLatencyNS) {
+            if (latency != 0) latencies[received++] = latency;
+        }
+        Arrays.sort(latencies, 0, received);
+        double seconds = (endNS - startNS) / 1e9;
+        System.out.println(String.format(Locale.US,
+                "protocol %s  batch %d  deadline %d us  rate %s",
+                (client.getProtocolVersion() == WireProtocol.KVERSION_TEXT) ? "text" : "binary " + client.getProtocolVersion(),
+                mBatchSize, mFlushDeadlineUS, (mRate > 0) ? mRate + "/s" : "unthrottled"));
+        System.out.println(String.format(Locale.US,
+                "events %d  received %d  ring drops %d  lost %d  in %.2f s",
+                mCount, received, dropped, mCount - dropped - received, seconds));
+        System.out.println(String.format(Locale.US,
+                "%.0f pkt/s  %.0f B/s  %.1f B/event  %.2f events/pkt",
+                packets / seconds, bytes / seconds, received > 0 ? (double) bytes / received : 0.0,
+                packets > 0 ? (double) received / packets : 0.0));
+        System.out.println(String.format(Locale.US,
+                "latency us  p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f",
+                percentileUS(latencies, received, 0.50), percentileUS(latencies, received, 0.90),
+                percentileUS(latencies, received, 0.99), percentileUS(latencies, received, 0.999),
+                percentileUS(latencies, received, 1.0)));
+    }
+
+    private static void usage() {
+        System.out.println("usage: LoopbackBenchmark [-count n] [-rate n] [-batch n] [-deadline us] [-text]");
+        System.out.println("  -count     events to send, default 100000");
+        System.out.println("  -rate      events per second, 0 for as fast as possible, default 5000");
+        System.out.println("  -batch     datagram payload size, 0 for one command per datagram");
+        System.out.println("  -deadline  batch flush deadline in microseconds");
+        System.out.println("  -text      legacy host, stay on the text protocol");
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoopbackBenchmark benchmark = new LoopbackBenchmark();
+        for (int x = 0; x < args.length; x++) {
+            switch (args[x]) {
+                case "-count":
+                    benchmark.mCount = Integer.parseInt(args[++x]);
+                    break;
+                case "-rate":
+                    benchmark.mRate = Integer.parseInt(args[++x]);
+                    break;
+                case "-batch":
+                    benchmark.mBatchSize = Integer.parseInt(args[++x]);
+                    break;
+                case "-deadline":
+                    benchmark.mFlushDeadlineUS = Long.parseLong(args[++x]);
+                    break;
+                case "-text":
+                    benchmark.mTextOnly = true;
+                    break;
+                default:
+                    usage();
+                    return;
+            }
+        }
+        benchmark.run();
+    }
+}
@@ -0,0 +1,216 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a touch trace recorded by the app through {@link TouchProcessor} and checks
+ * that it gives the commands that were recorded, so changes to the gesture and motion
+ * code can be checked against real sessions. Also reports how fast the processor
+ * gets through the samples.
+ *
+ * Traces are recorded with "Record Touch Trace" in the app settings, get them with
+ * adb pull /sdcard/Android/data/com.opensourcesoftware.mobiletouchpad/files/traces
+ *
+ * Run with: ./gradlew :tools:replayTrace --args="-speed max -repeat 100 touch.trace"
+ */
+public class TraceReplay implements TouchProcessor.TouchProcessorListener {
+
+    private boolean mRealTime = false;
+    private int mRepeat = 1;
+    private String mPath = null;
+
+    private byte[] mTrace;
+    private int[] mOpcodes = new int[1024];
+    private int[] mArgs0 = new int[1024];
+    private int[] mArgs1 = new int[1024];
+    private int mCommandCount = 0;
+
+    @Override
+    public void onCommand(int opcode, int arg0, int arg1, long eventNS) {
+        if (mCommandCount == mOpcodes.length) {
+            mOpcodes = Arrays.copyOf(mOpcodes, mCommandCount * 2);
+            mArgs0 = Arrays.copyOf(mArgs0, mCommandCount * 2);
+            mArgs1 = Arrays.copyOf(mArgs1, mCommandCount * 2);
+        }
+        mOpcodes[mCommandCount] = opcode;
+        mArgs0[mCommandCount] = arg0;
+        mArgs1[mCommandCount] = arg1;
+        mCommandCount++;
+    }
+
+    @Override
+    public void onFeedback(int feedback) {
+    }
+
+    @Override
+    public void onFlingStarted() {
+    }
+
+    private static String formatCommand(int opcode, int arg0, int arg1) {
+        return String.format(Locale.US, "0x%02x(%d, %d)", opcode, arg0, arg1);
+    }
+
+    /**
+     * One pass over the trace, checking the generated commands against the recorded ones.
+     *
+     * @return true if they matched
+     */
+    private boolean replay(boolean report) throws IOException {
+        TouchTrace.Reader reader = new TouchTrace.Reader(new ByteArrayInputStream(mTrace));
+        TouchProcessor processor = new TouchProcessor(this);
+        mCommandCount = 0;
+        int recorded = 0;
+        long samples = 0;
+        boolean matched = true;
+        long processNS = 0;
+        long firstTraceNS = -1;
+        long startNS = System.nanoTime();
+        int type;
+        while ((type = reader.next()) != TouchTrace.KREC_END) {
+            long timeNS = reader.getTimeNS();
+            if (type == TouchTrace.KREC_COMMAND) {
+                // recorded after the input that produced it, which has been replayed
+                if (matched && ((recorded >= mCommandCount)
+                        || (mOpcodes[recorded] != reader.getOpcode())
+                        || (mArgs0[recorded] != reader.getArg0())
+                        || (mArgs1[recorded] != reader.getArg1()))) {
+                    matched = false;
+                    if (report) {
+                        System.out.println(String.format(Locale.US, "first mismatch at command %d, %.3f s: recorded %s, replayed %s",
+                                recorded, (timeNS - firstTraceNS) / 1e9,
+                                formatCommand(reader.getOpcode(), reader.getArg0(), reader.getArg1()),
+                                (recorded < mCommandCount) ? formatCommand(mOpcodes[recorded], mArgs0[recorded], mArgs1[recorded]) : "nothing"));
+                    }
+                }
+                recorded++;
+                continue;
+            }
+            if (type == TouchTrace.KREC_CONFIG) {
+                if (!processor.applyConfig(reader.getConfigKey(), reader.getConfigValue()) && report) {
+                    System.out.println("unknown setting " + reader.getConfigKey() + " = " + reader.getConfigValue());
+                }
+                continue;
+            }
+            if (firstTraceNS < 0) firstTraceNS = timeNS;
+            if (mRealTime) {
+                long dueNS = startNS + (timeNS - firstTraceNS);
+                long nowNS = System.nanoTime();
+                if (dueNS > nowNS) LockSupport.parkNanos(dueNS - nowNS);
+            }
+            long t0 = System.nanoTime();
+            switch (type) {
+                case TouchTrace.KREC_SAMPLE:
+                case TouchTrace.KREC_HISTORY:
+                    processor.onTouchSample(reader.getAction(), reader.getActionIndex(), reader.getPointerCount(),
+                            type == TouchTrace.KREC_HISTORY, reader.getIds(), reader.getX(), reader.getY(),
+                            timeNS / 1000000L);
+                    samples++;
+                    break;
+                case TouchTrace.KREC_TIMEOUT:
+                    processor.onTimeout(timeNS / 1000000L);
+                    break;
+                case TouchTrace.KREC_FRAME:
+                    processor.onFrame(timeNS);
+                    break;
+            }
+            processNS += System.nanoTime() - t0;
+        }
+        if (recorded != mCommandCount) matched = false;
+        if (report) {
+            System.out.println(String.format(Locale.US, "samples %d  commands recorded %d  replayed %d  %s",
+                    samples, recorded, mCommandCount, matched ? "match" : "MISMATCH"));
+            System.out.println(String.format(Locale.US, "%.0f samples/s  %.1f ns/sample",
+                    samples * 1e9 / Math.max(processNS, 1), (double) processNS / Math.max(samples, 1)));
+        }
+        return matched;
+    }
+
+    /**
+     * One silent pass over trace.
+     *
+     * @return true if the generated commands matched the recorded ones
+     */
+    boolean check(byte[] trace) throws IOException {
+        mTrace = trace;
+        return replay(false);
+    }
+
+    /**
+     * @return commands generated by the last pass
+     */
+    int getCommandCount() {
+        return mCommandCount;
+    }
+
+    private boolean run() throws IOException {
+        mTrace = Files.readAllBytes(Paths.get(mPath));
+        System.out.println(mPath + "  " + mTrace.length + " bytes");
+        boolean matched = true;
+        for (int x = 0; x < mRepeat; x++) {
+            // the first and the last pass report, those in between warm up the JIT
+            matched &= replay((x == 0) || (x == mRepeat - 1));
+        }
+        return matched;
+    }
+
+    private static void usage() {
+        System.out.println("usage: TraceReplay [-speed recorded|max] [-repeat n] file.trace");
+        System.out.println("  -speed   recorded keeps the recorded timing, max replays back to back, default max");
+        System.out.println("  -repeat  passes over the trace, default 1");
+    }
+
+    public static void main(String[] args) throws Exception {
+        TraceReplay replay = new TraceReplay();
+        for (int x = 0; x < args.length; x++) {
+            switch (args[x]) {
+                case "-speed":
+                    replay.mRealTime = "recorded".equals(args[++x]);
+                    break;
+                case "-repeat":
+                    replay.mRepeat = Math.max(1, Integer.parseInt(args[++x]));
+                    break;
+                default:
+                    if (args[x].startsWith("-") || (replay.mPath != null)) {
+                        usage();
+                        return;
+                    }
+                    replay.mPath = args[x];
+            }
+        }
+        if (replay.mPath == null) {
+            usage();
+            return;
+        }
+        if (!replay.run()) System.exit(1);
+    }
+}
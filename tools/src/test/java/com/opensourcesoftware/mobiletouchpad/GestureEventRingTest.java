@@ -0,0 +1,183 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * GestureEventRing overflow policy, wrap around and the consumer wake up.
+ */
+public class GestureEventRingTest {
+
+    private static final int KCAPACITY = 16;
+    private static final int KRESERVE = 4;
+
+    private static void drain(GestureEventRing ring, int count) {
+        for (int i = 0; i < count; i++) {
+            assertFalse(ring.isEmpty());
+            ring.remove();
+        }
+    }
+
+    @Test
+    public void movesLeaveTheReserveToDiscreteEvents() {
+        GestureEventRing ring = new GestureEventRing(KCAPACITY, KRESERVE);
+        for (int i = 0; i < KCAPACITY - KRESERVE; i++) {
+            assertTrue(ring.offer(WireProtocol.KOP_MOVE, i, 0, i));
+        }
+        assertFalse(ring.offer(WireProtocol.KOP_MOVE, 0, 0, 0));
+        assertFalse(ring.offer(WireProtocol.KOP_SCROLL, 0, 0, 0));
+        assertEquals(2, ring.getDroppedMoves());
+        for (int i = 0; i < KRESERVE; i++) {
+            assertTrue(ring.offer(WireProtocol.KOP_CLICK_DEFAULT, i, 0, i));
+        }
+        assertFalse(ring.offer(WireProtocol.KOP_CLICK_DOUBLE, 0, 0, 0));
+        assertEquals(1, ring.getDroppedDiscrete());
+        assertEquals(2, ring.getDroppedMoves());
+        assertEquals(KCAPACITY, ring.size());
+        assertEquals(KRESERVE, ring.discreteSize());
+
+        // the oldest records are still there, nothing was overwritten
+        assertEquals(WireProtocol.KOP_MOVE, ring.peekOpcode());
+        assertEquals(0, ring.peekArg0());
+        drain(ring, 1);
+        // one free slot, but moves stay below the limit
+        assertFalse(ring.offer(WireProtocol.KOP_MOVE, 0, 0, 0));
+        assertTrue(ring.offer(WireProtocol.KOP_TAP, 0, 0, 0));
+        assertEquals(3, ring.getDroppedMoves());
+        assertEquals(KRESERVE + 1, ring.discreteSize());
+    }
+
+    @Test
+    public void wrapsAround() {
+        GestureEventRing ring = new GestureEventRing(KCAPACITY, KRESERVE);
+        int next = 0;
+        int expected = 0;
+        // an odd step keeps head and tail landing on different slots every lap
+        for (int lap = 0; lap < 20; lap++) {
+            for (int i = 0; i < 7; i++, next++) {
+                int opcode = (next % 3 == 0) ? WireProtocol.KOP_CLICK_DEFAULT : WireProtocol.KOP_MOVE;
+                assertTrue(ring.offer(opcode, next, -next, next, next + 1));
+            }
+            int discrete = 0;
+            for (int i = expected; i < next; i++) {
+                if (i % 3 == 0) discrete++;
+            }
+            assertEquals(discrete, ring.discreteSize());
+            for (int i = 0; i < 7; i++, expected++) {
+                assertFalse(ring.isEmpty());
+                assertEquals(expected, ring.peekArg0());
+                assertEquals(-expected, ring.peekArg1());
+                assertEquals(expected, ring.peekEventTime());
+                assertEquals(expected + 1, ring.peekTimestamp());
+                ring.remove();
+            }
+            assertTrue(ring.isEmpty());
+            assertEquals(0, ring.discreteSize());
+        }
+        assertEquals(0, ring.getDroppedMoves() + ring.getDroppedDiscrete());
+    }
+
+    @Test
+    public void clearDropsWhatWasOffered() {
+        GestureEventRing ring = new GestureEventRing(KCAPACITY, KRESERVE);
+        for (int i = 0; i < 10; i++) {
+            ring.offer(WireProtocol.KOP_CLICK_DEFAULT, i, 0, i);
+        }
+        drain(ring, 3);
+        ring.clear();
+        assertTrue(ring.isEmpty());
+        assertEquals(0, ring.size());
+        assertEquals(0, ring.discreteSize());
+        // the cleared slots are free again
+        for (int i = 0; i < KCAPACITY; i++) {
+            assertTrue(ring.offer(WireProtocol.KOP_CLICK_DEFAULT, i, 0, i));
+        }
+        assertEquals(0, ring.peekArg0());
+    }
+
+    @Test(timeout = 10000)
+    public void awaitWakesOnOffer() throws InterruptedException {
+        GestureEventRing ring = new GestureEventRing(KCAPACITY, KRESERVE);
+        AtomicReference<Long> waitedNS = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            long startNS = System.nanoTime();
+            while (ring.isEmpty()) {
+                ring.await(TimeUnit.SECONDS.toNanos(30));
+            }
+            waitedNS.set(System.nanoTime() - startNS);
+        });
+        consumer.start();
+        Thread.sleep(100);
+        assertNull(waitedNS.get());
+        ring.offer(WireProtocol.KOP_CLICK_DEFAULT, 1, 0, 0);
+        consumer.join();
+        assertTrue(waitedNS.get() < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test(timeout = 30000)
+    public void keepsOrderBetweenThreads() throws InterruptedException {
+        final int count = 200000;
+        GestureEventRing ring = new GestureEventRing(KCAPACITY, KRESERVE);
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            int expected = 0;
+            while (expected < count) {
+                if (ring.isEmpty()) {
+                    ring.await(TimeUnit.MILLISECONDS.toNanos(10));
+                    continue;
+                }
+                int opcode = (expected % 5 == 0) ? WireProtocol.KOP_CLICK_DEFAULT : WireProtocol.KOP_MOVE;
+                if ((ring.peekArg0() != expected) || (ring.peekOpcode() != opcode)) {
+                    failure.set("expected " + expected + " got " + ring.peekArg0());
+                    return;
+                }
+                ring.remove();
+                expected++;
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < count; i++) {
+            int opcode = (i % 5 == 0) ? WireProtocol.KOP_CLICK_DEFAULT : WireProtocol.KOP_MOVE;
+            // stays below capacity, nothing may be dropped
+            while (ring.size() >= KCAPACITY - KRESERVE) {
+                Thread.yield();
+            }
+            assertTrue(ring.offer(opcode, i, 0, i));
+        }
+        consumer.join();
+        assertNull(failure.get());
+        assertTrue(ring.isEmpty());
+        assertEquals(0, ring.getDroppedMoves() + ring.getDroppedDiscrete());
+    }
+}
@@ -0,0 +1,259 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Feeds scripted touch sequences through GestureStateMachine and checks the gestures
+ * it reports. Each case is a script of touch events, timeouts are polled before every
+ * event the way TouchProcessor does.
+ */
+@RunWith(Parameterized.class)
+public class GestureStateMachineTest {
+
+    private final String mName;
+    private final Script mScript;
+    private final List<String> mExpected;
+
+    public GestureStateMachineTest(String name, Script script, String[] expected) {
+        mName = name;
+        mScript = script;
+        mExpected = Arrays.asList(expected);
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static List<Object[]> cases() {
+        return Arrays.asList(
+                row("tap",
+                        new Script().down(0, 100, 100).up(50).idle(400),
+                        "click"),
+                row("double tap",
+                        new Script().down(0, 100, 100).up(50).down(150, 110, 105).up(200).idle(600),
+                        "doubleClick"),
+                row("second tap too far away",
+                        new Script().down(0, 100, 100).up(50).down(150, 600, 100).move(170, 620, 100).up(200).idle(600),
+                        "click", "cursor"),
+                row("second tap too soon",
+                        new Script().down(0, 100, 100).up(50).down(70, 100, 100).up(100).idle(600),
+                        "click", "click"),
+                row("slow first tap",
+                        new Script().down(0, 100, 100).up(250).down(400, 100, 100).up(450).idle(900),
+                        "doubleClick"),
+                row("second tap after the timeout",
+                        new Script().down(0, 100, 100).up(50).down(400, 100, 100).up(450).idle(900),
+                        "click", "click"),
+                row("cursor move",
+                        new Script().down(0, 100, 100).move(20, 130, 100).move(40, 160, 100).up(60).idle(600),
+                        "cursor", "cursor"),
+                row("drag",
+                        new Script().down(0, 100, 100).idle(600).move(700, 150, 100).up(800),
+                        "dragBegin", "cursor", "dragEnd"),
+                row("two finger scroll",
+                        new Script().down(0, 100, 100).pointerDown(10, 100, 100, 200, 100)
+                                .move(30, 100, 150, 200, 150).move(40, 100, 170, 200, 170)
+                                .pointerUp(60, 1, 100, 170, 200, 170).up(70),
+                        "scrollBegin", "scroll 0 50", "scroll 0 20", "scrollEnd"),
+                row("three finger swipe",
+                        new Script().down(0, 100, 100).pointerDown(5, 100, 100, 200, 100)
+                                .pointerDown(10, 100, 100, 200, 100, 300, 100)
+                                .move(30, 180, 100, 280, 100, 380, 100)
+                                .pointerUp(50, 2, 180, 100, 280, 100, 380, 100)
+                                .pointerUp(55, 1, 180, 100, 280, 100).up(60),
+                        "swipe " + WireProtocol.KSWIPE_RIGHT + " 3"),
+                row("pinch apart",
+                        new Script().down(0, 100, 100).pointerDown(10, 100, 100, 300, 100)
+                                .move(30, 50, 100, 350, 100).pointerUp(50, 1, 50, 100, 350, 100).up(60),
+                        "pinch " + WireProtocol.KPINCH_IN + " 2"),
+                row("pinch together",
+                        new Script().down(0, 100, 100).pointerDown(10, 100, 100, 300, 100)
+                                .move(30, 150, 100, 250, 100).pointerUp(50, 1, 150, 100, 250, 100).up(60),
+                        "pinch " + WireProtocol.KPINCH_OUT + " 2"),
+                row("two finger hold",
+                        new Script().down(0, 100, 100).pointerDown(10, 100, 100, 200, 100).idle(600)
+                                .pointerUp(650, 1, 100, 100, 200, 100).up(660),
+                        "options"),
+                row("two finger tap",
+                        new Script().down(0, 100, 100).pointerDown(10, 100, 100, 200, 100)
+                                .pointerUp(60, 1, 100, 100, 200, 100).up(70),
+                        "tap 2")
+        );
+    }
+
+    private static Object[] row(String name, Script script, String... expected) {
+        return new Object[]{name, script, expected};
+    }
+
+    @Test
+    public void recognizes() {
+        Recorder recorder = new Recorder();
+        GestureStateMachine machine = new GestureStateMachine(recorder);
+        mScript.run(machine);
+        assertEquals(mName, mExpected, recorder.mEvents);
+    }
+
+    /**
+     * Touch events to feed, positions are x, y pairs, one per pointer.
+     */
+    static class Script {
+
+        private interface Step {
+            void run(GestureStateMachine machine);
+        }
+
+        private final List<Step> mSteps = new ArrayList<>();
+
+        Script down(long timeMS, float x, float y) {
+            return touch(GestureStateMachine.KTOUCH_DOWN, 0, timeMS, x, y);
+        }
+
+        Script pointerDown(long timeMS, float... xy) {
+            return touch(GestureStateMachine.KTOUCH_POINTER_DOWN, xy.length / 2 - 1, timeMS, xy);
+        }
+
+        Script move(long timeMS, float... xy) {
+            return touch(GestureStateMachine.KTOUCH_MOVE, 0, timeMS, xy);
+        }
+
+        Script pointerUp(long timeMS, int actionIndex, float... xy) {
+            return touch(GestureStateMachine.KTOUCH_POINTER_UP, actionIndex, timeMS, xy);
+        }
+
+        /**
+         * Last finger up, where it was doesn't matter.
+         */
+        Script up(long timeMS) {
+            return touch(GestureStateMachine.KTOUCH_UP, 0, timeMS, 0, 0);
+        }
+
+        /**
+         * Nothing happens until timeMS, pending timeouts fire.
+         */
+        Script idle(long timeMS) {
+            mSteps.add(machine -> poll(machine, timeMS));
+            return this;
+        }
+
+        private Script touch(int action, int actionIndex, long timeMS, float... xy) {
+            int count = xy.length / 2;
+            float[] x = new float[count];
+            float[] y = new float[count];
+            for (int p = 0; p < count; p++) {
+                x[p] = xy[2 * p];
+                y[p] = xy[2 * p + 1];
+            }
+            mSteps.add(machine -> {
+                poll(machine, timeMS);
+                machine.onTouchEvent(action, actionIndex, count, x, y, timeMS);
+            });
+            return this;
+        }
+
+        private static void poll(GestureStateMachine machine, long timeMS) {
+            while (machine.getDeadline() <= timeMS) {
+                machine.onTimeout(machine.getDeadline());
+            }
+        }
+
+        void run(GestureStateMachine machine) {
+            for (Step step : mSteps) {
+                step.run(machine);
+            }
+        }
+    }
+
+    private static class Recorder implements GestureStateMachine.GestureStateMachineListener {
+
+        final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        public void onCursorMove() {
+            mEvents.add("cursor");
+        }
+
+        @Override
+        public void onDragBegin() {
+            mEvents.add("dragBegin");
+        }
+
+        @Override
+        public void onDragEnd() {
+            mEvents.add("dragEnd");
+        }
+
+        @Override
+        public void onClick() {
+            mEvents.add("click");
+        }
+
+        @Override
+        public void onDoubleClick() {
+            mEvents.add("doubleClick");
+        }
+
+        @Override
+        public void onOptionsClick() {
+            mEvents.add("options");
+        }
+
+        @Override
+        public void onTap(int fingers) {
+            mEvents.add("tap " + fingers);
+        }
+
+        @Override
+        public void onScrollBegin() {
+            mEvents.add("scrollBegin");
+        }
+
+        @Override
+        public void onScrollDelta(float dx, float dy, long timeMS) {
+            mEvents.add("scroll " + Math.round(dx) + " " + Math.round(dy));
+        }
+
+        @Override
+        public void onScrollEnd(long timeMS) {
+            mEvents.add("scrollEnd");
+        }
+
+        @Override
+        public void onSwipe(int direction, int fingers) {
+            mEvents.add("swipe " + direction + " " + fingers);
+        }
+
+        @Override
+        public void onPinch(int direction, int fingers) {
+            mEvents.add("pinch " + direction + " " + fingers);
+        }
+    }
+}
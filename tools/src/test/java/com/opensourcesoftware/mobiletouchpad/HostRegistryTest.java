@@ -0,0 +1,150 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * HostRegistry on a made up clock: expiry, keying by IP, the saved form AppPrefs keeps
+ * and the rate limit on the listener.
+ */
+public class HostRegistryTest {
+
+    private static final long KMS = 1000000L;
+
+    private final List<String> mNotified = new ArrayList<>();
+    private final HostRegistry mRegistry = new HostRegistry(hosts -> mNotified.add(format(hosts)));
+
+    private static DiscoveryThread.MEVSystemItem host(String name, String ip) {
+        return new DiscoveryThread.MEVSystemItem(name, ip);
+    }
+
+    private static String format(List<DiscoveryThread.MEVSystemItem> hosts) {
+        StringBuilder sb = new StringBuilder();
+        for (DiscoveryThread.MEVSystemItem item : hosts) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(item.getName()).append('@').append(item.getHostIP());
+        }
+        return sb.toString();
+    }
+
+    private String hosts() {
+        return format(mRegistry.getHosts());
+    }
+
+    @Test
+    public void expiresHostsThatStopAnnouncing() {
+        mRegistry.onAnnounce(host("desk", "10.0.0.2"), 0);
+        mRegistry.onAnnounce(host("lab", "10.0.0.3"), 2000 * KMS);
+        mRegistry.tick(HostRegistry.KTTL_NS);
+        assertEquals("desk@10.0.0.2, lab@10.0.0.3", hosts());
+        mRegistry.tick(HostRegistry.KTTL_NS + 1);
+        assertEquals("lab@10.0.0.3", hosts());
+        // announcing again keeps a host
+        mRegistry.onAnnounce(host("lab", "10.0.0.3"), 6000 * KMS);
+        mRegistry.tick(2000 * KMS + HostRegistry.KTTL_NS + 1);
+        assertEquals("lab@10.0.0.3", hosts());
+        mRegistry.tick(6000 * KMS + HostRegistry.KTTL_NS + 1);
+        assertEquals(0, mRegistry.size());
+        assertEquals("", mNotified.get(mNotified.size() - 1));
+    }
+
+    @Test
+    public void keysByIP() {
+        mRegistry.onAnnounce(host("desk", "10.0.0.2"), 0);
+        mRegistry.onAnnounce(host("desk", "10.0.0.9"), 0);
+        assertEquals(2, mRegistry.size());
+        // a renamed host replaces its old name
+        mRegistry.onAnnounce(host("Attic", "10.0.0.2"), 0);
+        assertEquals("Attic@10.0.0.2, desk@10.0.0.9", hosts());
+    }
+
+    @Test
+    public void evictsTheOldestWhenFull() {
+        for (int x = 0; x <= HostRegistry.KMAX_HOSTS; x++) {
+            mRegistry.onAnnounce(host("h" + x, "10.0.1." + x), x * KMS);
+        }
+        assertEquals(HostRegistry.KMAX_HOSTS, mRegistry.size());
+        assertTrue(!hosts().contains("h0@"));
+    }
+
+    @Test
+    public void restoresWhatWasSaved() {
+        mRegistry.onAnnounce(host("desk", "10.0.0.2"), 0);
+        mRegistry.onAnnounce(host("lab", "fe80::1%wlan0"), 0);
+        // what SettingsActivity hands AppPrefs.setKnownHosts() and gets back from getKnownHosts()
+        String saved = mRegistry.save();
+        HostRegistry restored = new HostRegistry(hosts -> {
+        });
+        restored.restore(saved, 100 * KMS);
+        assertEquals(hosts(), format(restored.getHosts()));
+        assertEquals(saved, restored.save());
+        // restored hosts count as seen at restore time
+        restored.tick(100 * KMS + HostRegistry.KTTL_NS);
+        assertEquals(2, restored.size());
+        restored.tick(100 * KMS + HostRegistry.KTTL_NS + 1);
+        assertEquals(0, restored.size());
+    }
+
+    @Test
+    public void skipsMalformedSavedLines() {
+        mRegistry.restore(null, 0);
+        mRegistry.restore("", 0);
+        mRegistry.restore("\n\n  \n", 0);
+        assertEquals(0, mRegistry.size());
+        mRegistry.restore("lonely\n"
+                + "desk 10.0.0.2\r\n"
+                + "  lab\t10.0.0.3  \n"
+                + "three fields 10.0.0.4\n"
+                + "named not-an-address\n"
+                + "dots ...\n"
+                + "desk2 10.0.0.2\n", 0);
+        assertEquals("desk2@10.0.0.2, lab@10.0.0.3", hosts());
+    }
+
+    @Test
+    public void rateLimitsTheListener() {
+        mRegistry.onAnnounce(host("a", "10.0.0.1"), 0);
+        assertEquals(1, mNotified.size());
+        mRegistry.onAnnounce(host("b", "10.0.0.2"), 10 * KMS);
+        mRegistry.onAnnounce(host("c", "10.0.0.3"), 20 * KMS);
+        mRegistry.tick(HostRegistry.KNOTIFY_INTERVAL_NS - 1);
+        assertEquals(1, mNotified.size());
+        // held back changes go out together once the interval is over
+        mRegistry.tick(HostRegistry.KNOTIFY_INTERVAL_NS);
+        assertEquals(2, mNotified.size());
+        assertEquals("a@10.0.0.1, b@10.0.0.2, c@10.0.0.3", mNotified.get(1));
+        // announcements of known hosts aren't changes
+        mRegistry.onAnnounce(host("a", "10.0.0.1"), 1000 * KMS);
+        mRegistry.tick(2000 * KMS);
+        assertEquals(2, mNotified.size());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LatencyHistogram bucket boundaries, percentile extraction and concurrent recording.
+ */
+public class LatencyHistogramTest {
+
+    private static final long KUS = 1000L;
+    private static final long KMS = 1000000L;
+
+    @Test
+    public void smallValuesAreExact() {
+        for (int us = 0; us < 16; us++) {
+            assertEquals(us, LatencyHistogram.getBucket(us));
+            assertEquals(us, LatencyHistogram.getBucketLimitUS(us));
+        }
+        // from 16 us on each power of two is split in 8
+        assertEquals(16, LatencyHistogram.getBucket(16));
+        assertEquals(16, LatencyHistogram.getBucket(17));
+        assertEquals(17, LatencyHistogram.getBucket(18));
+        assertEquals(17, LatencyHistogram.getBucketLimitUS(16));
+        assertEquals(31, LatencyHistogram.getBucketLimitUS(23));
+        assertEquals(24, LatencyHistogram.getBucket(32));
+    }
+
+    @Test
+    public void bucketsAreContiguousAndTight() {
+        int last = LatencyHistogram.getBucket(0);
+        for (long us = 1; us < (1L << 26); us += 1 + (us >> 6)) {
+            int bucket = LatencyHistogram.getBucket(us);
+            assertTrue("monotonic at " + us, bucket >= last);
+            long limit = LatencyHistogram.getBucketLimitUS(bucket);
+            assertTrue("limit at " + us, limit >= us);
+            // the previous bucket ends below, so the value can't belong to it
+            if (bucket > 0) assertTrue("previous at " + us, LatencyHistogram.getBucketLimitUS(bucket - 1) < us);
+            // within 1/8 of the value
+            assertTrue("error at " + us, (limit - us) * 8 <= Math.max(us, 8));
+            last = bucket;
+        }
+    }
+
+    @Test
+    public void longValuesLandInTheLastBucket() {
+        int lastBucket = LatencyHistogram.KBUCKETS - 1;
+        assertEquals(lastBucket, LatencyHistogram.getBucket(1L << 27));
+        assertEquals(lastBucket, LatencyHistogram.getBucket(Long.MAX_VALUE / KUS));
+        assertTrue(LatencyHistogram.getBucket((1L << 26) - 1) < lastBucket);
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileNS(50));
+        for (int ms = 1; ms <= 100; ms++) {
+            histogram.record(ms * KMS);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50500000L, histogram.getMeanNS());
+        assertEquals(100 * KMS, histogram.getMaxNS());
+        long[][] expected = {{1, 1}, {50, 50}, {95, 95}, {99, 99}};
+        for (long[] e : expected) {
+            long p = histogram.getPercentileNS(e[0]);
+            assertTrue(e[0] + " " + p, p >= e[1] * KMS);
+            assertTrue(e[0] + " " + p, p <= e[1] * KMS + e[1] * KMS / 8 + KUS);
+        }
+        // the top bucket is capped at the largest value seen
+        assertEquals(100 * KMS, histogram.getPercentileNS(100));
+        // negative latencies from a clock stepping back count as 0
+        histogram.reset();
+        histogram.record(-5);
+        assertEquals(0, histogram.getPercentileNS(50));
+        assertEquals(1, histogram.getCount());
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws InterruptedException {
+        final int threads = 4;
+        final int perThread = 100000;
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final long offsetNS = t * KMS;
+            writers[t] = new Thread(() -> {
+                for (int x = 0; x < perThread; x++) {
+                    histogram.record(offsetNS + (x % 1000) * KUS);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals((long) threads * perThread, histogram.getCount());
+        assertEquals((threads - 1) * KMS + 999 * KUS, histogram.getMaxNS());
+        assertEquals(histogram.getMaxNS(), histogram.getPercentileNS(100));
+    }
+}
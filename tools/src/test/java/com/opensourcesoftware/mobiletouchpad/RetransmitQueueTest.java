@@ -0,0 +1,129 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * RetransmitQueue timeouts on a made up clock: RTT sampling with Karn's rule, the
+ * backoff and giving up. Every call takes the time, so none of this waits.
+ */
+public class RetransmitQueueTest {
+
+    private static final long KMS = 1000000L;
+
+    private final RetransmitQueue mQueue = new RetransmitQueue();
+    private final int[] mSeqs = new int[RetransmitQueue.KCAPACITY];
+    private final int[] mOpcodes = new int[RetransmitQueue.KCAPACITY];
+    private final int[] mArgs0 = new int[RetransmitQueue.KCAPACITY];
+    private final int[] mArgs1 = new int[RetransmitQueue.KCAPACITY];
+
+    /**
+     * The RTO a command sent now would get, read from its deadline with nothing else pending.
+     */
+    private long rto(long nowNS) {
+        mQueue.clear();
+        mQueue.track(WireProtocol.KOP_CLICK_DEFAULT, 0, 0, nowNS);
+        long rto = mQueue.getNextDeadlineNS() - nowNS;
+        // dropped unacknowledged, an ack would be another sample
+        mQueue.clear();
+        return rto;
+    }
+
+    private int collect(long nowNS) {
+        return mQueue.collectDue(nowNS, mSeqs, mOpcodes, mArgs0, mArgs1);
+    }
+
+    @Test
+    public void rtoFollowsFirstTransmissionAcks() {
+        assertEquals(60 * KMS, rto(0));
+        int seq = mQueue.track(WireProtocol.KOP_CLICK_DEFAULT, 0, 0, 1000 * KMS);
+        mQueue.onAck(seq, 1040 * KMS);
+        assertEquals(80 * KMS, rto(2000 * KMS));
+    }
+
+    @Test
+    public void retransmittedAcksAreNotSampled() {
+        long now = 1000 * KMS;
+        int seq = mQueue.track(WireProtocol.KOP_TAP, 2, 0, now);
+        now = mQueue.getNextDeadlineNS();
+        assertEquals(1, collect(now));
+        assertEquals(seq, mSeqs[0]);
+        assertEquals(WireProtocol.KOP_TAP, mOpcodes[0]);
+        assertEquals(2, mArgs0[0]);
+        // the ack can't tell which transmission it answers, a 200ms RTT would mean a 250ms RTO
+        mQueue.onAck(seq, now + 140 * KMS);
+        assertEquals(0, mQueue.getPendingCount());
+        assertEquals(60 * KMS, rto(now + 200 * KMS));
+    }
+
+    @Test
+    public void rtoIsClamped() {
+        int seq = mQueue.track(WireProtocol.KOP_CLICK_DEFAULT, 0, 0, 0);
+        mQueue.onAck(seq, 1000 * KMS);
+        assertEquals(250 * KMS, rto(2000 * KMS));
+        for (int x = 0; x < 100; x++) {
+            long now = (3000 + x) * KMS;
+            seq = mQueue.track(WireProtocol.KOP_CLICK_DEFAULT, 0, 0, now);
+            mQueue.onAck(seq, now + KMS);
+        }
+        assertEquals(20 * KMS, rto(4000 * KMS));
+    }
+
+    @Test
+    public void backoffDoublesToItsCapThenGivesUp() {
+        long now = 0;
+        mQueue.track(WireProtocol.KOP_MOVE_DRAG_END, 0, 0, now);
+        long[] intervals = {120, 240, 480, 960, 1000};
+        assertEquals(RetransmitQueue.KMAX_RETRIES, intervals.length);
+        now = mQueue.getNextDeadlineNS();
+        assertEquals(60 * KMS, now);
+        for (long interval : intervals) {
+            // nothing is due a moment early
+            assertEquals(0, collect(now - 1));
+            assertEquals(1, collect(now));
+            assertEquals(interval * KMS, mQueue.getNextDeadlineNS() - now);
+            now = mQueue.getNextDeadlineNS();
+        }
+        assertEquals(0, collect(now));
+        assertEquals(0, mQueue.getPendingCount());
+        assertEquals(Long.MAX_VALUE, mQueue.getNextDeadlineNS());
+        assertEquals(RetransmitQueue.KMAX_RETRIES, mQueue.getRetransmitCount());
+        assertEquals(1, mQueue.getGivenUpCount());
+    }
+
+    @Test
+    public void fullQueueGivesUpTheOldest() {
+        for (int x = 0; x <= RetransmitQueue.KCAPACITY; x++) {
+            mQueue.track(WireProtocol.KOP_CLICK_DEFAULT, x, 0, x * KMS);
+        }
+        assertEquals(RetransmitQueue.KCAPACITY, mQueue.getPendingCount());
+        assertEquals(1, mQueue.getGivenUpCount());
+        // the first one went, the second is the oldest due
+        assertEquals(61 * KMS, mQueue.getNextDeadlineNS());
+    }
+}
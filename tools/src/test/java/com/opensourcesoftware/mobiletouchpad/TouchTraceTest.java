@@ -0,0 +1,301 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records synthetic sessions with TouchTrace and reads them back: the records have to
+ * come back exactly as written, and a replay through TraceReplay has to give the
+ * commands the session gave live.
+ */
+public class TouchTraceTest {
+
+    // an hour, the delta doesn't fit 32 bits in nanoseconds
+    private static final long KLONG_GAP_NS = 3600L * 1000000000L;
+
+    /**
+     * A record as written or read, compared by value.
+     */
+    private static class Record {
+        final int mType;
+        final long mTimeNS;
+        final String mFields;
+
+        Record(int type, long timeNS, String fields) {
+            mType = type;
+            mTimeNS = timeNS;
+            mFields = fields;
+        }
+
+        static String sample(int action, int actionIndex, int pointerCount, int[] ids, float[] x, float[] y) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(action).append(' ').append(actionIndex).append(' ').append(pointerCount);
+            for (int p = 0; p < pointerCount; p++) {
+                // exact bits, -0.0 and NaN payloads included
+                sb.append(' ').append(ids[p])
+                        .append(' ').append(Float.floatToRawIntBits(x[p]))
+                        .append(' ').append(Float.floatToRawIntBits(y[p]));
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Record)) return false;
+            Record r = (Record) o;
+            return (mType == r.mType) && (mTimeNS == r.mTimeNS) && mFields.equals(r.mFields);
+        }
+
+        @Override
+        public int hashCode() {
+            return mFields.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return mType + "@" + mTimeNS + " " + mFields;
+        }
+    }
+
+    /**
+     * Writes the same records to a trace and to the expected list.
+     */
+    private static class Recorder {
+        final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        final TouchTrace.Writer mWriter = new TouchTrace.Writer(mBytes);
+        final List<Record> mRecords = new ArrayList<>();
+
+        void config(String key, String value, long timeNS) {
+            mWriter.writeConfig(key, value, timeNS);
+            mRecords.add(new Record(TouchTrace.KREC_CONFIG, timeNS, key + "=" + value));
+        }
+
+        void sample(int action, int actionIndex, boolean historical, int[] ids, float[] x, float[] y, long timeNS) {
+            mWriter.writeSample(action, actionIndex, ids.length, historical, ids, x, y, timeNS);
+            mRecords.add(new Record(historical ? TouchTrace.KREC_HISTORY : TouchTrace.KREC_SAMPLE, timeNS,
+                    Record.sample(action, actionIndex, ids.length, ids, x, y)));
+        }
+
+        void timeout(long timeNS) {
+            mWriter.writeTimeout(timeNS);
+            mRecords.add(new Record(TouchTrace.KREC_TIMEOUT, timeNS, ""));
+        }
+
+        void frame(long timeNS) {
+            mWriter.writeFrame(timeNS);
+            mRecords.add(new Record(TouchTrace.KREC_FRAME, timeNS, ""));
+        }
+
+        void command(int opcode, int arg0, int arg1, long timeNS) {
+            mWriter.writeCommand(opcode, arg0, arg1, timeNS);
+            mRecords.add(new Record(TouchTrace.KREC_COMMAND, timeNS, opcode + " " + arg0 + " " + arg1));
+        }
+    }
+
+    private static List<Record> read(byte[] trace) throws IOException {
+        TouchTrace.Reader reader = new TouchTrace.Reader(new ByteArrayInputStream(trace));
+        List<Record> records = new ArrayList<>();
+        int type;
+        while ((type = reader.next()) != TouchTrace.KREC_END) {
+            String fields;
+            switch (type) {
+                case TouchTrace.KREC_CONFIG:
+                    fields = reader.getConfigKey() + "=" + reader.getConfigValue();
+                    break;
+                case TouchTrace.KREC_SAMPLE:
+                case TouchTrace.KREC_HISTORY:
+                    fields = Record.sample(reader.getAction(), reader.getActionIndex(), reader.getPointerCount(),
+                            reader.getIds(), reader.getX(), reader.getY());
+                    break;
+                case TouchTrace.KREC_COMMAND:
+                    fields = reader.getOpcode() + " " + reader.getArg0() + " " + reader.getArg1();
+                    break;
+                default:
+                    fields = "";
+            }
+            records.add(new Record(type, reader.getTimeNS(), fields));
+        }
+        return records;
+    }
+
+    private static int[] ids(int... ids) {
+        return ids;
+    }
+
+    private static float[] at(float... v) {
+        return v;
+    }
+
+    @Test
+    public void recordsRoundTrip() throws IOException {
+        Recorder r = new Recorder();
+        long t = 5000000000L;
+        r.config(TouchProcessor.KCONFIG_MULTIPLIER, "1.5", t);
+        r.sample(GestureStateMachine.KTOUCH_DOWN, 0, false, ids(0), at(10.25f), at(20.5f), t);
+        r.sample(GestureStateMachine.KTOUCH_MOVE, 0, true, ids(0), at(11.f), at(19.75f), t += 4000000L);
+        r.sample(GestureStateMachine.KTOUCH_MOVE, 0, false, ids(0), at(-3.f), at(-0.f), t += 4000000L);
+        // pointer count goes up and down, the slots keep their own previous values
+        r.sample(GestureStateMachine.KTOUCH_POINTER_DOWN, 1, false, ids(0, 1), at(-3.f, 400.f), at(0.f, 800.f), t += 1);
+        r.sample(GestureStateMachine.KTOUCH_POINTER_DOWN, 2, false, ids(0, 1, 7),
+                at(-3.f, 400.f, Float.MAX_VALUE), at(0.f, 800.f, Float.MIN_VALUE), t += 1);
+        r.sample(GestureStateMachine.KTOUCH_POINTER_UP, 0, false, ids(0, 1, 7),
+                at(-3.f, 401.f, Float.NaN), at(0.f, 801.f, Float.NEGATIVE_INFINITY), t += 1);
+        r.sample(GestureStateMachine.KTOUCH_MOVE, 0, false, ids(1, 7), at(401.f, 2.f), at(801.f, 3.f), t += 1);
+        r.command(WireProtocol.KOP_MOVE, Integer.MIN_VALUE, Integer.MAX_VALUE, t);
+        r.timeout(t += KLONG_GAP_NS);
+        // frame times come from another clock read and may be behind the last record
+        r.frame(t - 16000000L);
+        r.frame(t += 1000);
+        r.command(WireProtocol.KOP_SCROLL, -1, 0, t);
+        r.sample(GestureStateMachine.KTOUCH_UP, 0, false, ids(1), at(0.f), at(0.f), t -= KLONG_GAP_NS);
+        r.mWriter.close();
+        assertTrue(!r.mWriter.isFailed());
+        assertEquals(r.mRecords.size(), r.mWriter.getRecordCount());
+        assertEquals(r.mRecords, read(r.mBytes.toByteArray()));
+    }
+
+    /**
+     * Keeps what the processor sends and polls its timeouts the way TouchpadGestures does.
+     */
+    private static class Session implements TouchProcessor.TouchProcessorListener {
+        final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        final TouchTrace.Writer mWriter = new TouchTrace.Writer(mBytes);
+        final TouchProcessor mProcessor = new TouchProcessor(this);
+        final List<String> mCommands = new ArrayList<>();
+        boolean mFlinging = false;
+
+        Session() {
+            mProcessor.setUnitScale(0.5f);
+            mProcessor.setAccelerationCurve(AccelerationCurve.linear());
+            mProcessor.setTraceWriter(mWriter);
+        }
+
+        @Override
+        public void onCommand(int opcode, int arg0, int arg1, long eventNS) {
+            mCommands.add(opcode + " " + arg0 + " " + arg1);
+        }
+
+        @Override
+        public void onFeedback(int feedback) {
+        }
+
+        @Override
+        public void onFlingStarted() {
+            mFlinging = true;
+        }
+
+        Session touch(int action, int actionIndex, long timeMS, int[] ids, float[] x, float[] y) {
+            idle(timeMS);
+            mProcessor.onTouchSample(action, actionIndex, ids.length, false, ids, x, y, timeMS);
+            return this;
+        }
+
+        Session history(long timeMS, int[] ids, float[] x, float[] y) {
+            mProcessor.onTouchSample(GestureStateMachine.KTOUCH_MOVE, 0, ids.length, true, ids, x, y, timeMS);
+            return this;
+        }
+
+        Session idle(long timeMS) {
+            while (mProcessor.getDeadline() <= timeMS) {
+                mProcessor.onTimeout(mProcessor.getDeadline());
+            }
+            return this;
+        }
+
+        Session frames(long timeMS) {
+            long frameNS = timeMS * 1000000L;
+            while (mFlinging) {
+                mFlinging = mProcessor.onFrame(frameNS);
+                frameNS += 16000000L;
+            }
+            return this;
+        }
+
+        byte[] close() {
+            mProcessor.setTraceWriter(null);
+            mWriter.close();
+            return mBytes.toByteArray();
+        }
+    }
+
+    @Test
+    public void replayGivesTheRecordedCommands() throws IOException {
+        Session s = new Session();
+        // tap
+        s.touch(GestureStateMachine.KTOUCH_DOWN, 0, 1000, ids(0), at(100), at(100))
+                .touch(GestureStateMachine.KTOUCH_UP, 0, 1050, ids(0), at(100), at(100))
+                .idle(1500);
+        // cursor move with batched samples
+        s.touch(GestureStateMachine.KTOUCH_DOWN, 0, 2000, ids(0), at(100), at(100))
+                .history(2008, ids(0), at(110), at(104))
+                .touch(GestureStateMachine.KTOUCH_MOVE, 0, 2016, ids(0), at(125), at(110))
+                .history(2024, ids(0), at(150), at(118))
+                .touch(GestureStateMachine.KTOUCH_MOVE, 0, 2032, ids(0), at(170), at(125))
+                .touch(GestureStateMachine.KTOUCH_UP, 0, 2040, ids(0), at(170), at(125))
+                .idle(2600);
+        // two finger scroll flung on release, after a long pause
+        long t = 2600 + KLONG_GAP_NS / 1000000L;
+        s.touch(GestureStateMachine.KTOUCH_DOWN, 0, t, ids(3), at(100), at(300))
+                .touch(GestureStateMachine.KTOUCH_POINTER_DOWN, 1, t + 10, ids(3, 4), at(100, 200), at(300, 300))
+                .touch(GestureStateMachine.KTOUCH_MOVE, 0, t + 30, ids(3, 4), at(100, 200), at(260, 260))
+                .touch(GestureStateMachine.KTOUCH_MOVE, 0, t + 40, ids(3, 4), at(100, 200), at(220, 220))
+                .touch(GestureStateMachine.KTOUCH_MOVE, 0, t + 50, ids(3, 4), at(100, 200), at(170, 170))
+                .touch(GestureStateMachine.KTOUCH_POINTER_UP, 0, t + 60, ids(3, 4), at(100, 200), at(150, 150))
+                .touch(GestureStateMachine.KTOUCH_UP, 0, t + 70, ids(4), at(200), at(150))
+                .frames(t + 76)
+                .idle(t + 1000);
+        byte[] trace = s.close();
+        assertTrue(s.mCommands.size() > 4);
+
+        List<String> recorded = new ArrayList<>();
+        for (Record record : read(trace)) {
+            if (record.mType == TouchTrace.KREC_COMMAND) recorded.add(record.mFields);
+        }
+        assertEquals(s.mCommands, recorded);
+
+        TraceReplay replay = new TraceReplay();
+        assertTrue(replay.check(trace));
+        assertEquals(s.mCommands.size(), replay.getCommandCount());
+        // and again, replays are deterministic
+        assertTrue(replay.check(trace));
+        assertEquals(s.mCommands.size(), replay.getCommandCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsForeignData() throws IOException {
+        new TouchTrace.Reader(new ByteArrayInputStream(Arrays.copyOf("TPTX".getBytes(), 5)));
+    }
+}
@@ -0,0 +1,204 @@
+/*
+Copyright(c) Dorin Duminica. All rights reserved.
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+  1. Redistributions of source code must retain the above copyright notice,
+	 this list of conditions and the following disclaimer.
+  2. Redistributions in binary form must reproduce the above copyright notice,
+	 this list of conditions and the following disclaimer in the documentation
+	 and/or other materials provided with the distribution.
+  3. Neither the name of the copyright holder nor the names of its
+	 contributors may be used to endorse or promote products derived from this
+	 software without specific prior written permission.
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.opensourcesoftware.mobiletouchpad;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Binary encoding round trips and the text fallback for hosts that never answer HELLO.
+ */
+public class WireProtocolTest {
+
+    private static final int[] KVALUES = {
+            0, 1, -1, 63, -64, 64, -65, 127, 128, 8191, 8192, -8193,
+            0x0FFFFFFF, 0x10000000, -0x10000000, Integer.MAX_VALUE, Integer.MIN_VALUE,
+    };
+
+    @Test
+    public void varIntsRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (int value : KVALUES) {
+            buffer.clear();
+            WireProtocol.putVarSInt(buffer, value);
+            buffer.flip();
+            assertEquals(value, WireProtocol.getVarSInt(buffer));
+            assertFalse(buffer.hasRemaining());
+
+            buffer.clear();
+            WireProtocol.putVarUInt(buffer, value);
+            buffer.flip();
+            assertEquals(value, WireProtocol.getVarUInt(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    private static int sizeOfSInt(int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        WireProtocol.putVarSInt(buffer, value);
+        return buffer.position();
+    }
+
+    private static int sizeOfUInt(int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        WireProtocol.putVarUInt(buffer, value);
+        return buffer.position();
+    }
+
+    @Test
+    public void varIntSizes() {
+        assertEquals(1, sizeOfUInt(0));
+        assertEquals(1, sizeOfUInt(127));
+        assertEquals(2, sizeOfUInt(128));
+        // negative unsigned values take all 32 bits
+        assertEquals(5, sizeOfUInt(-1));
+        // zigzag keeps small magnitudes small either way
+        assertEquals(1, sizeOfSInt(0));
+        assertEquals(1, sizeOfSInt(-1));
+        assertEquals(1, sizeOfSInt(-64));
+        assertEquals(2, sizeOfSInt(64));
+        assertEquals(5, sizeOfSInt(Integer.MAX_VALUE));
+        assertEquals(5, sizeOfSInt(Integer.MIN_VALUE));
+    }
+
+    @Test
+    public void commandsRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(WireProtocol.KMAX_FRAME_SIZE);
+        WireProtocol.putHeader(buffer, WireProtocol.KVERSION_MAX);
+        WireProtocol.putCommand(buffer, WireProtocol.KOP_MOVE, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        WireProtocol.putCommand(buffer, WireProtocol.KOP_SCROLL, -1, 0);
+        WireProtocol.putCommand(buffer, WireProtocol.KOP_CLICK_DEFAULT, 0, 0);
+        buffer.flip();
+        assertTrue(WireProtocol.isBinaryFrame(buffer));
+        buffer.position(WireProtocol.KFRAME_HEADER_SIZE);
+        assertEquals(WireProtocol.KOP_MOVE, buffer.get() & 0xFF);
+        assertEquals(Integer.MIN_VALUE, WireProtocol.getArg(buffer, WireProtocol.KOP_MOVE));
+        assertEquals(Integer.MAX_VALUE, WireProtocol.getArg(buffer, WireProtocol.KOP_MOVE));
+        assertEquals(WireProtocol.KOP_SCROLL, buffer.get() & 0xFF);
+        assertEquals(-1, WireProtocol.getArg(buffer, WireProtocol.KOP_SCROLL));
+        assertEquals(0, WireProtocol.getArg(buffer, WireProtocol.KOP_SCROLL));
+        assertEquals(WireProtocol.KOP_CLICK_DEFAULT, buffer.get() & 0xFF);
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void reliableCommandsCarryTheSeq() {
+        int[] opcodes = {
+                WireProtocol.KOP_MOVE_DRAG_BEGIN, WireProtocol.KOP_MOVE_DRAG_END, WireProtocol.KOP_CLICK_DEFAULT,
+                WireProtocol.KOP_CLICK_OPTIONS, WireProtocol.KOP_CLICK_DOUBLE, WireProtocol.KOP_TAP,
+                WireProtocol.KOP_SWIPE, WireProtocol.KOP_PINCH,
+        };
+        int[] seqs = {0, 1, 127, 128, Integer.MAX_VALUE};
+        ByteBuffer buffer = ByteBuffer.allocate(WireProtocol.KMAX_CMD_SIZE);
+        for (int opcode : opcodes) {
+            assertTrue(WireProtocol.isReliable(opcode));
+            // the flag has to stay clear of every opcode
+            assertEquals(0, opcode & WireProtocol.KFLAG_SEQ);
+            for (int seq : seqs) {
+                buffer.clear();
+                WireProtocol.putReliableCommand(buffer, opcode, seq, 3, WireProtocol.KSWIPE_RIGHT);
+                assertTrue(buffer.position() <= WireProtocol.KMAX_CMD_SIZE);
+                buffer.flip();
+                int b = buffer.get() & 0xFF;
+                assertEquals(WireProtocol.KFLAG_SEQ, b & WireProtocol.KFLAG_SEQ);
+                assertEquals(opcode, b & ~WireProtocol.KFLAG_SEQ);
+                assertEquals(seq, WireProtocol.getVarUInt(buffer));
+                int argCount = WireProtocol.getArgCount(opcode);
+                if (argCount > 0) assertEquals(3, WireProtocol.getArg(buffer, opcode));
+                if (argCount > 1) assertEquals(WireProtocol.KSWIPE_RIGHT, WireProtocol.getArg(buffer, opcode));
+                assertFalse(buffer.hasRemaining());
+            }
+        }
+        assertFalse(WireProtocol.isReliable(WireProtocol.KOP_MOVE));
+        assertFalse(WireProtocol.isReliable(WireProtocol.KOP_SCROLL));
+    }
+
+    @Test
+    public void textFramesAreNotBinary() {
+        ByteBuffer buffer = ByteBuffer.allocate(WireProtocol.KMAX_TEXT_CMD_SIZE);
+        WireProtocol.putTextCommand(buffer, WireProtocol.KOP_MOVE, Integer.MIN_VALUE, Integer.MIN_VALUE);
+        assertTrue(buffer.position() <= WireProtocol.KMAX_TEXT_CMD_SIZE);
+        buffer.flip();
+        assertFalse(WireProtocol.isBinaryFrame(buffer));
+        String text = new String(buffer.array(), 0, buffer.limit(), StandardCharsets.US_ASCII);
+        assertEquals(CmdConsts.KACTION_MOVE + " " + Integer.MIN_VALUE + " " + Integer.MIN_VALUE, text.trim());
+    }
+
+    /**
+     * A host that never answers keeps getting text, and the HELLO offers stop after a few pings.
+     */
+    @Test(timeout = 20000)
+    public void silentHostGetsText() throws Exception {
+        try (DatagramSocket host = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            host.setSoTimeout(100);
+            GestureEventRing ring = new GestureEventRing();
+            UDPClientThread client = new UDPClientThread(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), host.getLocalPort()),
+                    ring, new ConnectionHealth(), new RetransmitQueue());
+            client.start();
+            byte[] raw = new byte[WireProtocol.KMAX_FRAME_SIZE];
+            DatagramPacket packet = new DatagramPacket(raw, raw.length);
+            int pings = 0;
+            int hellos = 0;
+            boolean clicked = false;
+            boolean offered = false;
+            // one more ping than there are offers, the last must go out bare
+            while (pings <= UDPClientThread.KHELLO_OFFERS_MAX) {
+                if (!offered && (pings > 0)) {
+                    ring.offer(WireProtocol.KOP_CLICK_DEFAULT, 0, 0, System.nanoTime());
+                    offered = true;
+                }
+                try {
+                    packet.setLength(raw.length);
+                    host.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                assertFalse("binary frame to a silent host", (packet.getLength() > 0) && (raw[0] == WireProtocol.KFRAME_MARKER));
+                for (String line : new String(raw, 0, packet.getLength(), StandardCharsets.US_ASCII).split("\n")) {
+                    if (line.equals(CmdConsts.KCOMM_PING)) pings++;
+                    if (line.equals(CmdConsts.KCOMM_HELLO + " " + WireProtocol.KVERSION_MAX)) hellos++;
+                    if (line.equals(CmdConsts.KACTION_CLICK_DEFAULT)) clicked = true;
+                }
+            }
+            client.interrupt();
+            client.join();
+            assertTrue(clicked);
+            assertEquals(UDPClientThread.KHELLO_OFFERS_MAX, hellos);
+            assertEquals(WireProtocol.KVERSION_TEXT, client.getProtocolVersion());
+        }
+    }
+}